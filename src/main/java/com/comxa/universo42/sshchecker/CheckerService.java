@@ -10,10 +10,9 @@ import android.os.IBinder;
 import android.support.v7.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.Builder;
 
-import com.comxa.universo42.sshchecker.modelo.SSH;
+import com.comxa.universo42.sshchecker.modelo.ConcurrencyController;
 import com.comxa.universo42.sshchecker.modelo.SSHchecker;
-
-import java.util.List;
+import com.comxa.universo42.sshchecker.modelo.SSHsource;
 
 public class CheckerService extends Service implements ServiceControl {
     public static final String SERVICE_BROADCAST_STR = "SERVICE_SSH_CHECKER";
@@ -71,8 +70,8 @@ public class CheckerService extends Service implements ServiceControl {
     }
 
     @Override
-    public void setChecker(List<SSH> sshs, int qtdThreads) {
-        checker = new SSHchecker(sshs, qtdThreads) {
+    public void setChecker(SSHsource fonte, int qtdThreads, boolean adaptativo) {
+        checker = new SSHchecker(fonte, qtdThreads) {
             @Override
             public void onLog(String str) {
                 if (notificationBuilder != null) {
@@ -89,6 +88,10 @@ public class CheckerService extends Service implements ServiceControl {
                 }
             }
         };
+
+        //Opcional: qtdThreads passa a ser o teto e o checker reduz sozinho se a rede congestionar
+        if (adaptativo)
+            checker.setAdaptiveConcurrency(ConcurrencyController.DEFAULT_MINIMO, qtdThreads);
     }
 
 
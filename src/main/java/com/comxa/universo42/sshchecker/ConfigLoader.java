@@ -10,6 +10,8 @@ public class ConfigLoader {
 
     private String file;
     private int qtdThreads = DEFAULT_QTD_THREADS;
+    //Se true, qtdThreads é só o teto do controle adaptativo (AIMD)
+    private boolean adaptativo;
 
     public ConfigLoader(String file) {
         this.file = file;
@@ -23,10 +25,19 @@ public class ConfigLoader {
         this.qtdThreads = qtdThreads;
     }
 
+    public boolean isAdaptativo() {
+        return adaptativo;
+    }
+
+    public void setAdaptativo(boolean adaptativo) {
+        this.adaptativo = adaptativo;
+    }
+
     public void save() throws IOException {
         PrintWriter pw = new PrintWriter(new File(this.file));
 
         pw.println(this.qtdThreads);
+        pw.println(this.adaptativo);
 
         pw.close();
     }
@@ -40,6 +51,10 @@ public class ConfigLoader {
             if (scanner.hasNextLine())
                 this.qtdThreads = Integer.parseInt(scanner.nextLine());
 
+            //Configs antigas só têm a primeira linha
+            if (scanner.hasNextLine())
+                this.adaptativo = Boolean.parseBoolean(scanner.nextLine());
+
             scanner.close();
         }
     }
@@ -36,7 +36,10 @@ public class MainActivity extends Activity implements ServiceConnection {
     public static final String FILE_ON = "sshOns.txt";
     public static final String FILE_OFF = "sshOffs.txt";
     public static final String FILE_ERROR = "sshError.txt";
+    public static final String FILE_STATS = "sshStats.txt";
     public static final String FILE_CONFIG = "config.conf";
+    //Redes que nunca são checadas, uma por linha (ex: 10.0.0.0/8)
+    public static final String FILE_EXCLUSAO = "sshExcluir.txt";
 
     private Button btnCheck;
     private Button btnSshs;
@@ -49,8 +52,15 @@ public class MainActivity extends Activity implements ServiceConnection {
     private ConfigLoader config;
     private String delimitador = SSHloader.DEFAULT_DELIMITER;
     private int qtdThreads = DEFAULT_QTD_THREADS;
+    private boolean adaptativo;
     private File fileSelecionado;
     private List<SSH> sshs = new ArrayList<SSH>();
+    //Arquivos ficam em tabelas compactas; os SSHs só são criados durante o check
+    private List<SSHsource> arquivos = new ArrayList<SSHsource>();
+    private long qtdArquivos;
+    //Alvos repetidos entre todas as listas carregadas só são contados
+    private TargetDedup dedup = new TargetDedup(TargetDedup.CREDENCIAL);
+    private ExclusionList exclusao;
     private SSHloader loader;
     private String fixedUser;
     private String fixedPass;
@@ -60,7 +70,7 @@ public class MainActivity extends Activity implements ServiceConnection {
 
     private ServiceControl serviceControl;
     private SSHchecker checker;
-    private ThreadChecker threadChecker;
+    private SSHchecker.Listener checkerListener;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -102,7 +112,7 @@ public class MainActivity extends Activity implements ServiceConnection {
     protected void onStop() {
         super.onStop();
         unbindService();
-        stopThreadChecker();
+        removeCheckerListener();
     }
 
     public void onClickBtnArq(View view) {
@@ -138,6 +148,10 @@ public class MainActivity extends Activity implements ServiceConnection {
 
         if (checker == null) {
             intent.putExtra(SshListActivity.INTENT_SSHS, serializarSshs(sshs));
+
+            //Alvos de arquivos (tabelas e faixas) só são lidos no check; só avisa quantos são
+            if (qtdArquivos > 0)
+                showMsg(qtdArquivos + " " + getString(R.string.msgAlvosDeArquivos));
         } else {
             if (checker.getSshOns().size() > 0)
                 intent.putExtra(SshListActivity.INTENT_SSH_ONS, serializarSshs(checker.getSshOns()));
@@ -164,7 +178,7 @@ public class MainActivity extends Activity implements ServiceConnection {
             public void onClick(View v) {
                 if (checker != null) {
                     btnCheck.setEnabled(false);
-                    stopThreadChecker();
+                    removeCheckerListener();
                     checker.stop();
                     stopService();
                     btnCheck.setText(getString(R.string.btnCheckStopped));
@@ -197,20 +211,22 @@ public class MainActivity extends Activity implements ServiceConnection {
 
         }else{
             //Criar checker - usuário uniciou um check
-            serviceControl.setChecker(sshs, qtdThreads);
+            serviceControl.setChecker(getFonte(), qtdThreads, adaptativo);
             checker = serviceControl.getChecker();
+            //Nomes que resolvem para uma rede excluída também são barrados
+            checker.setExclusion(exclusao);
             startService();
 
             checker.check(false);
         }
 
-        startThreadChecker();
+        addCheckerListener();
         setBtnCheckStop();
     }
 
     @Override
     public void onServiceDisconnected(ComponentName name) {
-        stopThreadChecker();
+        removeCheckerListener();
         if (checker != null && checker.isRunning())
             checker.stop();
         serviceControl = null;
@@ -241,15 +257,31 @@ public class MainActivity extends Activity implements ServiceConnection {
         stopService(i);
     }
 
-    private void startThreadChecker() {
-        threadChecker = new ThreadChecker();
-        threadChecker.start();
+    private void addCheckerListener() {
+        removeCheckerListener();
+
+        checkerListener = new SSHchecker.SimpleListener() {
+            @Override
+            public void onComplete() {
+                final SSHchecker.Listener listener = this;
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (checkerListener == listener)
+                            onCheckerDone();
+                    }
+                });
+            }
+        };
+        checker.addListener(checkerListener);
     }
 
-    private void stopThreadChecker() {
-        if (threadChecker != null) {
-            threadChecker.stop();
-            threadChecker = null;
+    private void removeCheckerListener() {
+        if (checkerListener != null) {
+            if (checker != null)
+                checker.removeListener(checkerListener);
+            checkerListener = null;
         }
     }
 
@@ -277,21 +309,27 @@ public class MainActivity extends Activity implements ServiceConnection {
                 fileSelecionado = new File(data.getStringExtra("file"));
 
                 loader = new SSHloader(fileSelecionado);
-                loadSshs();
+                loadArquivo();
             }
         }
     }
 
     private void loadSshs() {
         loader.setDelimiter(delimitador);
+        loader.setDedup(dedup);
+        int duplicados = dedup.getQtdDuplicates();
 
         try {
-            if (fixedUser != null && fixedPass != null)
-                loader.loadFixed(fixedUser, fixedPass, fixedPort);
-            else
-                loader.load();
+            loader.setExclusion(getExclusao());
+            int excluidos = exclusao.getQtdExcluded();
+
+            if (loadFaixas(duplicados, excluidos, true))
+                return;
+
+            loader.load();
             sshs.addAll(loader.getSSHs());
             refleshBtnSshs();
+            showDescartados(duplicados, excluidos);
 
             if (sshs.size() > 0) {
                 btnCheck.setEnabled(true);
@@ -302,6 +340,101 @@ public class MainActivity extends Activity implements ServiceConnection {
         }
     }
 
+    private void loadArquivo() {
+        loader.setDelimiter(delimitador);
+        loader.setDedup(dedup);
+        int duplicados = dedup.getQtdDuplicates();
+
+        try {
+            loader.setExclusion(getExclusao());
+            int excluidos = exclusao.getQtdExcluded();
+
+            if (loadFaixas(duplicados, excluidos, false))
+                return;
+
+            TargetTable tabela = loader.loadTable();
+
+            arquivos.add(tabela);
+            qtdArquivos += tabela.size();
+            refleshBtnSshs();
+            showDescartados(duplicados, excluidos);
+
+            if (sshs.size() + qtdArquivos > 0) {
+                btnCheck.setEnabled(true);
+                btnSshs.setEnabled(true);
+            }
+        } catch (IOException e) {
+            showMsg(e.getMessage());
+        }
+    }
+
+    //Com params fixos, faixas (10.0.0.0/16, ip-ip) são geradas sob demanda em vez de expandidas;
+    //os IPs soltos no resto do texto passam pelo dedup como no loadFixed()
+    private boolean loadFaixas(int duplicados, int excluidos, boolean colado) throws IOException {
+        if (fixedUser == null || fixedPass == null)
+            return false;
+
+        TargetRange faixas = loader.loadRanges(fixedUser, fixedPass, fixedPort);
+
+        if (faixas.hasRanges()) {
+            //Fora de ordem, para não concentrar os checks numa sub-rede por vez
+            faixas.shuffle(System.nanoTime());
+        } else if (colado) {
+            //Só IPs soltos: vão para a lista, como antes
+            SSH ssh;
+            while ((ssh = faixas.next()) != null)
+                sshs.add(ssh);
+            faixas = null;
+        }
+
+        if (faixas != null) {
+            arquivos.add(faixas);
+            qtdArquivos += faixas.getTotal();
+        }
+        refleshBtnSshs();
+        showDescartados(duplicados, excluidos);
+
+        if (sshs.size() + qtdArquivos > 0) {
+            btnCheck.setEnabled(true);
+            btnSshs.setEnabled(true);
+        }
+        return true;
+    }
+
+    private ExclusionList getExclusao() throws IOException {
+        if (exclusao == null) {
+            exclusao = new ExclusionList();
+
+            File arquivo = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/" + FILES_DIR + "/" + FILE_EXCLUSAO);
+            if (arquivo.exists())
+                exclusao.load(arquivo);
+        }
+
+        return exclusao;
+    }
+
+    private void showDescartados(int duplicadosAntes, int excluidosAntes) {
+        int duplicados = dedup.getQtdDuplicates() - duplicadosAntes;
+        int excluidos = exclusao.getQtdExcluded() - excluidosAntes;
+
+        if (duplicados > 0)
+            showMsg(duplicados + " " + getString(R.string.msgDuplicados));
+        if (excluidos > 0)
+            showMsg(excluidos + " " + getString(R.string.msgExcluidos));
+    }
+
+    private SSHsource getFonte() {
+        if (arquivos.isEmpty())
+            return new SSHsource.ListSource(sshs);
+
+        SSHsource[] fontes = new SSHsource[arquivos.size() + 1];
+        fontes[0] = new SSHsource.ListSource(sshs);
+        for (int i = 0; i < arquivos.size(); i++)
+            fontes[i + 1] = arquivos.get(i);
+
+        return new SSHsource.Chain(fontes);
+    }
+
     private void saveSshs() {
         if (checker == null)
             return;
@@ -326,6 +459,7 @@ public class MainActivity extends Activity implements ServiceConnection {
             saver = new SSHloader(new File(dir + FILE_ERROR));
             saver.setSshs(checker.getSshError());
             saver.save();
+            checker.getStats().save(new File(dir + FILE_STATS));
 
             showMsg(getString(R.string.msgSucessoAoSalvar));
         } catch(IOException e) {
@@ -335,6 +469,7 @@ public class MainActivity extends Activity implements ServiceConnection {
 
     private void saveConfig() {
         config.setQtdThreads(qtdThreads);
+        config.setAdaptativo(adaptativo);
 
         try {
             config.save();
@@ -348,6 +483,7 @@ public class MainActivity extends Activity implements ServiceConnection {
             config.load();
 
             qtdThreads = config.getQtdThreads();
+            adaptativo = config.isAdaptativo();
         } catch(IOException e) {
             showMsg(e.getMessage());
         }
@@ -400,7 +536,7 @@ public class MainActivity extends Activity implements ServiceConnection {
     }
 
     private void refreshBtnThreads() {
-        btnQtdThreads.setText(getString(R.string.btnThreads) + " ( " +  qtdThreads + " )");
+        btnQtdThreads.setText(getString(R.string.btnThreads) + " ( " + (adaptativo ? "≤ " : "") + qtdThreads + " )");
     }
 
     private void refreshBtnDelimitador() {
@@ -408,7 +544,7 @@ public class MainActivity extends Activity implements ServiceConnection {
     }
 
     private void refleshBtnSshs() {
-        btnSshs.setText(getString(R.string.btnSshs) + " ( " + sshs.size() + " )");
+        btnSshs.setText(getString(R.string.btnSshs) + " ( " + (sshs.size() + qtdArquivos) + " )");
     }
 
     private void showFixedParamsInput() {
@@ -522,16 +658,27 @@ public class MainActivity extends Activity implements ServiceConnection {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(getString(R.string.titleThreadsDialog));
 
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+
         final EditText input = new EditText(this);
         input.setInputType(InputType.TYPE_CLASS_NUMBER);
         input.setText(String.valueOf(qtdThreads));
-        builder.setView(input);
+        layout.addView(input);
+
+        final CheckBox box = new CheckBox(this);
+        box.setText(getString(R.string.strCheckBoxAdaptativo));
+        box.setChecked(adaptativo);
+        layout.addView(box);
+
+        builder.setView(layout);
 
         builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 try {
                     qtdThreads = Integer.parseInt(input.getText().toString());
+                    adaptativo = box.isChecked();
                     refreshBtnThreads();
                 } catch(NumberFormatException e) {
                     showMsg(getString(R.string.msgQtdThreadsNaoNumerica));
@@ -545,36 +692,4 @@ public class MainActivity extends Activity implements ServiceConnection {
     private void showMsg(String msg) {
         Toast.makeText(MainActivity.this, msg, Toast.LENGTH_LONG).show();
     }
-
-
-    private class ThreadChecker implements Runnable {
-        private boolean running;
-
-        public void start() {
-            running = true;
-            new Thread(this).start();
-        }
-
-        public void stop() {
-            running = false;
-        }
-
-        @Override
-        public void run() {
-            while (running && checker.isRunning() && !checker.isComplete()) {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {}
-            }
-
-            if (running) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onCheckerDone();
-                    }
-                });
-            }
-        }
-    }
 }
@@ -1,11 +1,9 @@
 package com.comxa.universo42.sshchecker;
 
-import com.comxa.universo42.sshchecker.modelo.SSH;
 import com.comxa.universo42.sshchecker.modelo.SSHchecker;
-
-import java.util.List;
+import com.comxa.universo42.sshchecker.modelo.SSHsource;
 
 public interface ServiceControl {
     public SSHchecker getChecker();
-    public void setChecker(List<SSH> sshs, int qtdThreads);
+    public void setChecker(SSHsource fonte, int qtdThreads, boolean adaptativo);
 }
@@ -0,0 +1,189 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import com.trilead.ssh2.ConnectionTimings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Números de uma execução do SSHchecker: um histograma por fase da conexão
+ * (ver ConnectionTimings), em microssegundos, a vazão recente e a estimativa
+ * de término. Os histogramas recebem direto das threads dos workers.
+ * <p>
+ * Soma também o tempo de CPU das verificações por tipo (ver
+ * ConnectionTimings.CPU_*): a parte de criptografia diz se a execução está
+ * limitada pela CPU (menos threads bastam) ou esperando a rede.
+ */
+public class CheckerStats {
+	/* Peso da última medição na vazão (média móvel exponencial) */
+	private static final double PESO = 0.3;
+
+	private final LatencyHistogram[] fases = new LatencyHistogram[ConnectionTimings.PHASES];
+	/* Microssegundos */
+	private final AtomicLongArray cpu = new AtomicLongArray(ConnectionTimings.CPU_KINDS);
+	private final AtomicInteger qtdRegistrados = new AtomicInteger();
+	private final long inicio = System.currentTimeMillis();
+
+	private volatile double vazao;
+	private long ultimoTempo = inicio;
+	private int ultimaQtd;
+
+	public CheckerStats() {
+		for (int i = 0; i < fases.length; i++)
+			fases[i] = new LatencyHistogram();
+	}
+
+	void registrar(SSH ssh) {
+		qtdRegistrados.incrementAndGet();
+
+		for (int i = 0; i < fases.length; i++)
+			fases[i].add(ssh.getPhaseTime(i));
+
+		for (int i = 0; i < cpu.length(); i++) {
+			long us = ssh.getCpuTime(i);
+			if (us > 0)
+				cpu.addAndGet(i, us);
+		}
+	}
+
+	/**
+	 * Atualiza a vazão com os checks feitos desde a última chamada.
+	 */
+	synchronized void atualizar(int qtdChecked, long agora) {
+		long dt = agora - ultimoTempo;
+
+		if (dt <= 0)
+			return;
+
+		double atual = (qtdChecked - ultimaQtd) * 1000.0 / dt;
+		vazao = (ultimaQtd == 0) ? atual : vazao + PESO * (atual - vazao);
+		ultimoTempo = agora;
+		ultimaQtd = qtdChecked;
+	}
+
+	/**
+	 * @param fase ConnectionTimings.TCP, BANNER, KEX ou AUTH.
+	 */
+	public LatencyHistogram getPhase(int fase) {
+		return fases[fase];
+	}
+
+	/**
+	 * @return checks por segundo, recentes.
+	 */
+	public double getThroughput() {
+		return vazao;
+	}
+
+	/**
+	 * @param tipo ConnectionTimings.CPU_DH, CPU_SIGNATURE, CPU_CIPHER ou CPU_IO.
+	 * @return o tempo de CPU somado da execução, em microssegundos.
+	 */
+	public long getCpuTime(int tipo) {
+		return cpu.get(tipo);
+	}
+
+	/**
+	 * @return a fração do tempo de CPU medido que foi criptografia, de 0 a 1.
+	 */
+	public double getCryptoShare() {
+		long cripto = 0, total = 0;
+
+		for (int i = 0; i < cpu.length(); i++) {
+			long us = cpu.get(i);
+			total += us;
+			if (ConnectionTimings.isCrypto(i))
+				cripto += us;
+		}
+
+		return (total == 0) ? 0 : (double) cripto / total;
+	}
+
+	public long getElapsed() {
+		return System.currentTimeMillis() - inicio;
+	}
+
+	/**
+	 * @return ms até terminar na vazão atual, ou -1 se não dá para saber.
+	 */
+	public long getEta(int qtdChecked, int qtdTotal) {
+		double v = vazao;
+
+		if (qtdTotal < 0 || v <= 0)
+			return -1;
+
+		return (long) (Math.max(0, qtdTotal - qtdChecked) * 1000 / v);
+	}
+
+	/**
+	 * @return ex: "12.5/s - ETA 4:05 - tcp 40/310ms kex 120/900ms - cpu 85%
+	 *         crypto" (p50/p99).
+	 */
+	public String resumo(int qtdChecked, int qtdTotal) {
+		StringBuilder sb = new StringBuilder();
+		long eta = getEta(qtdChecked, qtdTotal);
+
+		sb.append(String.format(Locale.US, "%.1f/s - ETA ", vazao));
+		if (eta < 0)
+			sb.append('?');
+		else
+			sb.append(String.format(Locale.US, "%d:%02d", eta / 60000, eta / 1000 % 60));
+
+		String separador = " - ";
+
+		for (int i = 0; i < fases.length; i++) {
+			if (fases[i].getCount() == 0)
+				continue;
+
+			sb.append(separador);
+			separador = " ";
+			sb.append(ConnectionTimings.getName(i)).append(' ')
+					.append(fases[i].getPercentile(50) / 1000).append('/')
+					.append(fases[i].getPercentile(99) / 1000).append("ms");
+		}
+
+		if (cpu.get(ConnectionTimings.CPU_IO) > 0)
+			sb.append(String.format(Locale.US, " - cpu %d%% crypto", Math.round(getCryptoShare() * 100)));
+
+		return sb.toString();
+	}
+
+	/**
+	 * Grava as fases (contagem, p50, p90, p99, máximo e média, em
+	 * microssegundos) e o tempo de CPU por tipo (total e média por check, em
+	 * microssegundos), uma linha por item, separados por tab.
+	 */
+	public void save(File arquivo) throws IOException {
+		PrintWriter pw = null;
+
+		try {
+			pw = new PrintWriter(arquivo);
+			pw.println("phase\tcount\tp50\tp90\tp99\tmax\tmean");
+
+			for (int i = 0; i < fases.length; i++) {
+				LatencyHistogram h = fases[i];
+				pw.println(String.format(Locale.US, "%s\t%d\t%d\t%d\t%d\t%d\t%.0f", ConnectionTimings.getName(i),
+						h.getCount(), h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getMax(),
+						h.getMean()));
+			}
+
+			int checks = qtdRegistrados.get();
+
+			pw.println();
+			pw.println("cpu\ttotal\tper_check");
+
+			for (int i = 0; i < cpu.length(); i++)
+				pw.println(String.format(Locale.US, "%s\t%d\t%d", ConnectionTimings.getCpuName(i), cpu.get(i),
+						(checks == 0) ? 0 : cpu.get(i) / checks));
+
+			pw.println(String.format(Locale.US, "crypto_share\t%.3f", getCryptoShare()));
+		} finally {
+			if (pw != null)
+				pw.close();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limite de verificações simultâneas ajustado como no controle de
+ * congestionamento do TCP (AIMD). A cada janela de "limite" verificações:
+ * se a taxa de SocketTimeoutException ou a latência média de conexão (TCP +
+ * KEX) passaram do aceitável o limite cai pela metade, senão sobe (dobrando
+ * até a primeira queda, depois de um em um). Nunca sai de [minimo, maximo].
+ * <p>
+ * A latência de referência é a menor média das últimas JANELAS_BASE
+ * janelas, então ela volta a subir depois de uma janela anormalmente rápida
+ * (ex: uma rajada de RSTs) em vez de deixar o limite preso no mínimo.
+ */
+public class ConcurrencyController {
+	public static final int DEFAULT_MINIMO = 1;
+	public static final double TAXA_TIMEOUT_MAXIMA = 0.1;
+	public static final double FATOR_LATENCIA_MAXIMA = 2.0;
+	public static final int JANELAS_BASE = 8;
+
+	private final int minimo;
+	private final int maximo;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition vagaLiberada = lock.newCondition();
+
+	private int limite;
+	private int emUso;
+	private boolean slowStart = true;
+	private boolean fechado;
+
+	/* Janela atual */
+	private int amostras;
+	private int timeouts;
+	private int qtdLatencias;
+	private long somaLatencia;
+
+	/* Latência média das últimas janelas (circular) e a menor delas */
+	private final long[] medias = new long[JANELAS_BASE];
+	private int qtdMedias;
+	private int proximaMedia;
+	private long latenciaBase = Long.MAX_VALUE;
+
+	public ConcurrencyController(int minimo, int maximo, int inicial) {
+		if (minimo < 1 || maximo < minimo)
+			throw new IllegalArgumentException("Invalid limits: " + minimo + ".." + maximo);
+
+		this.minimo = minimo;
+		this.maximo = maximo;
+		this.limite = Math.max(minimo, Math.min(maximo, inicial));
+	}
+
+	/**
+	 * Espera uma vaga.
+	 *
+	 * @return false se o controle foi fechado.
+	 */
+	public boolean acquire() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!fechado && emUso >= limite)
+				vagaLiberada.await();
+
+			if (fechado)
+				return false;
+
+			emUso++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean tryAcquire() {
+		lock.lock();
+		try {
+			if (fechado || emUso >= limite)
+				return false;
+
+			emUso++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Devolve a vaga sem amostra (ex: não havia mais alvo).
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			emUso--;
+			vagaLiberada.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Devolve a vaga registrando o resultado da verificação.
+	 *
+	 * @param latencia tempo de conexão em ms, ou negativo se não conectou.
+	 */
+	public void release(long latencia, boolean timeout) {
+		lock.lock();
+		try {
+			emUso--;
+
+			amostras++;
+			if (timeout)
+				timeouts++;
+			if (latencia >= 0) {
+				qtdLatencias++;
+				somaLatencia += latencia;
+			}
+
+			if (amostras >= limite)
+				ajustar();
+
+			vagaLiberada.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void ajustar() {
+		boolean congestionado = timeouts > amostras * TAXA_TIMEOUT_MAXIMA;
+
+		if (qtdLatencias > 0) {
+			long media = somaLatencia / qtdLatencias;
+
+			if (latenciaBase != Long.MAX_VALUE && media > latenciaBase * FATOR_LATENCIA_MAXIMA)
+				congestionado = true;
+
+			medias[proximaMedia] = Math.max(media, 1);
+			proximaMedia = (proximaMedia + 1) % JANELAS_BASE;
+			qtdMedias = Math.min(qtdMedias + 1, JANELAS_BASE);
+
+			latenciaBase = Long.MAX_VALUE;
+			for (int i = 0; i < qtdMedias; i++)
+				latenciaBase = Math.min(latenciaBase, medias[i]);
+		}
+
+		if (congestionado) {
+			limite = Math.max(minimo, limite / 2);
+			slowStart = false;
+		} else {
+			limite = Math.min(maximo, slowStart ? limite * 2 : limite + 1);
+			vagaLiberada.signalAll();
+		}
+
+		amostras = 0;
+		timeouts = 0;
+		qtdLatencias = 0;
+		somaLatencia = 0;
+	}
+
+	/**
+	 * Acorda quem espera uma vaga; acquire() passa a retornar false.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			fechado = true;
+			vagaLiberada.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLimite() {
+		lock.lock();
+		try {
+			return limite;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMinimo() {
+		return minimo;
+	}
+
+	public int getMaximo() {
+		return maximo;
+	}
+
+	public static boolean isTimeout(Throwable e) {
+		for (; e != null; e = e.getCause())
+			if (e instanceof SocketTimeoutException)
+				return true;
+
+		return false;
+	}
+}
@@ -0,0 +1,243 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import com.trilead.ssh2.Connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Conexões já com KEX feito cuja última senha falhou, mas que ainda aceitam
+ * "password". A próxima verificação do mesmo host:port e usuário tenta a
+ * senha dela nessa conexão em vez de refazer TCP + KEX. A chave inclui o
+ * usuário porque o OpenSSH derruba a conexão quando ele muda.
+ * <p>
+ * Só guarda a conexão se ainda falta verificar algum alvo com a mesma chave
+ * (ver esperar()/iniciar()); senão ela é fechada na hora. Só as chaves que
+ * se repetem são registradas (ver SSHsource.ListSource.agrupar()), então
+ * numa lista sem repetição iniciar(), take() e isSemSenha() retornam sem
+ * lock nem montar a chave. As que passam de
+ * MAX_OCIOSA sem uso são fechadas por uma varredura de todas as chaves,
+ * feita no máximo a cada MAX_OCIOSA / 4 durante give().
+ */
+public class ConnectionPool {
+	/* Bem abaixo do LoginGraceTime padrão do OpenSSH (120s) */
+	public static final int MAX_OCIOSA = 20000;
+
+	private final long maxOciosa;
+	private final Map<String, ArrayDeque<Ociosa>> conexoes = new HashMap<String, ArrayDeque<Ociosa>>();
+	/* Guardadas em conexoes; lida sem lock para take() sair cedo */
+	private final AtomicInteger qtdOciosas = new AtomicInteger();
+	/* Alvos de cada chave que ainda não começaram */
+	private final ConcurrentHashMap<String, AtomicInteger> pendentes = new ConcurrentHashMap<String, AtomicInteger>();
+	private final Set<String> semSenha = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private long ultimaVarredura = System.currentTimeMillis();
+	private boolean fechado;
+
+	public ConnectionPool() {
+		this(MAX_OCIOSA);
+	}
+
+	/**
+	 * @param maxOciosa ms que uma conexão pode ficar sem uso.
+	 */
+	public ConnectionPool(long maxOciosa) {
+		this.maxOciosa = maxOciosa;
+	}
+
+	/**
+	 * Registra que um alvo com a chave do SSH ainda vai ser verificado.
+	 */
+	public void esperar(SSH ssh) {
+		esperar(chave(ssh), 1);
+	}
+
+	/**
+	 * Registra qtd alvos ainda por verificar com a chave (ver chave()).
+	 */
+	void esperar(String chave, int qtd) {
+		AtomicInteger atual = pendentes.get(chave);
+
+		while (true) {
+			if (atual == null) {
+				atual = pendentes.putIfAbsent(chave, new AtomicInteger(qtd));
+				if (atual == null)
+					return;
+			}
+
+			int n = atual.get();
+
+			/* Zerado: está sendo removido por iniciar(), põe um novo */
+			if (n > 0 && atual.compareAndSet(n, n + qtd))
+				return;
+			if (n <= 0) {
+				pendentes.remove(chave, atual);
+				atual = null;
+			}
+		}
+	}
+
+	/**
+	 * A verificação do SSH começou: desfaz um esperar().
+	 */
+	public void iniciar(SSH ssh) {
+		if (pendentes.isEmpty())
+			return;
+
+		String chave = chave(ssh);
+		AtomicInteger qtd = pendentes.get(chave);
+
+		if (qtd != null && qtd.decrementAndGet() <= 0)
+			pendentes.remove(chave, qtd);
+	}
+
+	/**
+	 * @return uma conexão ociosa para o SSH, ou null.
+	 */
+	public Connection take(SSH ssh) {
+		if (qtdOciosas.get() == 0)
+			return null;
+
+		List<Connection> vencidas = new ArrayList<Connection>();
+		Connection conexao = null;
+
+		synchronized (conexoes) {
+			ArrayDeque<Ociosa> fila = conexoes.get(chave(ssh));
+			long agora = System.currentTimeMillis();
+
+			while (fila != null && conexao == null && !fila.isEmpty()) {
+				Ociosa o = fila.poll();
+				qtdOciosas.decrementAndGet();
+
+				if (agora - o.desde > maxOciosa)
+					vencidas.add(o.conexao);
+				else
+					conexao = o.conexao;
+			}
+
+			if (fila != null && fila.isEmpty())
+				conexoes.remove(chave(ssh));
+		}
+
+		for (Connection c : vencidas)
+			c.close();
+
+		return conexao;
+	}
+
+	/**
+	 * Guarda a conexão se ainda há alvos pendentes com a chave do SSH; senão
+	 * fecha.
+	 */
+	public void give(SSH ssh, Connection conexao) {
+		List<Connection> vencidas = new ArrayList<Connection>();
+		String chave = chave(ssh);
+		boolean guardada = false;
+
+		synchronized (conexoes) {
+			long agora = System.currentTimeMillis();
+
+			if (agora - ultimaVarredura >= maxOciosa / 4) {
+				ultimaVarredura = agora;
+				varrer(agora, vencidas);
+			}
+
+			if (!fechado && pendentes.containsKey(chave)) {
+				ArrayDeque<Ociosa> fila = conexoes.get(chave);
+				if (fila == null) {
+					fila = new ArrayDeque<Ociosa>();
+					conexoes.put(chave, fila);
+				}
+				fila.add(new Ociosa(conexao));
+				qtdOciosas.incrementAndGet();
+				guardada = true;
+			}
+		}
+
+		for (Connection c : vencidas)
+			c.close();
+
+		if (!guardada)
+			conexao.close();
+	}
+
+	/**
+	 * Registra que o servidor não oferece "password" para o host:port e
+	 * usuário do SSH; os próximos nem conectam.
+	 */
+	public void marcarSemSenha(SSH ssh) {
+		semSenha.add(chave(ssh));
+	}
+
+	public boolean isSemSenha(SSH ssh) {
+		return !semSenha.isEmpty() && semSenha.contains(chave(ssh));
+	}
+
+	/**
+	 * @return quantas conexões estão guardadas, somando todas as chaves.
+	 */
+	public int size() {
+		return qtdOciosas.get();
+	}
+
+	/**
+	 * Fecha as ociosas; o que for devolvido depois é fechado na hora.
+	 */
+	public void close() {
+		List<Connection> lista = new ArrayList<Connection>();
+
+		synchronized (conexoes) {
+			fechado = true;
+
+			for (Iterator<ArrayDeque<Ociosa>> it = conexoes.values().iterator(); it.hasNext();) {
+				for (Ociosa o : it.next())
+					lista.add(o.conexao);
+				it.remove();
+			}
+			qtdOciosas.set(0);
+		}
+
+		for (Connection c : lista)
+			c.close();
+	}
+
+	/**
+	 * Tira as vencidas de todas as chaves, e as de chaves sem alvo pendente.
+	 * As filas estão em ordem de chegada, então as vencidas ficam no início.
+	 */
+	private void varrer(long agora, List<Connection> vencidas) {
+		for (Iterator<Map.Entry<String, ArrayDeque<Ociosa>>> it = conexoes.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, ArrayDeque<Ociosa>> e = it.next();
+			ArrayDeque<Ociosa> fila = e.getValue();
+			boolean semAlvo = !pendentes.containsKey(e.getKey());
+
+			while (!fila.isEmpty() && (semAlvo || agora - fila.peek().desde > maxOciosa)) {
+				vencidas.add(fila.poll().conexao);
+				qtdOciosas.decrementAndGet();
+			}
+
+			if (fila.isEmpty())
+				it.remove();
+		}
+	}
+
+	static String chave(SSH ssh) {
+		return ssh.getHost().toLowerCase() + ":" + ssh.getPort() + ":" + ssh.getUser();
+	}
+
+	private static class Ociosa {
+		private final Connection conexao;
+		private final long desde = System.currentTimeMillis();
+
+		public Ociosa(Connection conexao) {
+			this.conexao = conexao;
+		}
+	}
+}
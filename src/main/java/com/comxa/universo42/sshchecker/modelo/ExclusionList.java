@@ -0,0 +1,502 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Redes (CIDR IPv4 e IPv6) que nunca devem ser checadas. Os prefixos ficam
+ * numa trie binária compactada (cada nó guarda o trecho de bits inteiro até
+ * a próxima bifurcação), em arrays de primitivos, então uma consulta lê
+ * poucos nós mesmo com 100 mil prefixos.
+ *
+ * IPv4 escrito de outro jeito que o resolvedor ainda aceita ("010.0.0.1",
+ * "10.1", "0xa000001") é lido como ele leria; texto que parece numérico mas
+ * não é um IPv4 válido é tratado como excluído. Hostnames não são resolvidos
+ * aqui: o checker confere o endereço resolvido com contains(InetAddress)
+ * antes de conectar. contains() pode ser chamado de várias threads depois
+ * de carregada.
+ */
+public class ExclusionList {
+	private static final int IPV4 = 0;
+	private static final int IPV6 = 1;
+
+	private final int[] raizes = {-1, -1};
+
+	/* Nós: prefixo em 128 bits (hi, lo), tamanho em bits e filhos 0/1 */
+	private int qtdNos;
+	private long[] his = new long[64];
+	private long[] los = new long[64];
+	private int[] tamanhos = new int[64];
+	private int[] filhos = new int[128];
+	private boolean[] terminais = new boolean[64];
+
+	private int qtdPrefixos;
+	private final AtomicInteger qtdExcluidos = new AtomicInteger();
+
+	/**
+	 * Uma rede por linha; '#' começa um comentário e linhas que não são
+	 * redes são ignoradas.
+	 *
+	 * @return quantas redes foram lidas.
+	 */
+	public int load(File arquivo) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(arquivo));
+		int qtd = 0;
+
+		try {
+			String linha;
+
+			while ((linha = reader.readLine()) != null) {
+				int aux = linha.indexOf('#');
+				if (aux != -1)
+					linha = linha.substring(0, aux);
+
+				linha = linha.trim();
+
+				if (linha.length() > 0 && add(linha))
+					qtd++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		return qtd;
+	}
+
+	/**
+	 * @param rede "10.0.0.0/8", "2001:db8::/32" ou um endereço só.
+	 * @return false se o texto não é uma rede.
+	 */
+	public boolean add(String rede) {
+		int aux = rede.indexOf('/');
+		String endereco = (aux != -1) ? rede.substring(0, aux) : rede;
+		int bits = -1;
+
+		if (aux != -1) {
+			try {
+				bits = Integer.parseInt(rede.substring(aux + 1));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+
+		long ip = TargetTable.parseIPv4(endereco);
+
+		if (ip != -1) {
+			if (bits == -1)
+				bits = 32;
+			if (bits < 0 || bits > 32)
+				return false;
+
+			inserir(IPV4, ip << 32, 0, bits);
+			return true;
+		}
+
+		long[] ip6 = parseIPv6(endereco);
+
+		if (ip6 == null)
+			return false;
+		if (bits == -1)
+			bits = 128;
+		if (bits < 0 || bits > 128)
+			return false;
+
+		inserir(IPV6, ip6[0], ip6[1], bits);
+		return true;
+	}
+
+	public boolean contains(int ip) {
+		return buscar(IPV4, (ip & 0xffffffffL) << 32, 0);
+	}
+
+	/**
+	 * @return se o endereço (já resolvido) está dentro de alguma rede.
+	 */
+	public boolean contains(InetAddress addr) {
+		byte[] b = addr.getAddress();
+
+		if (b.length == 4)
+			return contains((b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff));
+
+		long hi = 0;
+		long lo = 0;
+		for (int i = 0; i < 8; i++) {
+			hi = hi << 8 | (b[i] & 0xff);
+			lo = lo << 8 | (b[i + 8] & 0xff);
+		}
+
+		return ipv6(hi, lo);
+	}
+
+	/**
+	 * @return se host é um IPv4/IPv6 literal dentro de alguma rede, ou parece
+	 *         um IPv4 mas não é válido.
+	 */
+	public boolean contains(String host) {
+		long ip = TargetTable.parseIPv4(host);
+
+		if (ip != -1)
+			return contains((int) ip);
+
+		if (host.indexOf(':') == -1) {
+			if (!pareceIPv4(host))
+				return false;
+
+			/* "010" é 8 para o inet_aton e 10 para o InetAddress do Java */
+			long octal = parseIPv4Livre(host, true);
+			long decimal = parseIPv4Livre(host, false);
+
+			/* Não dá para saber onde cairia: na dúvida, excluído */
+			if (octal == -1 && decimal == -1)
+				return raizes[IPV4] != -1;
+
+			return (octal != -1 && contains((int) octal)) || (decimal != -1 && contains((int) decimal));
+		}
+
+		if (host.startsWith("[") && host.endsWith("]"))
+			host = host.substring(1, host.length() - 1);
+
+		long[] ip6 = parseIPv6(host);
+
+		if (ip6 == null)
+			return false;
+
+		return ipv6(ip6[0], ip6[1]);
+	}
+
+	boolean exclui(InetAddress addr) {
+		if (!contains(addr))
+			return false;
+
+		qtdExcluidos.incrementAndGet();
+		return true;
+	}
+
+	private boolean ipv6(long hi, long lo) {
+		/* ::ffff:a.b.c.d é o IPv4 */
+		if (hi == 0 && (lo >>> 32) == 0xffffL && contains((int) lo))
+			return true;
+
+		return buscar(IPV6, hi, lo);
+	}
+
+	/**
+	 * @return se todas as partes (1 a 4, separadas por '.') começam com um
+	 *         dígito e só têm dígitos hexadecimais ou 'x': um nome assim
+	 *         nunca é um hostname de verdade.
+	 */
+	static boolean pareceIPv4(String host) {
+		int partes = 1;
+		boolean inicio = true;
+
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+
+			if (c == '.') {
+				if (++partes > 4)
+					return false;
+				inicio = true;
+				continue;
+			}
+
+			if (inicio && (c < '0' || c > '9'))
+				return false;
+			if (Character.digit(c, 16) == -1 && c != 'x' && c != 'X')
+				return false;
+			inicio = false;
+		}
+
+		return !inicio;
+	}
+
+	/**
+	 * IPv4 no formato do inet_aton: "a.b.c.d", "a.b.c" (c de 16 bits), "a.b"
+	 * (b de 24 bits) ou "a" (32 bits), cada parte decimal ou hexadecimal
+	 * ("0x"). Com octal, zeros à esquerda fazem a parte ser octal, como no
+	 * inet_aton; sem, ela é decimal, como no InetAddress do Java.
+	 *
+	 * @return o IPv4 sem sinal, ou -1.
+	 */
+	static long parseIPv4Livre(String host, boolean octal) {
+		String[] partes = host.split("\\.", -1);
+		long[] valores = new long[partes.length];
+
+		if (partes.length > 4)
+			return -1;
+
+		for (int i = 0; i < partes.length; i++) {
+			String p = partes[i];
+			int base = 10;
+
+			if (p.length() > 2 && (p.startsWith("0x") || p.startsWith("0X"))) {
+				p = p.substring(2);
+				base = 16;
+			} else if (octal && p.length() > 1 && p.charAt(0) == '0') {
+				p = p.substring(1);
+				base = 8;
+			}
+
+			if (p.length() == 0 || p.length() > 11)
+				return -1;
+
+			try {
+				valores[i] = Long.parseLong(p, base);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		long ip = 0;
+		int ultima = partes.length - 1;
+
+		for (int i = 0; i < ultima; i++) {
+			if (valores[i] > 0xff)
+				return -1;
+			ip |= valores[i] << (24 - 8 * i);
+		}
+
+		/* A última parte preenche os bits que sobram */
+		if (valores[ultima] > (0xffffffffL >>> (8 * ultima)))
+			return -1;
+
+		return ip | valores[ultima];
+	}
+
+	/**
+	 * Como contains(), contando o alvo em getQtdExcluded().
+	 */
+	boolean exclui(int ip) {
+		if (!contains(ip))
+			return false;
+
+		qtdExcluidos.incrementAndGet();
+		return true;
+	}
+
+	boolean exclui(String host) {
+		if (!contains(host))
+			return false;
+
+		qtdExcluidos.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return quantas redes há na lista.
+	 */
+	public int size() {
+		return this.qtdPrefixos;
+	}
+
+	/**
+	 * @return quantos alvos foram descartados por estarem numa rede da lista.
+	 */
+	public int getQtdExcluded() {
+		return qtdExcluidos.get();
+	}
+
+	private void inserir(int familia, long hi, long lo, int tam) {
+		qtdPrefixos++;
+
+		int no = raizes[familia];
+		int pai = -1;
+		int lado = 0;
+
+		if (no == -1) {
+			raizes[familia] = novo(hi, lo, tam, true);
+			return;
+		}
+
+		while (true) {
+			int comum = comum(hi, lo, his[no], los[no], Math.min(tam, tamanhos[no]));
+
+			if (comum == tamanhos[no]) {
+				/* Já coberto por uma rede maior */
+				if (terminais[no])
+					return;
+
+				if (tam == comum) {
+					terminais[no] = true;
+					filhos[no * 2] = filhos[no * 2 + 1] = -1;
+					return;
+				}
+
+				int b = bit(hi, lo, comum);
+				int filho = filhos[no * 2 + b];
+
+				if (filho == -1) {
+					/* novo() pode trocar o array: nada de filhos[..] = novo(..) */
+					filho = novo(hi, lo, tam, true);
+					filhos[no * 2 + b] = filho;
+					return;
+				}
+
+				pai = no;
+				lado = b;
+				no = filho;
+				continue;
+			}
+
+			int ramo;
+
+			if (comum == tam) {
+				/* A nova rede cobre o nó inteiro, que deixa de ser preciso */
+				ramo = novo(hi, lo, tam, true);
+			} else {
+				ramo = novo(hi, lo, comum, false);
+				int folha = novo(hi, lo, tam, true);
+				filhos[ramo * 2 + bit(his[no], los[no], comum)] = no;
+				filhos[ramo * 2 + bit(hi, lo, comum)] = folha;
+			}
+
+			if (pai == -1)
+				raizes[familia] = ramo;
+			else
+				filhos[pai * 2 + lado] = ramo;
+			return;
+		}
+	}
+
+	private boolean buscar(int familia, long hi, long lo) {
+		int no = raizes[familia];
+
+		while (no != -1) {
+			int tam = tamanhos[no];
+
+			if (comum(hi, lo, his[no], los[no], tam) < tam)
+				return false;
+			if (terminais[no])
+				return true;
+
+			no = filhos[no * 2 + bit(hi, lo, tam)];
+		}
+		return false;
+	}
+
+	private int novo(long hi, long lo, int tam, boolean terminal) {
+		if (qtdNos == his.length) {
+			int n = qtdNos * 2;
+			his = Arrays.copyOf(his, n);
+			los = Arrays.copyOf(los, n);
+			tamanhos = Arrays.copyOf(tamanhos, n);
+			terminais = Arrays.copyOf(terminais, n);
+			filhos = Arrays.copyOf(filhos, n * 2);
+		}
+
+		/* Só os bits do prefixo */
+		his[qtdNos] = (tam >= 64) ? hi : (tam == 0 ? 0 : hi & (-1L << (64 - tam)));
+		los[qtdNos] = (tam <= 64) ? 0 : (tam == 128 ? lo : lo & (-1L << (128 - tam)));
+		tamanhos[qtdNos] = tam;
+		terminais[qtdNos] = terminal;
+		filhos[qtdNos * 2] = filhos[qtdNos * 2 + 1] = -1;
+
+		return qtdNos++;
+	}
+
+	/**
+	 * @return quantos bits iniciais a e b têm em comum, até max.
+	 */
+	private static int comum(long aHi, long aLo, long bHi, long bLo, int max) {
+		long x = aHi ^ bHi;
+
+		if (x != 0)
+			return Math.min(Long.numberOfLeadingZeros(x), max);
+
+		x = aLo ^ bLo;
+
+		if (x != 0)
+			return Math.min(64 + Long.numberOfLeadingZeros(x), max);
+
+		return max;
+	}
+
+	private static int bit(long hi, long lo, int i) {
+		return (int) ((i < 64) ? (hi >>> (63 - i)) & 1 : (lo >>> (127 - i)) & 1);
+	}
+
+	/**
+	 * @return {hi, lo}, ou null se não é um IPv6. Aceita "::" e um IPv4 no
+	 *         final (ex: ::ffff:1.2.3.4).
+	 */
+	static long[] parseIPv6(String s) {
+		int[] grupos = new int[8];
+		int qtd = 0;
+		int duplo = -1;
+		int i = 0;
+		int len = s.length();
+
+		if (s.startsWith("::")) {
+			duplo = 0;
+			i = 2;
+		}
+
+		while (i < len) {
+			int ini = i;
+			int valor = 0;
+
+			while (i < len && i - ini < 4 && Character.digit(s.charAt(i), 16) != -1)
+				valor = (valor << 4) | Character.digit(s.charAt(i++), 16);
+
+			/* IPv4 no lugar dos dois últimos grupos */
+			if (i < len && s.charAt(i) == '.') {
+				long ip = TargetTable.parseIPv4(s.substring(ini));
+
+				if (ip == -1 || qtd > 6)
+					return null;
+
+				grupos[qtd++] = (int) (ip >>> 16);
+				grupos[qtd++] = (int) (ip & 0xffff);
+				i = len;
+				break;
+			}
+
+			if (i == ini || qtd == 8)
+				return null;
+
+			grupos[qtd++] = valor;
+
+			if (i == len)
+				break;
+			if (s.charAt(i) != ':')
+				return null;
+
+			i++;
+
+			if (i < len && s.charAt(i) == ':') {
+				if (duplo != -1)
+					return null;
+				duplo = qtd;
+				i++;
+			} else if (i == len) {
+				return null;
+			}
+		}
+
+		if (duplo == -1 && qtd != 8)
+			return null;
+		if (duplo != -1 && qtd > 7)
+			return null;
+
+		/* Os grupos depois de "::" vão para o fim */
+		if (duplo != -1) {
+			int depois = qtd - duplo;
+			System.arraycopy(grupos, duplo, grupos, 8 - depois, depois);
+			Arrays.fill(grupos, duplo, 8 - depois, 0);
+		}
+
+		long hi = 0;
+		long lo = 0;
+
+		for (int g = 0; g < 4; g++) {
+			hi = (hi << 16) | grupos[g];
+			lo = (lo << 16) | grupos[g + 4];
+		}
+
+		return new long[] {hi, lo};
+	}
+}
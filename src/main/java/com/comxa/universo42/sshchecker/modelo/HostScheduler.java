@@ -0,0 +1,301 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fica entre a lista e SSH.check(): limita as verificações simultâneas por
+ * host:port (o MaxStartups do OpenSSH derruba conexões não autenticadas a
+ * partir de ~10 pendentes) e a taxa global de novas conexões TCP com um
+ * token bucket. SSHs de um host lotado esperam numa fila do host e são
+ * liberados, já admitidos, quando uma verificação daquele host termina.
+ * <p>
+ * O total de adiados é limitado: com a fila cheia (ex: uma lista só com
+ * poucos hosts) isFull() diz para parar de puxar alvos da fonte até algum
+ * adiado sair.
+ * <p>
+ * Sem limite por host (o padrão do SSHchecker) nada disso custa: cada método
+ * retorna na hora. Com limite, os hosts em andamento ficam divididos em
+ * partes com lock próprio, e pollReady()/isFull() são só leituras enquanto
+ * não há adiados.
+ */
+public class HostScheduler {
+	/* Valor sugerido para setMaxPerHost(); o SSHchecker vem sem limite */
+	public static final int DEFAULT_MAX_POR_HOST = 5;
+	public static final int DEFAULT_MAX_ADIADOS = 10000;
+	/* Hosts em andamento ficam em partes com lock próprio, pelo hash */
+	private static final int PARTES = 32;
+
+	private final int maxPorHost;
+	private final int maxAdiados;
+	private final double conexoesPorSegundo;
+	private final double burst;
+
+	/* Só para o token bucket e para quem espera um pronto */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition prontoDisponivel = lock.newCondition();
+	private final Condition tokenDisponivel = lock.newCondition();
+
+	private final Parte[] partes = new Parte[PARTES];
+	private final ConcurrentLinkedQueue<SSH> prontos = new ConcurrentLinkedQueue<SSH>();
+	private final AtomicInteger qtdAdiados = new AtomicInteger();
+	private volatile boolean fechado;
+
+	private double tokens;
+	private long ultimaRecarga;
+
+	private static class Parte {
+		final ReentrantLock lock = new ReentrantLock();
+		final Map<String, Integer> emAndamento = new HashMap<String, Integer>();
+		final Map<String, ArrayDeque<SSH>> adiados = new HashMap<String, ArrayDeque<SSH>>();
+	}
+
+	/**
+	 * @param maxPorHost 0 para não limitar.
+	 * @param conexoesPorSegundo 0 para não limitar.
+	 */
+	public HostScheduler(int maxPorHost, double conexoesPorSegundo) {
+		this(maxPorHost, conexoesPorSegundo, DEFAULT_MAX_ADIADOS);
+	}
+
+	/**
+	 * @param maxAdiados total de SSHs esperando vaga em seus hosts, somando
+	 *            todos os hosts.
+	 */
+	public HostScheduler(int maxPorHost, double conexoesPorSegundo, int maxAdiados) {
+		if (maxAdiados < 1)
+			throw new IllegalArgumentException("maxAdiados < 1");
+
+		this.maxPorHost = maxPorHost;
+		this.maxAdiados = maxAdiados;
+		this.conexoesPorSegundo = conexoesPorSegundo;
+		this.burst = Math.max(1, conexoesPorSegundo);
+		this.tokens = burst;
+		this.ultimaRecarga = System.nanoTime();
+
+		for (int i = 0; i < PARTES; i++)
+			partes[i] = new Parte();
+	}
+
+	/**
+	 * Admite o SSH se o host tem vaga. Só deve ser chamado com !isFull(); a
+	 * fila aceita o SSH mesmo cheia, para não perdê-lo.
+	 *
+	 * @return false se ele foi para a fila do host; sairá por pollReady().
+	 */
+	public boolean offer(SSH ssh) {
+		if (maxPorHost <= 0)
+			return true;
+
+		String host = chave(ssh);
+		Parte parte = parte(host);
+
+		parte.lock.lock();
+		try {
+			Integer qtd = parte.emAndamento.get(host);
+
+			if (qtd == null || qtd < maxPorHost) {
+				parte.emAndamento.put(host, qtd == null ? 1 : qtd + 1);
+				return true;
+			}
+
+			ArrayDeque<SSH> fila = parte.adiados.get(host);
+			if (fila == null) {
+				fila = new ArrayDeque<SSH>();
+				parte.adiados.put(host, fila);
+			}
+			fila.add(ssh);
+			qtdAdiados.incrementAndGet();
+			return false;
+		} finally {
+			parte.lock.unlock();
+		}
+	}
+
+	/**
+	 * Sem lock: com nada pronto é só uma leitura.
+	 *
+	 * @return um SSH adiado cujo host liberou vaga, já admitido.
+	 */
+	public SSH pollReady() {
+		if (maxPorHost <= 0)
+			return null;
+
+		return prontos.poll();
+	}
+
+	/**
+	 * Libera a vaga do host; o próximo adiado dele (se houver) herda a vaga.
+	 */
+	public void done(SSH ssh) {
+		if (maxPorHost <= 0)
+			return;
+
+		String host = chave(ssh);
+		Parte parte = parte(host);
+		SSH proximo = null;
+
+		parte.lock.lock();
+		try {
+			ArrayDeque<SSH> fila = parte.adiados.get(host);
+
+			if (fila != null) {
+				proximo = fila.poll();
+
+				if (fila.isEmpty())
+					parte.adiados.remove(host);
+			} else {
+				int qtd = parte.emAndamento.get(host) - 1;
+
+				if (qtd == 0)
+					parte.emAndamento.remove(host);
+				else
+					parte.emAndamento.put(host, qtd);
+			}
+		} finally {
+			parte.lock.unlock();
+		}
+
+		if (proximo == null)
+			return;
+
+		prontos.add(proximo);
+		int restantes = qtdAdiados.decrementAndGet();
+
+		lock.lock();
+		try {
+			/* Sem adiados, quem espera em awaitReady() pode sair */
+			if (restantes == 0)
+				prontoDisponivel.signalAll();
+			else
+				prontoDisponivel.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true se a fila de adiados chegou ao limite: não puxe mais alvos
+	 *         antes de um deles sair (awaitReady()/pollReady()).
+	 */
+	public boolean isFull() {
+		return maxPorHost > 0 && qtdAdiados.get() >= maxAdiados;
+	}
+
+	/**
+	 * @return true se ainda há SSHs adiados ou prontos.
+	 */
+	public boolean hasPending() {
+		return maxPorHost > 0 && (qtdAdiados.get() > 0 || !prontos.isEmpty());
+	}
+
+	/**
+	 * Espera um adiado ficar pronto.
+	 *
+	 * @return false se fechado ou se não há nada adiado.
+	 */
+	public boolean awaitReady() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!fechado && prontos.isEmpty() && qtdAdiados.get() > 0)
+				prontoDisponivel.await();
+
+			return !fechado && !prontos.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Espera um token de nova conexão.
+	 *
+	 * @return false se fechado.
+	 */
+	public boolean takeToken() throws InterruptedException {
+		if (conexoesPorSegundo <= 0)
+			return !fechado;
+
+		lock.lock();
+		try {
+			while (!fechado) {
+				recarregar();
+
+				if (tokens >= 1) {
+					tokens--;
+					return true;
+				}
+
+				long espera = (long) ((1 - tokens) / conexoesPorSegundo * 1000000000L);
+				tokenDisponivel.awaitNanos(Math.max(espera, TimeUnit.MILLISECONDS.toNanos(1)));
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean tryToken() {
+		if (conexoesPorSegundo <= 0)
+			return !fechado;
+
+		lock.lock();
+		try {
+			recarregar();
+
+			if (fechado || tokens < 1)
+				return false;
+
+			tokens--;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Devolve um token não usado (ex: não havia alvo).
+	 */
+	public void refundToken() {
+		if (conexoesPorSegundo <= 0)
+			return;
+
+		lock.lock();
+		try {
+			tokens = Math.min(burst, tokens + 1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() {
+		lock.lock();
+		try {
+			fechado = true;
+			prontoDisponivel.signalAll();
+			tokenDisponivel.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void recarregar() {
+		long agora = System.nanoTime();
+		tokens = Math.min(burst, tokens + (agora - ultimaRecarga) * conexoesPorSegundo / 1000000000L);
+		ultimaRecarga = agora;
+	}
+
+	private Parte parte(String host) {
+		int h = host.hashCode();
+		return partes[(h ^ (h >>> 16)) & (PARTES - 1)];
+	}
+
+	private static String chave(SSH ssh) {
+		return ssh.getChaveServidor();
+	}
+}
@@ -0,0 +1,162 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Acha IPv4 (com ":porta" opcional) em texto livre numa única passada, sem
+ * voltar atrás, um byte/char por vez. A entrada pode vir em pedaços: o estado
+ * continua de um scan() para o outro até end().
+ *
+ * Um IP são quatro octetos de 1 a 3 dígitos (até 255) separados por '.', sem
+ * dígito colado antes ou depois. A porta são até 5 dígitos logo após ':'
+ * (de 1 a 65535); com mais dígitos o IP sai SEM_PORTA.
+ */
+abstract class IpScanner {
+	public static final int SEM_PORTA = -1;
+	private static final int BLOCO = 64 * 1024;
+
+	private static final int FORA = 0;
+	private static final int OCTETO = 1;
+	private static final int PORTA = 2;
+	/* Dígitos que não podem começar um IP (ex: meio de um número) */
+	private static final int NUMERO = 3;
+
+	private int estado = FORA;
+	private int ip;
+	private int octetos;
+	private int valor;
+	private int digitos;
+	private int port;
+
+	/**
+	 * @param port SEM_PORTA se não havia ":porta" válida.
+	 */
+	abstract void onIp(int ip, int port);
+
+	public void scan(byte[] b, int off, int len) {
+		int fim = off + len;
+
+		for (int i = off; i < fim; i++) {
+			/* Fora de um IP a maior parte dos bytes é só pulada */
+			if (estado == FORA && (b[i] < '0' || b[i] > '9'))
+				continue;
+
+			passo(b[i]);
+		}
+	}
+
+	public void scan(CharSequence s) {
+		int len = s.length();
+
+		for (int i = 0; i < len; i++)
+			passo(s.charAt(i));
+	}
+
+	public void scan(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+
+		try {
+			byte[] buffer = new byte[BLOCO];
+			int len;
+
+			while ((len = in.read(buffer)) != -1)
+				scan(buffer, 0, len);
+		} finally {
+			in.close();
+		}
+
+		end();
+	}
+
+	/**
+	 * Fim da entrada: emite o IP que estava terminando e volta ao início.
+	 */
+	public void end() {
+		passo(' ');
+		estado = FORA;
+	}
+
+	private void passo(int c) {
+		boolean digito = c >= '0' && c <= '9';
+
+		switch (estado) {
+			case NUMERO:
+				if (digito)
+					return;
+				estado = FORA;
+				return;
+
+			case OCTETO:
+				if (digito) {
+					valor = valor * 10 + (c - '0');
+
+					if (++digitos > 3 || valor > 255)
+						estado = NUMERO;
+					return;
+				}
+
+				/* Octeto vazio, ex: "1..2" */
+				if (digitos == 0) {
+					estado = FORA;
+					return;
+				}
+
+				ip = (ip << 8) | valor;
+				octetos++;
+
+				if (octetos < 4) {
+					if (c == '.') {
+						valor = 0;
+						digitos = 0;
+					} else {
+						estado = FORA;
+					}
+					return;
+				}
+
+				if (c == ':') {
+					port = 0;
+					digitos = 0;
+					estado = PORTA;
+					return;
+				}
+
+				onIp(ip, SEM_PORTA);
+				estado = FORA;
+				return;
+
+			case PORTA:
+				if (digito) {
+					if (digitos < 5) {
+						port = port * 10 + (c - '0');
+						digitos++;
+						return;
+					}
+
+					/* 6º dígito: é outro número, não uma porta cortada */
+					onIp(ip, SEM_PORTA);
+					estado = NUMERO;
+					return;
+				}
+
+				onIp(ip, (digitos > 0 && port > 0 && port <= 65535) ? port : SEM_PORTA);
+				estado = FORA;
+				return;
+
+			default:
+				if (digito) {
+					ip = 0;
+					octetos = 0;
+					valor = c - '0';
+					digitos = 1;
+					estado = OCTETO;
+				}
+		}
+	}
+
+	public static String toString(int ip) {
+		return ((ip >>> 24) & 0xff) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+	}
+}
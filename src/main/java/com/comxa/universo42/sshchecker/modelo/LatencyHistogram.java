@@ -0,0 +1,87 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma log-linear (no estilo do HdrHistogram): até 64 os valores têm
+ * faixa própria e cada potência de 2 acima é dividida em 32 faixas iguais,
+ * então um valor fica na sua faixa com erro de até ~3%. add() são só
+ * incrementos atômicos, sem lock: as threads dos workers gravam direto.
+ */
+public class LatencyHistogram {
+	private static final int BITS_SUB = 5;
+	private static final int SUB = 1 << BITS_SUB;
+	/* Acima disso (~25 dias em microssegundos) conta como o máximo */
+	private static final long LIMITE = (1L << 41) - 1;
+	private static final int QTD_FAIXAS = indice(LIMITE) + 1;
+
+	private final AtomicLongArray contagens = new AtomicLongArray(QTD_FAIXAS);
+	private final AtomicLong qtd = new AtomicLong();
+	private final AtomicLong soma = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param valor ignorado se negativo.
+	 */
+	public void add(long valor) {
+		if (valor < 0)
+			return;
+
+		contagens.incrementAndGet(indice(Math.min(valor, LIMITE)));
+		qtd.incrementAndGet();
+		soma.addAndGet(valor);
+
+		long m;
+		while (valor > (m = max.get()) && !max.compareAndSet(m, valor));
+	}
+
+	public long getCount() {
+		return qtd.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = qtd.get();
+		return (n == 0) ? 0 : (double) soma.get() / n;
+	}
+
+	/**
+	 * @param p de 0 a 100.
+	 * @return o valor no percentil p (meio da faixa), ou 0 se vazio.
+	 */
+	public long getPercentile(double p) {
+		long n = qtd.get();
+
+		if (n == 0)
+			return 0;
+
+		long alvo = Math.max(1, (long) Math.ceil(p / 100 * n));
+		long acumulado = 0;
+
+		for (int i = 0; i < QTD_FAIXAS; i++) {
+			acumulado += contagens.get(i);
+
+			if (acumulado >= alvo)
+				return Math.min(meio(i), max.get());
+		}
+		return max.get();
+	}
+
+	private static int indice(long valor) {
+		int deslocamento = Math.max(0, 63 - Long.numberOfLeadingZeros(valor) - BITS_SUB);
+		return deslocamento * SUB + (int) (valor >>> deslocamento);
+	}
+
+	private static long meio(int indice) {
+		if (indice < 2 * SUB)
+			return indice;
+
+		int deslocamento = indice / SUB - 1;
+		long inicio = (long) (indice - deslocamento * SUB) << deslocamento;
+		return inicio + (1L << deslocamento) / 2;
+	}
+}
@@ -0,0 +1,118 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+/**
+ * Conjunto de longs com endereçamento aberto (sondagem linear) num único
+ * long[], sem boxing: ~8 bytes por elemento com a tabela até 3/4 cheia.
+ * Não é thread-safe.
+ */
+public class LongHashSet {
+	private static final int CAPACIDADE_INICIAL = 1024;
+
+	/* 0 marca posição vazia; o próprio 0 fica de fora da tabela */
+	private long[] tabela;
+	private boolean temZero;
+	private int qtd;
+	private int limite;
+
+	public LongHashSet() {
+		this(CAPACIDADE_INICIAL);
+	}
+
+	public LongHashSet(int capacidade) {
+		int tam = Integer.highestOneBit(Math.max(16, capacidade * 4 / 3) - 1) << 1;
+		alocar(tam);
+	}
+
+	/**
+	 * @return false se o valor já estava no conjunto.
+	 */
+	public boolean add(long valor) {
+		if (valor == 0) {
+			if (temZero)
+				return false;
+			temZero = true;
+			qtd++;
+			return true;
+		}
+
+		int mascara = tabela.length - 1;
+		int i = indice(valor, mascara);
+
+		while (tabela[i] != 0) {
+			if (tabela[i] == valor)
+				return false;
+			i = (i + 1) & mascara;
+		}
+
+		tabela[i] = valor;
+
+		if (++qtd > limite)
+			redimensionar();
+
+		return true;
+	}
+
+	public boolean contains(long valor) {
+		if (valor == 0)
+			return temZero;
+
+		int mascara = tabela.length - 1;
+		int i = indice(valor, mascara);
+
+		while (tabela[i] != 0) {
+			if (tabela[i] == valor)
+				return true;
+			i = (i + 1) & mascara;
+		}
+		return false;
+	}
+
+	public int size() {
+		return qtd;
+	}
+
+	public void clear() {
+		alocar(CAPACIDADE_INICIAL * 2);
+		temZero = false;
+		qtd = 0;
+	}
+
+	private void redimensionar() {
+		long[] antiga = tabela;
+		alocar(antiga.length * 2);
+
+		int mascara = tabela.length - 1;
+
+		for (long valor : antiga) {
+			if (valor == 0)
+				continue;
+
+			int i = indice(valor, mascara);
+			while (tabela[i] != 0)
+				i = (i + 1) & mascara;
+			tabela[i] = valor;
+		}
+	}
+
+	private void alocar(int tam) {
+		tabela = new long[tam];
+		limite = tam / 4 * 3;
+	}
+
+	/**
+	 * Espalha os bits (finalizador do MurmurHash3): chaves sequenciais, como
+	 * IPs de uma faixa, não podem cair em posições vizinhas.
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int indice(long valor, int mascara) {
+		return (int) mix(valor) & mascara;
+	}
+}
@@ -0,0 +1,468 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lê arquivos "host:port|user|pass" mapeados na memória, em pedaços
+ * terminados em quebra de linha e processados em paralelo. Delimitador e
+ * host:port são procurados direto nos bytes; só os campos viram String. O
+ * resultado é o mesmo do SSHloader.load() linha a linha.
+ *
+ * Cada pedaço gera uma parte T (ex: uma lista de SSHs), juntadas no fim na
+ * ordem do arquivo.
+ */
+abstract class MappedLineParser<T> {
+	/* Abaixo disso não compensa dividir */
+	public static final int MIN_PEDACO = 1024 * 1024;
+	public static final int MAX_PEDACO = 64 * 1024 * 1024;
+	private static final int BLOCO = 64 * 1024;
+
+	private final byte[] delimiter;
+	private final Charset charset;
+	private ExclusionList exclusao;
+
+	public MappedLineParser(String delimiter, Charset charset) {
+		this.delimiter = delimiter.getBytes(charset);
+		this.charset = charset;
+	}
+
+	/**
+	 * Linhas de host numa rede da lista são descartadas já nos pedaços.
+	 */
+	void setExclusion(ExclusionList exclusao) {
+		this.exclusao = exclusao;
+	}
+
+	boolean excluido(String host) {
+		return exclusao != null && exclusao.exclui(host);
+	}
+
+	abstract T novaParte();
+
+	/**
+	 * Recebe cada linha válida do pedaço, na ordem.
+	 */
+	abstract void add(T parte, Linha linha);
+
+	abstract T juntar(List<T> partes);
+
+	public T parse(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+			List<long[]> pedacos = dividir(channel);
+
+			if (pedacos.size() == 1)
+				return juntar(Collections.singletonList(parse(channel, pedacos.get(0)[0], pedacos.get(0)[1])));
+
+			return juntar(parseParalelo(channel, pedacos));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Divide o arquivo em pedaços de [início, fim) que terminam logo após um
+	 * '\n' (ou no fim do arquivo).
+	 */
+	private List<long[]> dividir(FileChannel channel) throws IOException {
+		long tamanho = channel.size();
+		int qtdThreads = Runtime.getRuntime().availableProcessors();
+		long pedaco = Math.max(MIN_PEDACO, Math.min(MAX_PEDACO, tamanho / (qtdThreads * 4L) + 1));
+		List<long[]> pedacos = new ArrayList<long[]>();
+		long inicio = 0;
+
+		while (inicio < tamanho) {
+			long fim = Math.min(tamanho, inicio + pedaco);
+
+			if (fim < tamanho)
+				fim = proximaLinha(channel, fim, tamanho);
+
+			pedacos.add(new long[] { inicio, fim });
+			inicio = fim;
+		}
+
+		if (pedacos.isEmpty())
+			pedacos.add(new long[] { 0, 0 });
+
+		return pedacos;
+	}
+
+	private static long proximaLinha(FileChannel channel, long pos, long tamanho) throws IOException {
+		while (pos < tamanho) {
+			int len = (int) Math.min(64 * 1024, tamanho - pos);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+
+			for (int i = 0; i < len; i++)
+				if (buf.get(i) == '\n')
+					return pos + i + 1;
+
+			pos += len;
+		}
+		return tamanho;
+	}
+
+	/**
+	 * Sem ForkJoinPool: ele não existe nas versões antigas do Android.
+	 */
+	private List<T> parseParalelo(final FileChannel channel, List<long[]> pedacos) throws IOException {
+		int qtdThreads = Math.min(pedacos.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(qtdThreads);
+
+		try {
+			List<Future<T>> futuros = new ArrayList<Future<T>>(pedacos.size());
+
+			for (final long[] p : pedacos) {
+				futuros.add(pool.submit(new Callable<T>() {
+					@Override
+					public T call() throws IOException {
+						return parse(channel, p[0], p[1]);
+					}
+				}));
+			}
+
+			List<T> partes = new ArrayList<T>(futuros.size());
+			for (Future<T> f : futuros)
+				partes.add(f.get());
+
+			return partes;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private T parse(FileChannel channel, long inicio, long fim) throws IOException {
+		T parte = novaParte();
+		Linha linha = new Linha();
+		int len = (int) (fim - inicio);
+
+		if (len == 0)
+			return parte;
+
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, inicio, len);
+		byte[] bloco = new byte[BLOCO];
+		/* Linha que começou num bloco e termina no seguinte */
+		byte[] resto = new byte[256];
+		int tamResto = 0;
+		long inicioResto = inicio;
+
+		while (buf.hasRemaining()) {
+			long posBloco = inicio + buf.position();
+			int n = Math.min(bloco.length, buf.remaining());
+			buf.get(bloco, 0, n);
+
+			int ini = 0;
+			for (int i = 0; i < n; i++) {
+				if (bloco[i] != '\n' && bloco[i] != '\r')
+					continue;
+
+				if (tamResto == 0) {
+					parseLinha(bloco, ini, i, posBloco + ini, parte, linha);
+				} else {
+					resto = emendar(resto, tamResto, bloco, ini, i);
+					parseLinha(resto, 0, tamResto + i - ini, inicioResto, parte, linha);
+					tamResto = 0;
+				}
+				ini = i + 1;
+			}
+
+			if (tamResto == 0)
+				inicioResto = posBloco + ini;
+
+			resto = emendar(resto, tamResto, bloco, ini, n);
+			tamResto += n - ini;
+		}
+
+		parseLinha(resto, 0, tamResto, inicioResto, parte, linha);
+		return parte;
+	}
+
+	private static byte[] emendar(byte[] resto, int tamResto, byte[] bloco, int ini, int fim) {
+		int tam = tamResto + fim - ini;
+
+		if (tam > resto.length) {
+			byte[] maior = new byte[Math.max(tam, resto.length * 2)];
+			System.arraycopy(resto, 0, maior, 0, tamResto);
+			resto = maior;
+		}
+
+		System.arraycopy(bloco, ini, resto, tamResto, fim - ini);
+		return resto;
+	}
+
+	/**
+	 * Mesmas regras de SSHloader.load() para a linha em b[ini, fim):
+	 * host[:port] delim user delim pass [delim ...], campos com trim().
+	 */
+	private void parseLinha(byte[] b, int ini, int fim, long offset, T parte, Linha linha) {
+		if (ini == fim)
+			return;
+
+		int d1 = indexOf(b, ini, fim);
+		if (d1 == -1)
+			return;
+
+		int d2 = indexOf(b, d1 + delimiter.length, fim);
+		if (d2 == -1)
+			return;
+
+		int inicioPass = d2 + delimiter.length;
+		int d3 = indexOf(b, inicioPass, fim);
+		int fimPass = (d3 != -1) ? d3 : fim;
+
+		int fimHost = d1;
+		int port = SSHbean.DEFAULT_PORT;
+
+		/* Igual a host.split(":") com exatamente 2 partes: ':' finais não contam */
+		int semFinais = d1;
+		while (semFinais > ini && b[semFinais - 1] == ':')
+			semFinais--;
+
+		int doisPontos = -1;
+		int qtdDoisPontos = 0;
+		for (int i = ini; i < semFinais; i++) {
+			if (b[i] == ':') {
+				doisPontos = i;
+				qtdDoisPontos++;
+			}
+		}
+
+		if (qtdDoisPontos == 1) {
+			fimHost = doisPontos;
+			int p = parsePort(b, doisPontos + 1, semFinais);
+			if (p != Integer.MIN_VALUE)
+				port = p;
+		}
+
+		linha.b = b;
+		linha.ini = ini;
+		linha.fim = fim;
+		linha.offset = offset;
+		linha.fimHost = fimHost;
+		linha.port = port;
+		linha.iniUser = d1 + delimiter.length;
+		linha.fimUser = d2;
+		linha.iniPass = inicioPass;
+		linha.fimPass = fimPass;
+		add(parte, linha);
+	}
+
+	private int indexOf(byte[] b, int de, int fim) {
+		int ultimo = fim - delimiter.length;
+
+		for (int i = de; i <= ultimo; i++) {
+			int j = 0;
+			while (j < delimiter.length && b[i + j] == delimiter[j])
+				j++;
+			if (j == delimiter.length)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Integer.MIN_VALUE onde Integer.valueOf() lançaria exceção.
+	 */
+	private static int parsePort(byte[] b, int inicio, int fim) {
+		boolean negativo = false;
+
+		if (inicio < fim && (b[inicio] == '-' || b[inicio] == '+')) {
+			negativo = b[inicio] == '-';
+			inicio++;
+		}
+
+		if (inicio == fim || fim - inicio > 10)
+			return Integer.MIN_VALUE;
+
+		long valor = 0;
+		for (int i = inicio; i < fim; i++) {
+			if (b[i] < '0' || b[i] > '9')
+				return Integer.MIN_VALUE;
+			valor = valor * 10 + (b[i] - '0');
+		}
+
+		if (negativo)
+			valor = -valor;
+
+		if (valor < Integer.MIN_VALUE + 1L || valor > Integer.MAX_VALUE)
+			return Integer.MIN_VALUE;
+
+		return (int) valor;
+	}
+
+	/**
+	 * Como String.trim(): descarta bytes <= ' ' nas pontas.
+	 */
+	private String campo(byte[] b, int inicio, int fim) {
+		while (inicio < fim && (b[inicio] & 0xff) <= ' ')
+			inicio++;
+		while (fim > inicio && (b[fim - 1] & 0xff) <= ' ')
+			fim--;
+
+		return new String(b, inicio, fim - inicio, charset);
+	}
+
+	/**
+	 * Uma linha válida: b[ini, fim), que começa no byte offset do arquivo.
+	 * Só vale durante add().
+	 */
+	class Linha {
+		byte[] b;
+		int ini;
+		int fim;
+		long offset;
+		int fimHost;
+		int port;
+		int iniUser;
+		int fimUser;
+		int iniPass;
+		int fimPass;
+
+		String host() {
+			return campo(b, ini, fimHost);
+		}
+
+		String user() {
+			return campo(b, iniUser, fimUser);
+		}
+
+		String pass() {
+			return campo(b, iniPass, fimPass);
+		}
+
+		String texto() {
+			return new String(b, ini, fim - ini, charset);
+		}
+	}
+
+	/**
+	 * Cada linha vira um SSH, como em SSHloader.load().
+	 */
+	static class Lista extends MappedLineParser<List<SSH>> {
+		private final TargetDedup dedup;
+
+		public Lista(String delimiter, Charset charset, TargetDedup dedup) {
+			super(delimiter, charset);
+			this.dedup = dedup;
+		}
+
+		@Override
+		List<SSH> novaParte() {
+			return new ArrayList<SSH>();
+		}
+
+		@Override
+		void add(List<SSH> parte, Linha linha) {
+			String host = linha.host();
+
+			if (!excluido(host))
+				parte.add(new SSH(host, linha.port, linha.user(), linha.pass(), linha.texto()));
+		}
+
+		@Override
+		List<SSH> juntar(List<List<SSH>> partes) {
+			int total = 0;
+			for (List<SSH> parte : partes)
+				total += parte.size();
+
+			List<SSH> sshs = new ArrayList<SSH>(total);
+			for (List<SSH> parte : partes) {
+				if (dedup == null) {
+					sshs.addAll(parte);
+					continue;
+				}
+
+				for (SSH ssh : parte)
+					if (dedup.novo(ssh))
+						sshs.add(ssh);
+			}
+
+			return sshs;
+		}
+	}
+
+	/**
+	 * As linhas vão para uma TargetTable, que guarda só a posição delas.
+	 */
+	static class Tabela extends MappedLineParser<TargetTable> {
+		private final File file;
+		private final String delimiter;
+		private final Charset charset;
+		private final TargetDedup dedup;
+
+		public Tabela(File file, String delimiter, Charset charset, TargetDedup dedup) {
+			super(delimiter, charset);
+			this.file = file;
+			this.delimiter = delimiter;
+			this.charset = charset;
+			this.dedup = dedup;
+		}
+
+		@Override
+		TargetTable novaParte() {
+			return new TargetTable();
+		}
+
+		@Override
+		void add(TargetTable parte, Linha linha) {
+			String host = linha.host();
+
+			if (excluido(host))
+				return;
+
+			String user = linha.user();
+			String pass = linha.pass();
+
+			if (!parte.add(host, linha.port, user, pass, linha.offset, linha.fim - linha.ini))
+				parte.addAvulso(new SSH(host, linha.port, user, pass, linha.texto()));
+
+			/* Só a chave é calculada aqui, em paralelo; a checagem é em juntar() */
+			if (dedup != null)
+				parte.setChave(dedup.chave(host, linha.port, user, pass));
+		}
+
+		@Override
+		TargetTable juntar(List<TargetTable> partes) {
+			TargetTable tabela;
+			int i;
+
+			/* Sem dedup a primeira parte já serve de base */
+			if (dedup == null) {
+				tabela = partes.get(0);
+				i = 1;
+			} else {
+				tabela = new TargetTable();
+				i = 0;
+			}
+
+			/* Solta cada parte logo depois de copiada */
+			for (; i < partes.size(); i++)
+				tabela.addAll(partes.set(i, null), dedup);
+
+			tabela.setSource(file, charset, delimiter);
+			return tabela;
+		}
+	}
+}
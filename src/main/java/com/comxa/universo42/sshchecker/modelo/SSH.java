@@ -1,13 +1,29 @@
 package com.comxa.universo42.sshchecker.modelo;
 
 import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionTimings;
 import com.trilead.ssh2.HTTPProxyData;
+import com.trilead.ssh2.transport.KexParameters;
+import com.trilead.ssh2.util.DnsCache;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 public class SSH extends SSHbean implements Runnable {
 	public static final int TIMEOUT_TCP_CONNECTION = 10000;
 	public static final int TIMEOUT_SSH_CONNECTION = 15000;
+
+	/* O que check() verifica */
+	public static final int MODE_PASSWORD = 0;
+	public static final int MODE_BANNER = 1;
+	public static final int MODE_KEXINIT = 2;
+	public static final int MODE_AUTH_METHODS = 3;
+
+	public static final String MSG_SEM_SENHA = "Authentication method password not supported by the server at this stage.";
+	public static final String MSG_EXCLUIDO = "The address is in an excluded network.";
 	
 	private String proxyHost;
 	private int proxyPort;
@@ -15,8 +31,25 @@ public class SSH extends SSHbean implements Runnable {
 	private boolean isStopped;
 	private boolean isComplete;
 	private boolean isOn;
-	private Connection conexao;
+	private volatile Connection conexao;
 	private Exception e;
+	private long connectTime = -1;
+	/* Microssegundos de cada fase (ver ConnectionTimings); null se nenhuma */
+	private long[] tempos;
+	/* Microssegundos de CPU de cada tipo (ver ConnectionTimings.CPU_*) */
+	private long[] cpu;
+	/* Nanos de CPU que a conexão reaproveitada já tinha ao sair do pool */
+	private long[] cpuAntes;
+	private String endereco;
+	private Semaphore limiteKex;
+	private ThreadFactory threadFactory;
+	private ExclusionList exclusao;
+	private String chaveServidor;
+	private boolean reaproveitada;
+	private int mode = MODE_PASSWORD;
+	private String serverVersion;
+	private KexParameters serverKex;
+	private String[] authMethods;
 
 	public SSH(String serial) {
 		super(serial);
@@ -44,10 +77,71 @@ public class SSH extends SSHbean implements Runnable {
 			new Thread(this).start();
 	}
 
+	void check(ConnectionPool pool) {
+		run(pool);
+	}
+
 	public void stopCheck() {
 		isStopped = true;
-		if (this.conexao != null)
-			this.conexao.closeHard();
+		Connection c = this.conexao;
+		if (c != null)
+			c.closeHard();
+	}
+
+	/**
+	 * MODE_PASSWORD (padrão): on se a senha foi aceita.
+	 * MODE_BANNER: só lê a linha "SSH-" do servidor, sem KEX; on se é um
+	 * servidor SSH-2, ver getServerVersion().
+	 * MODE_KEXINIT: troca só os KEXINIT, sem DH nem verificação da chave do
+	 * host; on se o servidor mandou o dele, ver getServerKex().
+	 * MODE_AUTH_METHODS: para depois do USERAUTH_REQUEST "none"; on se o
+	 * servidor aceita "password", ver getAuthMethods().
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	public int getMode() {
+		return this.mode;
+	}
+
+	/**
+	 * @return a versão do servidor (ex: "OpenSSH_7.4"), lida no MODE_BANNER.
+	 */
+	public String getServerVersion() {
+		return this.serverVersion;
+	}
+
+	void setServerVersion(String serverVersion) {
+		this.serverVersion = serverVersion;
+	}
+
+	/**
+	 * @return as listas de algoritmos propostas pelo servidor, lidas no
+	 *         MODE_KEXINIT.
+	 */
+	public KexParameters getServerKex() {
+		return this.serverKex;
+	}
+
+	void setServerKex(KexParameters serverKex) {
+		this.serverKex = serverKex;
+	}
+
+	/**
+	 * @return os métodos de autenticação que o servidor aceita, lidos antes
+	 *         da senha (ou no MODE_AUTH_METHODS).
+	 */
+	public String[] getAuthMethods() {
+		return this.authMethods;
+	}
+
+	void setAuthMethods(String[] authMethods) {
+		this.authMethods = authMethods;
+	}
+
+	boolean hasProxy() {
+		return proxyHost != null && proxyHost.length() > 0;
 	}
 
 	public boolean isStopped() {
@@ -68,27 +162,300 @@ public class SSH extends SSHbean implements Runnable {
 	public Exception getException() {
 		return this.e;
 	}
+
+	/**
+	 * @return tempo em ms do TCP connect + KEX, ou -1 se não conectou.
+	 */
+	public long getConnectTime() {
+		return this.connectTime;
+	}
+
+	void setConnectTime(long connectTime) {
+		this.connectTime = connectTime;
+	}
+
+	/**
+	 * @param fase ConnectionTimings.TCP, BANNER, KEX ou AUTH.
+	 * @return a duração em microssegundos, ou -1 se a fase não aconteceu ou
+	 *         não terminou nesta verificação.
+	 */
+	public long getPhaseTime(int fase) {
+		return (tempos != null) ? tempos[fase] : -1;
+	}
+
+	/**
+	 * @param tipo ConnectionTimings.CPU_DH, CPU_SIGNATURE, CPU_CIPHER ou CPU_IO.
+	 * @return o tempo de CPU gasto nesta verificação, em microssegundos; 0 se
+	 *         não medido (ver CpuTime).
+	 */
+	public long getCpuTime(int tipo) {
+		return (cpu != null) ? cpu[tipo] : 0;
+	}
+
+	/**
+	 * Copia as fases de..ate (inclusive) da conexão e o tempo de CPU dela
+	 * nesta verificação.
+	 */
+	void setTempos(ConnectionTimings t, int de, int ate) {
+		if (tempos == null) {
+			tempos = new long[ConnectionTimings.PHASES];
+			Arrays.fill(tempos, -1);
+			cpu = new long[ConnectionTimings.CPU_KINDS];
+		}
+
+		for (int i = de; i <= ate; i++) {
+			long nanos = t.getNanos(i);
+			tempos[i] = (nanos < 0) ? -1 : nanos / 1000;
+		}
+
+		/* Cumulativo na conexão: desconta o que veio do pool */
+		for (int i = 0; i < cpu.length; i++)
+			cpu[i] = (t.getCpuNanos(i) - (cpuAntes != null ? cpuAntes[i] : 0)) / 1000;
+	}
 	
     @Override
     public void run() {
-        this.conexao = new Connection(getHost(), getPort());
-        
-        if (proxyHost != null && proxyHost.length() > 0)
-            conexao.setProxyData(new HTTPProxyData(this.proxyHost, this.proxyPort));
-                
-        try {
-            conexao.connect(null, TIMEOUT_TCP_CONNECTION, TIMEOUT_SSH_CONNECTION);
-
-            if (conexao.authenticateWithPassword(getUser(), getPass()))
-            	isOn = true;
-        } catch (IOException e) {
-            this.e = e;
-        } finally {
+        run(null);
+    }
+
+	/**
+	 * Com pool, tenta a senha numa conexão ociosa do mesmo host e usuário
+	 * (sem novo TCP + KEX); se o servidor já a encerrou, por exemplo ao
+	 * atingir o MaxAuthTries, reconecta e tenta de novo.
+	 */
+	void run(ConnectionPool pool) {
+		if (semSenha(pool))
+			return;
+
+		try {
+			if (!reaproveitar(pool)) {
+				resolver();
+				conectar();
+			}
+
+			if (!isComplete)
+				autenticar(pool);
+		} catch (IOException e) {
+			falhar(e);
+		}
+	}
+
+	/*
+	 * Etapas de run(), separadas para o SSHpipelineChecker. Qualquer
+	 * IOException deve terminar em falhar().
+	 */
+
+	/**
+	 * @return true se já se sabe que o servidor não aceita "password" para
+	 *         esse usuário; o SSH fica completo com erro, sem conectar.
+	 */
+	boolean semSenha(ConnectionPool pool) {
+		if (mode != MODE_PASSWORD || pool == null || !pool.isSemSenha(this))
+			return false;
+
+		falhar(new IOException(MSG_SEM_SENHA));
+		return true;
+	}
+
+	/**
+	 * @return true se pegou uma conexão ociosa do pool; pula para autenticar().
+	 */
+	boolean reaproveitar(ConnectionPool pool) {
+		this.conexao = (pool != null) ? pool.take(this) : null;
+		this.reaproveitada = (this.conexao != null);
+
+		if (this.reaproveitada) {
+			ConnectionTimings t = conexao.getTimings();
+			cpuAntes = new long[ConnectionTimings.CPU_KINDS];
+
+			for (int i = 0; i < cpuAntes.length; i++)
+				cpuAntes[i] = t.getCpuNanos(i);
+		}
+		return this.reaproveitada;
+	}
+
+	/**
+	 * Vagas para as contas do DH compartilhadas pelas conexões de um checker
+	 * (ver Connection.setKexLimit()); null para não limitar.
+	 */
+	void setLimiteKex(Semaphore limiteKex) {
+		this.limiteKex = limiteKex;
+	}
+
+	/**
+	 * Cria as threads internas da conexão (ver Connection.setThreadFactory());
+	 * null para usar o padrão do ThreadService.
+	 */
+	void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Redes que nunca devem ser conectadas, conferidas com o endereço
+	 * resolvido em resolver(); null para não conferir.
+	 */
+	void setExclusao(ExclusionList exclusao) {
+		this.exclusao = exclusao;
+	}
+
+	/**
+	 * Resolve o host (exceto via proxy, que resolve sozinho) pelo DnsCache.
+	 *
+	 * @throws IOException também se o endereço está numa rede excluída.
+	 */
+	void resolver() throws IOException {
+		if (endereco != null)
+			return;
+
+		if (hasProxy()) {
+			/* Quem resolve é o proxy: só dá para conferir o texto */
+			if (exclusao != null && exclusao.exclui(getHost()))
+				throw new IOException(MSG_EXCLUIDO);
+			return;
+		}
+
+		InetAddress addr = DnsCache.resolve(getHost());
+
+		if (exclusao != null && exclusao.exclui(addr))
+			throw new IOException(MSG_EXCLUIDO);
+
+		endereco = addr.getHostAddress();
+	}
+
+	/**
+	 * host:port do servidor. Se o nome já foi resolvido usa o endereço, então
+	 * nomes diferentes do mesmo servidor contam juntos. Calculada uma vez,
+	 * para não mudar entre a entrada e a saída do HostScheduler.
+	 */
+	String getChaveServidor() {
+		if (chaveServidor == null) {
+			InetAddress addr = hasProxy() ? null : DnsCache.peek(getHost());
+			chaveServidor = (addr != null ? addr.getHostAddress() : getHost().toLowerCase()) + ":" + getPort();
+		}
+		return chaveServidor;
+	}
+
+	/**
+	 * TCP connect, banner e KEX. No MODE_BANNER e no MODE_KEXINIT para antes
+	 * do KEX e o SSH já fica completo.
+	 */
+	void conectar() throws IOException {
+		this.conexao = new Connection(endereco != null ? endereco : getHost(), getPort());
+		this.cpuAntes = null;
+
+		if (hasProxy())
+			conexao.setProxyData(new HTTPProxyData(this.proxyHost, this.proxyPort));
+
+		conexao.setKexLimit(limiteKex);
+		conexao.setThreadFactory(threadFactory);
+
+		long inicio = System.currentTimeMillis();
+		Connection c = this.conexao;
+
+		try {
+			if (mode == MODE_BANNER || mode == MODE_KEXINIT) {
+				if (mode == MODE_BANNER)
+					serverVersion = conexao.probeServerVersion(TIMEOUT_TCP_CONNECTION, TIMEOUT_SSH_CONNECTION);
+				else
+					serverKex = conexao.probeKexInit(TIMEOUT_TCP_CONNECTION, TIMEOUT_SSH_CONNECTION);
+
+				connectTime = System.currentTimeMillis() - inicio;
+				this.conexao = null;
+				setResult(true, null);
+				return;
+			}
+
+			conexao.connect(null, TIMEOUT_TCP_CONNECTION, TIMEOUT_SSH_CONNECTION);
+			connectTime = System.currentTimeMillis() - inicio;
+		} finally {
+			/* Também quando falha: o timeout de uma fase é o que interessa */
+			setTempos(c.getTimings(), ConnectionTimings.TCP, ConnectionTimings.KEX);
+		}
+	}
+
+	void autenticar(ConnectionPool pool) throws IOException {
+		while (true) {
+			if (this.conexao == null)
+				conectar();
+
+			try {
+				/* O "none" que o AuthenticationManager manda de qualquer forma */
+				authMethods = conexao.getRemainingAuthMethods(getUser());
+
+				if (mode == MODE_AUTH_METHODS || !contem(authMethods, "password"))
+					break;
+
+				try {
+					if (conexao.authenticateWithPassword(getUser(), getPass()))
+						isOn = true;
+				} finally {
+					setTempos(conexao.getTimings(), ConnectionTimings.AUTH, ConnectionTimings.AUTH);
+				}
+				break;
+			} catch (IOException e) {
+				if (!reaproveitada || isStopped)
+					throw e;
+
+				conexao.close();
+				this.conexao = null;
+				reaproveitada = false;
+			}
+		}
+
+		if (mode == MODE_AUTH_METHODS) {
+			isOn = contem(authMethods, "password");
+		} else if (!isOn && !contem(authMethods, "password")) {
+			if (pool != null)
+				pool.marcarSemSenha(this);
+			throw new IOException(MSG_SEM_SENHA);
+		}
+
+		liberarConexao(pool);
+		setResult(isOn, null);
+	}
+
+	static boolean contem(String[] metodos, String metodo) {
+		if (metodos == null)
+			return false;
+
+		for (String m : metodos)
+			if (m.equals(metodo))
+				return true;
+
+		return false;
+	}
+
+	void falhar(IOException e) {
+		this.e = e;
+		liberarConexao(null);
+		setResult(false, e);
+	}
+
+	private void liberarConexao(ConnectionPool pool) {
+		if (this.conexao == null)
+			return;
+
+		if (pool != null && mode == MODE_PASSWORD && !isOn && e == null && !isStopped && aceitaSenha())
+			pool.give(this, conexao);
+		else
 			conexao.close();
+
+		this.conexao = null;
+	}
+
+	private boolean aceitaSenha() {
+		try {
+			return conexao.isAuthMethodAvailable(getUser(), "password");
+		} catch (IOException e) {
+			return false;
 		}
+	}
 
-        this.isComplete = true;
-        onComplete();
+	void setResult(boolean isOn, Exception e) {
+		this.isOn = isOn;
+		this.e = e;
+		this.isComplete = true;
+		onComplete();
 	}
     
     public void onComplete() {}
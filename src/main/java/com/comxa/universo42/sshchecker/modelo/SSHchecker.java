@@ -1,137 +1,918 @@
 package com.comxa.universo42.sshchecker.modelo;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import com.trilead.ssh2.util.DnsCache;
+import com.trilead.ssh2.util.ThreadService;
+
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SSHchecker implements Runnable {
-	public static final int MILLISEGUNDOS_SLEEP = 1000;
+	public static final int MILLISEGUNDOS_PROGRESSO = 1000;
+	/* Alvos testados de uma vez pelo pré-probe quando vêm de um stream */
+	public static final int LOTE_PRE_PROBE = 10000;
+	/* Quantos alvos à frente têm o nome resolvido em segundo plano */
+	public static final int JANELA_DNS = 64;
+
+	/* Marca de fim na fila do pré-probe */
+	private static final SSH FIM_PRE_PROBE = new SSH("", 0, "", "");
 	
 	private List<SSH> sshs;
+	private SSHsource origem;
 	private int qtdThreads;
-	private int qtdThreadsDone;
-	private int qtdChecked;
+	private int qtdWorkers;
+	private ConcurrencyController controle;
+	private int maxPorHost;
+	private double conexoesPorSegundo;
+	private HostScheduler agenda = new HostScheduler(0, 0);
+	private ConnectionPool pool = new ConnectionPool();
+	private boolean tcpPreProbe;
+	private boolean dnsPrefetch;
+	private int mode = SSH.MODE_PASSWORD;
+	private boolean reterResultados = true;
+	private volatile TcpProbe sonda;
+	private ExclusionList exclusao;
+	private final AtomicInteger qtdThreadsDone = new AtomicInteger();
 
-	private boolean isRunning;
-	private ThreadChecker[] threads;
-	private Iterator<SSH> sshIterator;
-	
-	private List<SSH> sshOns = Collections.synchronizedList(new LinkedList<SSH>());
-	private List<SSH> sshOffs = Collections.synchronizedList(new LinkedList<SSH>());
-	private List<SSH> sshError = Collections.synchronizedList(new LinkedList<SSH>());
+	private volatile boolean isRunning;
+	private volatile boolean isStopped;
+	private CountDownLatch fim = new CountDownLatch(1);
+	private boolean fimNotificado;
+	private final AtomicLong ultimoProgresso = new AtomicLong();
+	private volatile CheckerStats stats = new CheckerStats();
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private volatile ThreadChecker[] threads;
+	private ThreadFactory threadFactory;
+
+	private volatile SSHsource fonte;
+	private volatile PreProbe preProbe;
+	private volatile boolean fonteEsgotada;
+
+	/* Um buffer por worker, juntados só na leitura */
+	private final List<ResultBuffer> resultados = new CopyOnWriteArrayList<ResultBuffer>();
 	
 	public SSHchecker(List<SSH> sshs, int qtdThreads) {
 		this.sshs = sshs;
 		this.qtdThreads = qtdThreads;
+		this.qtdWorkers = qtdThreads;
+	}
+
+	/**
+	 * Os alvos são pedidos à fonte conforme os workers ficam livres; só os
+	 * que estão sendo verificados ficam na memória. A fonte é fechada quando
+	 * o check termina.
+	 */
+	public SSHchecker(SSHsource fonte, int qtdThreads) {
+		this.origem = fonte;
+		this.qtdThreads = qtdThreads;
+		this.qtdWorkers = qtdThreads;
+	}
+
+	/**
+	 * Ajusta sozinho o número de verificações simultâneas entre minimo e
+	 * maximo, conforme a latência de conexão e a taxa de timeouts. Deve ser
+	 * chamado antes de check(). Com maximo == 0 volta ao número fixo.
+	 */
+	public void setAdaptiveConcurrency(int minimo, int maximo) {
+		if (maximo == 0)
+			this.controle = null;
+		else
+			this.controle = new ConcurrencyController(minimo, maximo, qtdThreads);
+	}
+
+	/**
+	 * Máximo de verificações simultâneas no mesmo host:port (0 = sem
+	 * limite, o padrão; HostScheduler.DEFAULT_MAX_POR_HOST é um bom valor
+	 * para listas com muitos alvos no mesmo host). Deve ser chamado antes de
+	 * check().
+	 */
+	public void setMaxPerHost(int maxPorHost) {
+		this.maxPorHost = maxPorHost;
+	}
+
+	public int getMaxPerHost() {
+		return this.maxPorHost;
+	}
+
+	/**
+	 * Máximo de novas conexões TCP por segundo, somando todos os workers
+	 * (0 = sem limite). Deve ser chamado antes de check().
+	 */
+	public void setConnectionRate(double conexoesPorSegundo) {
+		this.conexoesPorSegundo = conexoesPorSegundo;
+	}
+
+	public double getConnectionRate() {
+		return this.conexoesPorSegundo;
+	}
+
+	/**
+	 * O que cada SSH verifica, ver SSH.setMode(). Deve ser chamado antes de
+	 * check().
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	public int getMode() {
+		return this.mode;
+	}
+
+	/**
+	 * Antes das verificações, testa só o TCP connect de cada host:port (ver
+	 * TcpProbe). Quem não responder vai direto para a lista de erro.
+	 */
+	public void setTcpPreProbe(boolean tcpPreProbe) {
+		this.tcpPreProbe = tcpPreProbe;
+	}
+
+	public boolean isTcpPreProbe() {
+		return this.tcpPreProbe;
+	}
+
+	/**
+	 * Resolve os nomes dos próximos alvos em segundo plano (ver DnsCache)
+	 * enquanto os anteriores são verificados. Desligado por padrão: só vale
+	 * a pena com listas de nomes, não de IPs. Deve ser chamado antes de
+	 * check().
+	 */
+	public void setDnsPrefetch(boolean dnsPrefetch) {
+		this.dnsPrefetch = dnsPrefetch;
+	}
+
+	public boolean isDnsPrefetch() {
+		return this.dnsPrefetch;
+	}
+
+	/**
+	 * Com false, os SSHs verificados só passam pelos listeners (onResult) e
+	 * getSshOns()/getSshOffs()/getSshError() ficam vazias; útil com listas
+	 * grandes vindas de um SSHsource.
+	 */
+	public void setRetainResults(boolean reterResultados) {
+		this.reterResultados = reterResultados;
+	}
+
+	public boolean isRetainResults() {
+		return this.reterResultados;
+	}
+
+	/**
+	 * Confere o endereço de cada alvo, já resolvido, antes de conectar:
+	 * hostnames que resolvem para uma rede da lista não são checados e vão
+	 * para a lista de erro com SSH.MSG_EXCLUIDO. Deve ser chamado antes de
+	 * check().
+	 */
+	public void setExclusion(ExclusionList exclusao) {
+		this.exclusao = exclusao;
+	}
+
+	public ExclusionList getExclusion() {
+		return this.exclusao;
+	}
+
+	public boolean isAdaptiveConcurrency() {
+		return this.controle != null;
+	}
+
+	/**
+	 * @return o limite atual de verificações simultâneas.
+	 */
+	public int getConcurrencyLimit() {
+		return controle != null ? controle.getLimite() : qtdThreads;
 	}
 	
 	public void check(boolean blocking) {
 		isRunning = true;
-		sshIterator = this.sshs.iterator();
-		threads = new ThreadChecker[this.qtdThreads];
+		fonte = (sshs != null) ? new SSHsource.ListSource(sshs) : origem;
+		fonteEsgotada = false;
+		preProbe = null;
+		fim = new CountDownLatch(1);
+		ultimoProgresso.set(System.currentTimeMillis());
+		stats = new CheckerStats();
+		qtdWorkers = getQtdWorkers();
+		agenda = new HostScheduler(maxPorHost, conexoesPorSegundo);
+		pool = new ConnectionPool();
+
+		/* Listas na memória: junta e registra as chaves que se repetem */
+		if (mode == SSH.MODE_PASSWORD)
+			agrupar(fonte);
+
+		if (dnsPrefetch)
+			fonte = new PreResolver(fonte);
+		if (tcpPreProbe)
+			fonte = preProbe = new PreProbe(fonte, sshs != null ? Integer.MAX_VALUE : LOTE_PRE_PROBE);
+
+		if (qtdWorkers <= 0)
+			concluir();
+		else
+			startCheckers();
+
+		if (blocking)
+			run();
+	}
+
+	void startCheckers() {
+		threads = new ThreadChecker[this.qtdWorkers];
 		
 		for (int i = 1; i <= threads.length; i++) {
 			threads[i-1] = new ThreadChecker();
 			threads[i-1].run(false);
 		}
-
-		if (blocking)
-			run();
-		else
-			new Thread(this).start();
 	}
 
+	/**
+	 * Bloqueia até o último worker terminar.
+	 */
 	@Override
 	public void run() {
-		while (isRunning && !isComplete()) {
-			try {
-				Thread.sleep(MILLISEGUNDOS_SLEEP);
-			} catch (InterruptedException e) {
-				onLog("SSH checker: interrupted exception!");
-			}
-			onLog(String.format("Checked: %d/%d - Threads: %d/%d", qtdChecked, sshs.size(), qtdThreadsDone, qtdThreads));
+		try {
+			awaitCompletion();
+		} catch (InterruptedException e) {
+			onLog("SSH checker: interrupted exception!");
 		}
+	}
 
-		this.isRunning = false;
-		if (isComplete())
-			onComplete();
+	public void awaitCompletion() throws InterruptedException {
+		fim.await();
+	}
+
+	public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		return fim.await(timeout, unit);
 	}
 	
 	public void stop() {
+		this.isStopped = true;
 		this.isRunning = false;
+		if (controle != null)
+			controle.close();
+		agenda.close();
+
+		TcpProbe s = sonda;
+		if (s != null)
+			s.stop();
+
+		SSHsource f = fonte;
+		if (f != null)
+			f.close();
+
+		stopCheckers();
+		pool.close();
+	}
+
+	void stopCheckers() {
+		if (threads == null)
+			return;
 
 		for (ThreadChecker t : threads)
-			if (t.ssh != null)
+			if (t != null && t.ssh != null)
 				t.ssh.stopCheck();
 	}
 
+	/**
+	 * Roda cada verificação (e as threads internas das conexões) deste
+	 * checker em virtual threads. Nesse modo qtdThreads passa a ser só o
+	 * limite de sockets simultâneos e pode ser tão alto quanto a lista.
+	 * Não muda o padrão global do ThreadService (usado pelo TimeoutService e
+	 * pelo DnsCache), então outros checkers não são afetados.
+	 *
+	 * @return false se o runtime não suporta virtual threads (ex: Android).
+	 */
+	public boolean setVirtualThreads(boolean virtualThreads) {
+		if (!virtualThreads) {
+			this.threadFactory = null;
+			return true;
+		}
+
+		ThreadFactory factory = ThreadService.getVirtualThreadFactory();
+
+		if (factory == null)
+			return false;
+
+		this.threadFactory = factory;
+		return true;
+	}
+
+	public boolean isVirtualThreads() {
+		return this.threadFactory != null;
+	}
+
 	public boolean isRunning() {
 		return this.isRunning;
 	}
 	
 	public boolean isComplete() {
-		return (qtdThreadsDone == qtdThreads);
+		return (qtdThreadsDone.get() == qtdWorkers);
+	}
+
+	public int getQtdChecked() {
+		int total = 0;
+
+		for (ResultBuffer r : resultados)
+			total += r.qtdChecked;
+
+		return total;
+	}
+
+	/**
+	 * @return latências por fase, vazão e ETA da execução atual.
+	 */
+	public CheckerStats getStats() {
+		return this.stats;
 	}
 
+	/**
+	 * @return null se os alvos vêm de um SSHsource.
+	 */
 	public List<SSH> getSshs() {
 		return this.sshs;
 	}
 
+	/**
+	 * @return o total de alvos, ou -1 se a fonte ainda não sabe.
+	 */
+	public int getQtdTotal() {
+		SSHsource f = fonte;
+
+		if (f != null)
+			return f.size();
+
+		return (sshs != null) ? sshs.size() : origem.size();
+	}
+
+	/**
+	 * @return uma cópia dos SSHs on até agora, juntando os resultados de
+	 *         cada worker. Não é uma visão viva: para acompanhar o progresso,
+	 *         chame de novo (ex: a cada onProgress()).
+	 */
 	public List<SSH> getSshOns() {
-		return this.sshOns;
+		List<SSH> lista = new ArrayList<SSH>();
+
+		for (ResultBuffer r : resultados)
+			lista.addAll(r.ons);
+
+		return lista;
 	}
 	
+	/**
+	 * @return uma cópia dos SSHs off até agora, juntando os resultados de
+	 *         cada worker. Não é uma visão viva: para acompanhar o progresso,
+	 *         chame de novo (ex: a cada onProgress()).
+	 */
 	public List<SSH> getSshOffs() {
-		return this.sshOffs;
+		List<SSH> lista = new ArrayList<SSH>();
+
+		for (ResultBuffer r : resultados)
+			lista.addAll(r.offs);
+
+		return lista;
 	}
 	
+	/**
+	 * @return uma cópia dos SSHs com erro até agora, juntando os resultados de
+	 *         cada worker. Não é uma visão viva: para acompanhar o progresso,
+	 *         chame de novo (ex: a cada onProgress()).
+	 */
 	public List<SSH> getSshError() {
-		return this.sshError;
+		List<SSH> lista = new ArrayList<SSH>();
+
+		for (ResultBuffer r : resultados)
+			lista.addAll(r.error);
+
+		return lista;
 	}
 	
 	public void onLog(String log) {}
 
 	public void onComplete() {}
+
+	/**
+	 * Se o check já terminou, onComplete() é chamado na hora.
+	 */
+	public void addListener(Listener listener) {
+		boolean notificado;
+
+		synchronized (listeners) {
+			listeners.add(listener);
+			notificado = fimNotificado;
+		}
+
+		if (notificado)
+			listener.onComplete();
+	}
+
+	public void removeListener(Listener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	private Listener[] getListeners() {
+		synchronized (listeners) {
+			return listeners.toArray(new Listener[listeners.size()]);
+		}
+	}
 	
-	private synchronized SSH getSsh() {
-		if (!isRunning)
+	Thread newThread(Runnable r) {
+		return threadFactory != null ? threadFactory.newThread(r) : new Thread(r);
+	}
+
+	int getQtdThreads() {
+		return this.qtdThreads;
+	}
+
+	/**
+	 * Com o controle adaptativo há uma thread por vaga possível.
+	 */
+	int getQtdWorkers() {
+		return controle != null ? controle.getMaximo() : qtdThreads;
+	}
+
+	ConnectionPool getPool() {
+		return this.pool;
+	}
+
+	ConcurrencyController getController() {
+		return this.controle;
+	}
+
+	boolean hasSsh() {
+		return isRunning && (!fonteEsgotada || agenda.hasPending());
+	}
+
+	/**
+	 * Ocupa uma vaga do controle (se houver), um token de conexão e uma vaga
+	 * no host, e retorna o alvo. Todo SSH retornado deve ser devolvido com
+	 * sshDone().
+	 *
+	 * @param esperar se false e não houver vaga retorna null na hora.
+	 */
+	SSH getSsh(boolean esperar) {
+		if (controle != null) {
+			try {
+				if (esperar ? !controle.acquire() : !controle.tryAcquire())
+					return null;
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+
+		SSH ssh = getSshAgendado(esperar);
+
+		if (ssh == null && controle != null)
+			controle.release();
+
+		if (ssh != null && mode == SSH.MODE_PASSWORD)
+			pool.iniciar(ssh);
+
+		return ssh;
+	}
+
+	private SSH getSshAgendado(boolean esperar) {
+		try {
+			if (esperar ? !agenda.takeToken() : !agenda.tryToken())
+				return null;
+
+			while (true) {
+				SSH ssh = agenda.pollReady();
+				if (ssh != null)
+					return ssh;
+
+				/* Fila de adiados cheia: a fonte espera até um host liberar vaga */
+				if (agenda.isFull()) {
+					if (!esperar || !isRunning)
+						break;
+
+					/* false aqui só diz que outro worker pegou o pronto antes */
+					agenda.awaitReady();
+					continue;
+				}
+
+				ssh = lerFonte(esperar);
+				if (ssh != null) {
+					if (agenda.offer(ssh))
+						return ssh;
+					continue;
+				}
+
+				/* Pré-probe ainda testando: quem não pode esperar volta depois */
+				if (!esperar && !fonteEsgotada)
+					break;
+
+				/* Lista no fim: só restam os adiados de hosts lotados */
+				if (!esperar || !isRunning || !agenda.awaitReady())
+					break;
+			}
+
+			agenda.refundToken();
+		} catch (InterruptedException e) {}
+
+		return null;
+	}
+
+	void sshDone(SSH ssh) {
+		agenda.done(ssh);
+
+		if (controle != null)
+			controle.release(ssh.getConnectTime(), ConcurrencyController.isTimeout(ssh.getException()));
+	}
+
+	/**
+	 * @param esperar se false, com o pré-probe ligado, não espera o lote em
+	 *            teste: retorna null sem marcar a fonte como esgotada.
+	 */
+	private SSH lerFonte(boolean esperar) {
+		if (!isRunning || fonteEsgotada)
 			return null;
 
-		if (!this.sshIterator.hasNext())
+		PreProbe p = preProbe;
+		SSH ssh = null;
+		try {
+			if (!esperar && p != null) {
+				ssh = p.poll();
+				if (ssh == null && !p.isEsgotada())
+					return null;
+			} else {
+				ssh = fonte.next();
+			}
+		} catch (IOException e) {
+			onLog("SSH checker: " + e.getMessage());
+		}
+
+		if (ssh == null) {
+			fonteEsgotada = true;
 			return null;
-		return this.sshIterator.next();
+		}
+
+		ssh.setMode(mode);
+		ssh.setExclusao(exclusao);
+		ssh.setThreadFactory(threadFactory);
+		return ssh;
+	}
+
+	private void agrupar(SSHsource f) {
+		if (f instanceof SSHsource.ListSource) {
+			((SSHsource.ListSource) f).agrupar(pool);
+		} else if (f instanceof SSHsource.Chain) {
+			for (SSHsource s : ((SSHsource.Chain) f).getFontes())
+				agrupar(s);
+		}
+	}
+
+	ResultBuffer newResultBuffer() {
+		ResultBuffer r = new ResultBuffer(reterResultados);
+		resultados.add(r);
+		return r;
+	}
+
+	void addResult(ResultBuffer resultado, SSH ssh) {
+		resultado.add(ssh);
+		stats.registrar(ssh);
+
+		for (Listener l : getListeners())
+			l.onResult(ssh);
+
+		long agora = System.currentTimeMillis();
+		long ultimo = ultimoProgresso.get();
+
+		if (agora - ultimo >= MILLISEGUNDOS_PROGRESSO && ultimoProgresso.compareAndSet(ultimo, agora))
+			progresso();
+	}
+
+	void checkerDone() {
+		if (qtdThreadsDone.incrementAndGet() == qtdWorkers)
+			concluir();
+	}
+
+	private void progresso() {
+		int qtdChecked = getQtdChecked();
+		int qtdTotal = getQtdTotal();
+
+		stats.atualizar(qtdChecked, System.currentTimeMillis());
+
+		onLog(String.format("Checked: %d/%s - %s - Threads: %d/%d", qtdChecked, qtdTotal < 0 ? "?" : String.valueOf(qtdTotal), stats.resumo(qtdChecked, qtdTotal), qtdWorkers - qtdThreadsDone.get(), getConcurrencyLimit()));
+
+		for (Listener l : getListeners())
+			l.onProgress(qtdChecked, qtdTotal);
+	}
+
+	private void concluir() {
+		this.isRunning = false;
+		pool.close();
+		fonte.close();
+		progresso();
+
+		if (!isStopped) {
+			onComplete();
+
+			Listener[] lista;
+			synchronized (listeners) {
+				fimNotificado = true;
+				lista = listeners.toArray(new Listener[listeners.size()]);
+			}
+
+			for (Listener l : lista)
+				l.onComplete();
+		}
+
+		fim.countDown();
+	}
+
+	public interface Listener {
+		void onResult(SSH ssh);
+
+		/**
+		 * @param qtdTotal -1 se a fonte ainda não sabe.
+		 */
+		void onProgress(int qtdChecked, int qtdTotal);
+
+		void onComplete();
+	}
+
+	public static class SimpleListener implements Listener {
+		@Override
+		public void onResult(SSH ssh) {}
+
+		@Override
+		public void onProgress(int qtdChecked, int qtdTotal) {}
+
+		@Override
+		public void onComplete() {}
+	}
+
+	/**
+	 * Resultados de um único worker. Só o dono escreve, então o contador não
+	 * precisa ser atômico; as filas são lidas por outras threads ao juntar.
+	 */
+	static class ResultBuffer {
+		private final ConcurrentLinkedQueue<SSH> ons = new ConcurrentLinkedQueue<SSH>();
+		private final ConcurrentLinkedQueue<SSH> offs = new ConcurrentLinkedQueue<SSH>();
+		private final ConcurrentLinkedQueue<SSH> error = new ConcurrentLinkedQueue<SSH>();
+		private final boolean reter;
+		private volatile int qtdChecked;
+
+		ResultBuffer(boolean reter) {
+			this.reter = reter;
+		}
+
+		void add(SSH ssh) {
+			qtdChecked++;
+
+			if (!reter)
+				return;
+
+			if (ssh.getException() != null) {
+				error.add(ssh);
+			} else if (ssh.isOn()) {
+				ons.add(ssh);
+			} else {
+				offs.add(ssh);
+			}
+		}
+	}
+
+	/**
+	 * Lê a fonte até JANELA_DNS alvos à frente e pede ao DnsCache que já
+	 * resolva os nomes deles (IPs e alvos via proxy não precisam), na ordem
+	 * em que vão sair. Sem lock: quem chama next() completa a janela e pega o
+	 * primeiro; com várias threads ao mesmo tempo ela pode passar um pouco
+	 * de JANELA_DNS.
+	 */
+	private class PreResolver implements SSHsource {
+		private final SSHsource fonte;
+		private final ConcurrentLinkedQueue<SSH> janela = new ConcurrentLinkedQueue<SSH>();
+		private final AtomicInteger tamanho = new AtomicInteger();
+		/* Threads dentro de encher(); a fonte só acabou quando chega a 0 */
+		private final AtomicInteger lendo = new AtomicInteger();
+		private volatile boolean esgotada;
+
+		public PreResolver(SSHsource fonte) {
+			this.fonte = fonte;
+		}
+
+		@Override
+		public SSH next() throws IOException {
+			while (true) {
+				encher();
+
+				SSH ssh = janela.poll();
+				if (ssh != null) {
+					tamanho.decrementAndGet();
+					return ssh;
+				}
+
+				if (esgotada) {
+					if (lendo.get() == 0 && janela.isEmpty())
+						return null;
+
+					/* Outra thread está pondo o último alvo lido na janela */
+					Thread.yield();
+				}
+			}
+		}
+
+		private void encher() throws IOException {
+			while (true) {
+				lendo.incrementAndGet();
+				try {
+					if (esgotada || tamanho.get() >= JANELA_DNS)
+						return;
+
+					SSH ssh = fonte.next();
+
+					if (ssh == null) {
+						esgotada = true;
+						return;
+					}
+
+					if (!ssh.hasProxy())
+						DnsCache.prefetch(ssh.getHost());
+
+					tamanho.incrementAndGet();
+					janela.add(ssh);
+				} finally {
+					lendo.decrementAndGet();
+				}
+			}
+		}
+
+		@Override
+		public int size() {
+			return fonte.size();
+		}
+
+		@Override
+		public void close() {
+			esgotada = true;
+			fonte.close();
+		}
+	}
+
+	/**
+	 * Entrega só os alvos que aceitaram o TCP connect (ver TcpProbe); os
+	 * mortos já entram como resultado. Uma thread própria lê a fonte em lotes,
+	 * testa cada lote e põe os vivos numa fila limitada, então nenhum worker
+	 * fica preso num lote em teste: next() espera a fila e poll() nem isso.
+	 * Se o probe falhar, o lote segue inteiro.
+	 */
+	private class PreProbe implements SSHsource, Runnable {
+		private final SSHsource fonte;
+		private final int lote;
+		private final BlockingQueue<SSH> vivos = new ArrayBlockingQueue<SSH>(LOTE_PRE_PROBE);
+		private final ResultBuffer resultado = newResultBuffer();
+		private volatile boolean fimVisto;
+		private volatile boolean fechada;
+
+		public PreProbe(SSHsource fonte, int lote) {
+			this.fonte = fonte;
+			this.lote = lote;
+
+			sonda = new TcpProbe() {
+				@Override
+				public void onDead(SSH ssh) {
+					if (mode == SSH.MODE_PASSWORD)
+						pool.iniciar(ssh);
+					addResult(resultado, ssh);
+				}
+			};
+			sonda.setExclusion(exclusao);
+
+			newThread(this).start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				boolean fim = false;
+
+				while (!fim && !fechada && isRunning) {
+					List<SSH> alvos = new ArrayList<SSH>();
+
+					try {
+						SSH ssh;
+						while (alvos.size() < lote && (ssh = fonte.next()) != null)
+							alvos.add(ssh);
+					} catch (IOException e) {
+						onLog("SSH checker: " + e.getMessage());
+						fim = true;
+					}
+
+					if (alvos.size() < lote)
+						fim = true;
+
+					List<SSH> lista;
+					try {
+						lista = sonda.probe(alvos.toArray(new SSH[alvos.size()]));
+					} catch (IOException e) {
+						onLog("SSH checker: " + e.getMessage());
+						lista = alvos;
+					}
+
+					for (SSH ssh : lista)
+						if (!entregar(ssh))
+							return;
+				}
+			} catch (InterruptedException e) {
+				onLog("SSH checker: interrupted exception!");
+			} finally {
+				try {
+					entregar(FIM_PRE_PROBE);
+				} catch (InterruptedException ignore) {}
+			}
+		}
+
+		/**
+		 * @return false se o check parou antes de a fila ter espaço.
+		 */
+		private boolean entregar(SSH ssh) throws InterruptedException {
+			while (!vivos.offer(ssh, 100, TimeUnit.MILLISECONDS))
+				if (fechada || !isRunning)
+					return false;
+			return true;
+		}
+
+		@Override
+		public SSH next() throws IOException {
+			try {
+				return repor(vivos.take());
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return o próximo vivo, ou null se o lote ainda está em teste ou se
+		 *         acabaram (ver isEsgotada()).
+		 */
+		public SSH poll() {
+			SSH ssh = vivos.poll();
+			return (ssh == null) ? null : repor(ssh);
+		}
+
+		/**
+		 * @return true quando não virá mais nenhum vivo.
+		 */
+		public boolean isEsgotada() {
+			return fechada || fimVisto;
+		}
+
+		/* A marca de fim volta para a fila para os outros workers a verem */
+		private SSH repor(SSH ssh) {
+			if (ssh != FIM_PRE_PROBE)
+				return ssh;
+
+			fimVisto = true;
+			vivos.offer(FIM_PRE_PROBE);
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return fonte.size();
+		}
+
+		@Override
+		public void close() {
+			fechada = true;
+			fonte.close();
+
+			/* Acorda quem espera em next() */
+			vivos.clear();
+			vivos.offer(FIM_PRE_PROBE);
+		}
 	}
 
 	private class ThreadChecker implements Runnable {
-		private SSH ssh;
+		private volatile SSH ssh;
+		private final ResultBuffer resultado = newResultBuffer();
 
 		public void run(boolean blocking) {
 			if (blocking)
 				run();
 			else
-				new Thread(this).start();
+				newThread(this).start();
 		}
 
 		@Override
 		public void run() {
-			while ((ssh = getSsh()) != null) {
-				ssh.check(true);
-
-				if (!ssh.isStopped()) {
-					if (ssh.getException() != null) {
-						sshError.add(ssh);
-					} else if (ssh.isOn()) {
-						sshOns.add(ssh);
-					} else {
-						sshOffs.add(ssh);
-					}
+			while ((ssh = getSsh(true)) != null) {
+				ssh.check(pool);
+				sshDone(ssh);
 
-					qtdChecked++;
-				}
+				if (!ssh.isStopped())
+					addResult(resultado, ssh);
 			}
 			
-			qtdThreadsDone++;
+			checkerDone();
 		}
 	}
 }
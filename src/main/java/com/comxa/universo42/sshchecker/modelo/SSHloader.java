@@ -1,14 +1,16 @@
 package com.comxa.universo42.sshchecker.modelo;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SSHloader {
 	public static final String DEFAULT_DELIMITER = "|";
@@ -18,6 +20,8 @@ public class SSHloader {
 	private String delimiter = DEFAULT_DELIMITER;
 	
 	private List<SSH> sshs;
+	private TargetDedup dedup;
+	private ExclusionList exclusao;
 	
 	public SSHloader(File filePath) {
 		this.file = filePath;
@@ -38,6 +42,30 @@ public class SSHloader {
 		this.sshs = sshs;
 	}
 	
+	/**
+	 * Com dedup, os alvos repetidos (também entre loaders que dividam o
+	 * mesmo TargetDedup) são descartados e só contados. null desliga.
+	 */
+	public void setDedup(TargetDedup dedup) {
+		this.dedup = dedup;
+	}
+
+	public TargetDedup getDedup() {
+		return this.dedup;
+	}
+
+	/**
+	 * Alvos numa rede da lista são descartados e só contados, antes do dedup.
+	 * null desliga.
+	 */
+	public void setExclusion(ExclusionList exclusao) {
+		this.exclusao = exclusao;
+	}
+
+	public ExclusionList getExclusion() {
+		return this.exclusao;
+	}
+
 	public String getDelimiter() {
 		return this.delimiter;
 	}
@@ -48,62 +76,24 @@ public class SSHloader {
 
 
 	public void load() throws IOException {
+		if (this.file != null) {
+			MappedLineParser.Lista parser = new MappedLineParser.Lista(delimiter, Charset.defaultCharset(), dedup);
+			parser.setExclusion(exclusao);
+			this.sshs = parser.parse(this.file);
+			return;
+		}
+
 		this.sshs = new ArrayList<SSH>();
 		Scanner scanner = null;
 		
 		try {
-			if (this.file != null)
-				scanner = new Scanner(this.file);
-			else
-				scanner = new Scanner(this.data);
+			scanner = new Scanner(this.data);
 			
 			while (scanner.hasNextLine()) {
-			
-				String linha = scanner.nextLine();
-				
-				if (linha.length() == 0)
-					continue;
-
-				int aux = linha.indexOf(delimiter);
-				
-				if (aux == -1)
-					continue;
-				
-				String host = linha.substring(0, aux);
-				int port = SSHbean.DEFAULT_PORT;
-				
-				if (host.contains(":")) {
-					String hostPort[] = host.split(":");
-					
-					if (hostPort != null && hostPort.length == 2) {
-						host = hostPort[0];
-						try {
-							port = Integer.valueOf(hostPort[1]);
-						} catch(NumberFormatException e){}
-					}
-				}
-				
-				aux++;
-				
-				int aux2 = linha.indexOf(delimiter, aux);
-				
-				if (aux2 == -1)
-					continue;
-				
-				String user = linha.substring(aux, aux2);
-				
-				aux2 = linha.indexOf(delimiter, aux);
-				
-				if (aux2 == -1)
-					continue;
-				
-				aux = aux2 + 1;
-				
-				aux2 = linha.indexOf(delimiter, aux);
-				
-				String pass = (aux2 != -1) ? linha.substring(aux, aux2) : linha.substring(aux);
-				
-				this.sshs.add(new SSH(host.trim(), port, user.trim(), pass.trim(), linha));
+				SSH ssh = parseLinha(scanner.nextLine(), delimiter);
+
+				if (aceitar(ssh))
+					this.sshs.add(ssh);
 			}
 		} finally {
 			if (scanner != null)
@@ -114,23 +104,174 @@ public class SSHloader {
 	public void loadFixed(String user, String pass, int port) throws IOException {
 		this.sshs = new ArrayList<SSH>();
 
-		if (data == null && file != null)
-			data = getFileStr(file);
-		else if (data == null)
-			return;
+		IpScanner scanner = newIpScanner(user, pass, port, this.sshs);
+
+		if (file != null)
+			scanner.scan(file);
+		else if (data != null) {
+			scanner.scan(data);
+			scanner.end();
+		}
+	}
+
+	/**
+	 * Como load(), numa TargetTable: uns 20 bytes por alvo em vez de um SSH
+	 * por linha. getSSHs() não muda.
+	 */
+	public TargetTable loadTable() throws IOException {
+		if (this.file != null) {
+			MappedLineParser.Tabela parser = new MappedLineParser.Tabela(this.file, delimiter, Charset.defaultCharset(), dedup);
+			parser.setExclusion(exclusao);
+			return parser.parse(this.file);
+		}
+
+		TargetTable tabela = new TargetTable();
+
+		if (this.data == null)
+			return tabela;
+
+		tabela.setSource(this.data, delimiter);
+
+		int len = this.data.length();
+		int ini = 0;
+
+		while (ini < len) {
+			int fim = ini;
+			while (fim < len && this.data.charAt(fim) != '\n' && this.data.charAt(fim) != '\r')
+				fim++;
+
+			SSH ssh = parseLinha(this.data.substring(ini, fim), delimiter);
+
+			if (aceitar(ssh) && !tabela.add(ssh.getHost(), ssh.getPort(), ssh.getUser(), ssh.getPass(), ini, fim - ini))
+				tabela.addAvulso(ssh);
+
+			ini = fim + 1;
+		}
+
+		return tabela;
+	}
+
+	/**
+	 * Como loadFixed(), numa TargetTable; todos os alvos dividem a mesma
+	 * credencial.
+	 */
+	public TargetTable loadFixedTable(final String user, final String pass, final int port) throws IOException {
+		final TargetTable tabela = new TargetTable();
+		final int credencial = tabela.credencial(user, pass);
+		final long hashCredencial = TargetDedup.hashCredencial(user, pass);
+
+		IpScanner scanner = new IpScanner() {
+			@Override
+			void onIp(int ip, int p) {
+				if (p == SEM_PORTA)
+					p = port;
+
+				if (!aceitar(ip, p, hashCredencial))
+					return;
+
+				if (p < 0 || p > 0xffff)
+					tabela.addAvulso(new SSH(IpScanner.toString(ip), p, user, pass));
+				else
+					tabela.add(ip, p, credencial, TargetTable.SEM_LINHA, 0);
+			}
+		};
+
+		if (file != null)
+			scanner.scan(file);
+		else if (data != null) {
+			scanner.scan(data);
+			scanner.end();
+		}
+
+		return tabela;
+	}
+
+	/**
+	 * Faixas como "10.0.0.0/16:22" ou "1.2.3.4-1.2.3.200", separadas por
+	 * espaço, vírgula ou linha, com as credenciais fixas; sem ":porta" usa
+	 * port. Os alvos das faixas só são gerados quando pedidos, então o
+	 * tamanho delas não pesa na memória; a exclusão é feita ao gerar cada
+	 * alvo e dedup não se aplica a elas. O resto do texto é procurado como
+	 * em loadFixed(), com exclusão e dedup, e os IPs achados entram no
+	 * TargetRange como faixas de um IP. hasRanges() diz se houve faixas.
+	 */
+	public TargetRange loadRanges(final String user, final String pass, final int port) throws IOException {
+		final TargetRange faixas = new TargetRange(user, pass);
+		faixas.setExclusion(exclusao);
+		final long hashCredencial = TargetDedup.hashCredencial(user, pass);
 
-		Pattern ipPattern = Pattern.compile("(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)");
-		Matcher matcher = ipPattern.matcher(data);
+		IpScanner scanner = new IpScanner() {
+			@Override
+			void onIp(int ip, int p) {
+				if (p == SEM_PORTA)
+					p = port;
 
-		while (matcher.find()) {
-			String ip = data.substring(matcher.start(), matcher.end());
-			int p = findPort(ip, data, 100);
+				if (aceitar(ip, p, hashCredencial))
+					faixas.add(ip & 0xffffffffL, ip & 0xffffffffL, p);
+			}
+		};
+		BufferedReader reader = getReader();
 
-			if (p == -1)
-				p = port;
+		try {
+			String linha;
 
-			this.sshs.add(new SSH(ip, p, user, pass));
+			while ((linha = reader.readLine()) != null) {
+				for (String faixa : linha.split("[\\s,;]+")) {
+					if (faixa.length() > 0 && !faixas.addFaixa(faixa, port)) {
+						scanner.scan(faixa);
+						scanner.end();
+					}
+				}
+			}
+		} finally {
+			reader.close();
 		}
+
+		return faixas;
+	}
+
+	/**
+	 * Como load(), mas os alvos são lidos sob demanda por quem consome o
+	 * stream (ex: o SSHchecker) em vez de ficarem todos em getSSHs().
+	 */
+	public SSHstream stream() {
+		return new SSHstream(SSHstream.DEFAULT_READ_AHEAD) {
+			@Override
+			BufferedReader abrir() throws IOException {
+				return getReader();
+			}
+
+			@Override
+			void parse(String linha, List<SSH> saida) {
+				SSH ssh = parseLinha(linha, delimiter);
+
+				if (aceitar(ssh))
+					saida.add(ssh);
+			}
+		};
+	}
+
+	/**
+	 * Como loadFixed(), sob demanda. Cada linha é procurada separadamente.
+	 */
+	public SSHstream streamFixed(final String user, final String pass, final int port) {
+		return new SSHstream(SSHstream.DEFAULT_READ_AHEAD) {
+			private final List<SSH> achados = new ArrayList<SSH>();
+			private final IpScanner scanner = newIpScanner(user, pass, port, achados);
+
+			@Override
+			BufferedReader abrir() throws IOException {
+				return getReader();
+			}
+
+			@Override
+			void parse(String linha, List<SSH> saida) {
+				scanner.scan(linha);
+				scanner.end();
+				saida.addAll(achados);
+				achados.clear();
+			}
+		};
 	}
 	
 	public void save() throws IOException {
@@ -151,45 +292,94 @@ public class SSHloader {
 		}
 	}
 
-	private int findPort(String ip, String data, int maxRange) {
-		int aux = data.indexOf(ip);
+	static SSH parseLinha(String linha, String delimiter) {
+		if (linha.length() == 0)
+			return null;
 
+		int aux = linha.indexOf(delimiter);
+		
 		if (aux == -1)
-			return -1;
+			return null;
+		
+		String host = linha.substring(0, aux);
+		int port = SSHbean.DEFAULT_PORT;
+		
+		if (host.contains(":")) {
+			String hostPort[] = host.split(":");
+			
+			if (hostPort != null && hostPort.length == 2) {
+				host = hostPort[0];
+				try {
+					port = Integer.valueOf(hostPort[1]);
+				} catch(NumberFormatException e){}
+			}
+		}
+		
+		aux += delimiter.length();
+		
+		int aux2 = linha.indexOf(delimiter, aux);
+		
+		if (aux2 == -1)
+			return null;
+		
+		String user = linha.substring(aux, aux2);
+		
+		aux2 = linha.indexOf(delimiter, aux);
+		
+		if (aux2 == -1)
+			return null;
+		
+		aux = aux2 + delimiter.length();
+		
+		aux2 = linha.indexOf(delimiter, aux);
+		
+		String pass = (aux2 != -1) ? linha.substring(aux, aux2) : linha.substring(aux);
+		
+		return new SSH(host.trim(), port, user.trim(), pass.trim(), linha);
+	}
 
-		aux += ip.length();
+	/**
+	 * Cada IP achado vira um SSH com as credenciais fixas; sem ":porta" usa
+	 * port.
+	 */
+	private IpScanner newIpScanner(final String user, final String pass, final int port, final List<SSH> saida) {
+		final long hashCredencial = TargetDedup.hashCredencial(user, pass);
 
-		if (aux >= data.length()-1)
-			return -1;
+		return new IpScanner() {
+			@Override
+			void onIp(int ip, int p) {
+				if (p == SEM_PORTA)
+					p = port;
 
-		if (data.charAt(aux) == ':') {
-			aux++;
-			int i;
-			for (i = aux; i < data.length() && i-aux < 5 && Character.isDigit(data.charAt(i)); i++);
+				if (aceitar(ip, p, hashCredencial))
+					saida.add(new SSH(IpScanner.toString(ip), p, user, pass));
+			}
+		};
+	}
 
-			if (i != aux)
-				return Integer.parseInt(data.substring(aux, i));
-		}
+	/**
+	 * @return false se o alvo é null, excluído ou repetido.
+	 */
+	private boolean aceitar(SSH ssh) {
+		if (ssh == null)
+			return false;
+		if (exclusao != null && exclusao.exclui(ssh.getHost()))
+			return false;
 
-		return -1;
+		return dedup == null || dedup.novo(ssh);
 	}
 
-	private String getFileStr(File file) throws IOException {
-		StringBuilder builder = new StringBuilder();
-		FileInputStream fileIn = null;
-		try {
-			fileIn = new FileInputStream(file);
+	private boolean aceitar(int ip, int port, long hashCredencial) {
+		if (exclusao != null && exclusao.exclui(ip))
+			return false;
 
-			byte[] buffer = new byte[1024 * 32];
-			int len;
-			while ((len = fileIn.read(buffer)) != -1)
-				builder.append(new String(buffer, 0, len));
+		return dedup == null || dedup.novo(dedup.chave(ip, port, hashCredencial));
+	}
 
-		} finally {
-			if (fileIn != null)
-				fileIn.close();
-		}
+	private BufferedReader getReader() throws IOException {
+		if (this.file != null)
+			return new BufferedReader(new InputStreamReader(new FileInputStream(this.file)));
 
-		return builder.toString();
+		return new BufferedReader(new StringReader(this.data != null ? this.data : ""));
 	}
 }
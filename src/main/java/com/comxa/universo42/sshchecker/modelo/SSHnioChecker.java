@@ -0,0 +1,464 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import com.trilead.ssh2.ConnectionTimings;
+import com.trilead.ssh2.crypto.CryptoWishList;
+import com.trilead.ssh2.packets.PacketServiceAccept;
+import com.trilead.ssh2.packets.PacketServiceRequest;
+import com.trilead.ssh2.packets.PacketUserauthFailure;
+import com.trilead.ssh2.packets.PacketUserauthRequestNone;
+import com.trilead.ssh2.packets.PacketUserauthRequestPassword;
+import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.transport.NioTransportManager;
+import com.trilead.ssh2.util.CpuTime;
+import com.trilead.ssh2.util.DnsCache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checker que multiplexa as conexões em poucas threads com Selector e
+ * SocketChannel não bloqueante, em vez de uma thread bloqueada por SSH.
+ * Banner, KEX e autenticação por senha são conduzidos pela própria thread do
+ * selector. Não suporta proxy.
+ */
+public class SSHnioChecker extends SSHchecker {
+	public static final int DEFAULT_QTD_SELECTORS = 2;
+	public static final int DEFAULT_QTD_CONEXOES = 1000;
+	public static final int SELECT_TIMEOUT = 250;
+	/* Enquanto há nomes sendo resolvidos em segundo plano */
+	public static final int SELECT_TIMEOUT_DNS = 20;
+
+	private int qtdConexoes;
+	private SelectorChecker[] selectors;
+
+	public SSHnioChecker(List<SSH> sshs, int qtdSelectors, int qtdConexoes) {
+		super(sshs, qtdSelectors);
+		this.qtdConexoes = qtdConexoes;
+	}
+
+	public SSHnioChecker(SSHsource fonte, int qtdSelectors, int qtdConexoes) {
+		super(fonte, qtdSelectors);
+		this.qtdConexoes = qtdConexoes;
+	}
+
+	@Override
+	int getQtdWorkers() {
+		return getQtdThreads();
+	}
+
+	@Override
+	void startCheckers() {
+		int qtdSelectors = getQtdThreads();
+		selectors = new SelectorChecker[qtdSelectors];
+
+		for (int i = 0; i < qtdSelectors; i++) {
+			int max = qtdConexoes / qtdSelectors + (i < qtdConexoes % qtdSelectors ? 1 : 0);
+			selectors[i] = new SelectorChecker(Math.max(max, 1));
+		}
+
+		for (SelectorChecker s : selectors)
+			newThread(s).start();
+	}
+
+	@Override
+	void stopCheckers() {
+		if (selectors == null)
+			return;
+
+		for (SelectorChecker s : selectors)
+			if (s.selector != null)
+				s.selector.wakeup();
+	}
+
+	private class SelectorChecker implements Runnable {
+		private final Selector selector;
+		private final int maxConexoes;
+		private final List<NioCheck> checks = new ArrayList<NioCheck>();
+		/* Esperando o DnsCache; a thread do selector nunca resolve nomes */
+		private final List<NioCheck> resolvendo = new ArrayList<NioCheck>();
+		private final ByteBuffer leitura = ByteBuffer.allocate(8192);
+		private final SecureRandom rnd = new SecureRandom();
+		private final ResultBuffer resultado = newResultBuffer();
+
+		public SelectorChecker(int maxConexoes) {
+			Selector s = null;
+			try {
+				s = Selector.open();
+			} catch (IOException e) {
+				onLog("SSH checker: " + e.getMessage());
+			}
+			this.selector = s;
+			this.maxConexoes = maxConexoes;
+		}
+
+		@Override
+		public void run() {
+			if (selector == null) {
+				checkerDone();
+				return;
+			}
+
+			try {
+				while (true) {
+					SSH ssh;
+
+					while (checks.size() < maxConexoes && (ssh = getSsh(false)) != null)
+						start(ssh);
+
+					if (!isRunning()) {
+						for (NioCheck c : new ArrayList<NioCheck>(checks)) {
+							c.ssh.stopCheck();
+							c.close();
+						}
+						break;
+					}
+
+					/* Sem checks mas com alvos: o controle está sem vaga agora */
+					if (checks.isEmpty() && !hasSsh())
+						break;
+
+					selector.select(resolvendo.isEmpty() ? SELECT_TIMEOUT : SELECT_TIMEOUT_DNS);
+
+					for (NioCheck c : new ArrayList<NioCheck>(resolvendo)) {
+						try {
+							c.tentarConectar();
+						} catch (IOException e) {
+							c.finish(false, e);
+						}
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						NioCheck c = (NioCheck) key.attachment();
+						try {
+							c.handle(key);
+						} catch (IOException e) {
+							c.finish(false, e);
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					for (NioCheck c : new ArrayList<NioCheck>(checks))
+						if (now > c.deadline)
+							c.finish(false, new SocketTimeoutException("The connect timeout expired"));
+				}
+			} catch (IOException e) {
+				onLog("SSH checker: " + e.getMessage());
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException ignore) {}
+
+				checkerDone();
+			}
+		}
+
+		private void start(SSH ssh) {
+			if (ssh.semSenha(getPool())) {
+				sshDone(ssh);
+				addResult(resultado, ssh);
+				return;
+			}
+
+			NioCheck c = new NioCheck(ssh);
+			checks.add(c);
+
+			try {
+				c.connect();
+			} catch (IOException e) {
+				c.finish(false, e);
+			}
+		}
+
+		private class NioCheck {
+			private static final int CONECTANDO = 0;
+			private static final int TRANSPORTE = 1;
+			private static final int SERVICO = 2;
+			private static final int AUTH_NONE = 3;
+			private static final int AUTH_PASSWORD = 4;
+			private static final int FIM = 5;
+
+			private final SSH ssh;
+			private SocketChannel channel;
+			private SelectionKey key;
+			private NioTransportManager tm;
+			private ByteBuffer saida;
+			private int estado = CONECTANDO;
+			private final ConnectionTimings tempos = new ConnectionTimings();
+			private long deadline;
+			private long inicio;
+			private boolean aguardandoDns;
+
+			public NioCheck(SSH ssh) {
+				this.ssh = ssh;
+			}
+
+			public void connect() throws IOException {
+				inicio = System.currentTimeMillis();
+				deadline = inicio + SSH.TIMEOUT_TCP_CONNECTION;
+				tempos.start(ConnectionTimings.TCP);
+				tentarConectar();
+			}
+
+			/**
+			 * Conecta se o nome já está resolvido; senão fica em resolvendo
+			 * (o DnsCache resolve em segundo plano) até a próxima volta.
+			 */
+			void tentarConectar() throws IOException {
+				InetAddress ip = DnsCache.poll(ssh.getHost());
+
+				if (ip == null) {
+					if (!aguardandoDns) {
+						aguardandoDns = true;
+						resolvendo.add(this);
+					}
+					return;
+				}
+
+				if (aguardandoDns) {
+					aguardandoDns = false;
+					resolvendo.remove(this);
+				}
+
+				ExclusionList ex = getExclusion();
+				if (ex != null && ex.exclui(ip))
+					throw new IOException(SSH.MSG_EXCLUIDO);
+
+				InetSocketAddress addr = new InetSocketAddress(ip, ssh.getPort());
+
+				long cpu = CpuTime.now();
+				boolean conectou;
+
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+				conectou = channel.connect(addr);
+				io(cpu);
+
+				if (conectou)
+					connected();
+			}
+
+			public void handle(SelectionKey key) throws IOException {
+				if (!key.isValid())
+					return;
+
+				if (key.isConnectable()) {
+					long cpu = CpuTime.now();
+					boolean conectou = channel.finishConnect();
+					io(cpu);
+
+					if (conectou)
+						connected();
+				}
+
+				if (key.isValid() && key.isReadable())
+					read();
+
+				if (key.isValid() && key.isWritable())
+					flush();
+			}
+
+			private void connected() throws IOException {
+				tempos.end(ConnectionTimings.TCP);
+				tempos.start(ConnectionTimings.BANNER);
+
+				CryptoWishList cwl = new CryptoWishList();
+				cwl.c2s_comp_algos = new String[] { "none" };
+				cwl.s2c_comp_algos = new String[] { "none" };
+
+				tm = new NioTransportManager(ssh.getHost(), ssh.getPort(), cwl, rnd);
+				tm.setTimings(tempos);
+				tm.setStopAfterHello(ssh.getMode() == SSH.MODE_BANNER);
+				tm.setStopAtKexInit(ssh.getMode() == SSH.MODE_KEXINIT);
+				estado = TRANSPORTE;
+				deadline = System.currentTimeMillis() + SSH.TIMEOUT_SSH_CONNECTION;
+				flush();
+			}
+
+			private void read() throws IOException {
+				int len;
+				long cpu = CpuTime.now();
+
+				while ((len = channel.read(leitura)) > 0) {
+					tm.receive(leitura.array(), 0, len);
+					leitura.clear();
+				}
+				io(cpu);
+
+				byte[] msg;
+				while (estado != FIM && (msg = tm.receiveMessage()) != null)
+					handleMessage(msg);
+
+				if (estado == FIM)
+					return;
+
+				/* O KEXINIT já sai junto com a nossa identificação */
+				if (tm.getServerVersionComment() != null && tempos.getNanos(ConnectionTimings.BANNER) == -1) {
+					tempos.end(ConnectionTimings.BANNER);
+					tempos.start(ConnectionTimings.KEX);
+				}
+
+				if (ssh.getMode() == SSH.MODE_BANNER && tm.getServerVersionComment() != null) {
+					ssh.setServerVersion(tm.getServerVersionComment());
+					ssh.setConnectTime(System.currentTimeMillis() - inicio);
+					finish(true, null);
+					return;
+				}
+
+				if (ssh.getMode() == SSH.MODE_KEXINIT && tm.getServerKexParameters() != null) {
+					tempos.end(ConnectionTimings.KEX);
+					ssh.setServerKex(tm.getServerKexParameters());
+					ssh.setConnectTime(System.currentTimeMillis() - inicio);
+					finish(true, null);
+					return;
+				}
+
+				if (estado == TRANSPORTE && tm.isKexFinished()) {
+					tempos.end(ConnectionTimings.KEX);
+					ssh.setConnectTime(System.currentTimeMillis() - inicio);
+					tm.sendMessage(new PacketServiceRequest("ssh-userauth").getPayload());
+					tm.sendMessage(new PacketUserauthRequestNone("ssh-connection", ssh.getUser()).getPayload());
+					estado = SERVICO;
+				}
+
+				if (len == -1)
+					throw new IOException("Premature connection close");
+
+				flush();
+			}
+
+			private void handleMessage(byte[] msg) throws IOException {
+				int type = msg[0] & 0xff;
+
+				if (type == Packets.SSH_MSG_USERAUTH_BANNER)
+					return;
+
+				if (estado == SERVICO) {
+					new PacketServiceAccept(msg, 0, msg.length);
+					estado = AUTH_NONE;
+					return;
+				}
+
+				if (estado == AUTH_NONE || estado == AUTH_PASSWORD) {
+					if (estado == AUTH_PASSWORD)
+						tempos.end(ConnectionTimings.AUTH);
+
+					if (type == Packets.SSH_MSG_USERAUTH_SUCCESS) {
+						if (estado == AUTH_NONE)
+							ssh.setAuthMethods(new String[] { "none" });
+						finish(true, null);
+						return;
+					}
+
+					if (type == Packets.SSH_MSG_USERAUTH_FAILURE) {
+						if (estado == AUTH_PASSWORD) {
+							finish(false, null);
+							return;
+						}
+
+						PacketUserauthFailure puf = new PacketUserauthFailure(msg, 0, msg.length);
+						ssh.setAuthMethods(puf.getAuthThatCanContinue());
+
+						if (ssh.getMode() == SSH.MODE_AUTH_METHODS) {
+							finish(SSH.contem(puf.getAuthThatCanContinue(), "password"), null);
+							return;
+						}
+
+						if (!SSH.contem(puf.getAuthThatCanContinue(), "password")) {
+							getPool().marcarSemSenha(ssh);
+							throw new IOException(SSH.MSG_SEM_SENHA);
+						}
+
+						tempos.start(ConnectionTimings.AUTH);
+						tm.sendMessage(new PacketUserauthRequestPassword("ssh-connection", ssh.getUser(), ssh.getPass()).getPayload());
+						estado = AUTH_PASSWORD;
+						return;
+					}
+				}
+
+				throw new IOException("Unexpected SSH message (type " + type + ")");
+			}
+
+			private void flush() throws IOException {
+				byte[] pendente = tm.getPendingOutput();
+
+				if (pendente != null) {
+					if (saida != null && saida.hasRemaining()) {
+						ByteBuffer tmp = ByteBuffer.allocate(saida.remaining() + pendente.length);
+						tmp.put(saida).put(pendente).flip();
+						saida = tmp;
+					} else {
+						saida = ByteBuffer.wrap(pendente);
+					}
+				}
+
+				if (saida != null) {
+					long cpu = CpuTime.now();
+					channel.write(saida);
+					io(cpu);
+				}
+
+				if (saida != null && saida.hasRemaining())
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				else
+					key.interestOps(SelectionKey.OP_READ);
+			}
+
+			/* Tempo de CPU nas chamadas do socket desde cpu (ver CpuTime) */
+			private void io(long cpu) {
+				tempos.addCpu(ConnectionTimings.CPU_IO, CpuTime.since(cpu));
+			}
+
+			public void finish(boolean isOn, Exception e) {
+				if (!checks.remove(this))
+					return;
+
+				estado = FIM;
+
+				if (tm != null) {
+					tm.close(new Throwable("Closed due to user request."), e == null);
+					try {
+						flush();
+					} catch (IOException ignore) {}
+				}
+				close();
+
+				ssh.setTempos(tempos, ConnectionTimings.TCP, ConnectionTimings.AUTH);
+				ssh.setResult(isOn, e);
+				sshDone(ssh);
+				addResult(resultado, ssh);
+			}
+
+			public void close() {
+				checks.remove(this);
+				if (aguardandoDns) {
+					aguardandoDns = false;
+					resolvendo.remove(this);
+				}
+
+				if (key != null)
+					key.cancel();
+
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ignore) {}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checker em estágios: resolução DNS, conexão (TCP + banner + KEX) e
+ * autenticação, cada um com suas threads e ligados por filas limitadas. Uma
+ * conexão de 10s esperando TCP não ocupa mais a vaga de quem só falta
+ * autenticar, e a vazão passa a ser a do estágio mais lento. As contas do KEX
+ * rodam nas threads da própria conexão, limitadas ao número de núcleos
+ * somando só as conexões deste checker.
+ */
+public class SSHpipelineChecker extends SSHchecker {
+	public static final int DEFAULT_QTD_RESOLVE = 8;
+	public static final int DEFAULT_QTD_CONEXAO = 32;
+	public static final int DEFAULT_QTD_AUTH = 16;
+
+	/* Marca de fim de fila, uma por thread do estágio seguinte */
+	private static final SSH FIM = new SSH("", 0, "", "");
+
+	private final int qtdResolve;
+	private final int qtdConexao;
+	private final int qtdAuth;
+
+	private BlockingQueue<SSH> resolvidos;
+	private BlockingQueue<SSH> conectados;
+	private Semaphore limiteKex;
+	private final Set<SSH> emAndamento = Collections.newSetFromMap(new ConcurrentHashMap<SSH, Boolean>());
+
+	public SSHpipelineChecker(List<SSH> sshs, int qtdResolve, int qtdConexao, int qtdAuth) {
+		super(sshs, qtdConexao);
+		this.qtdResolve = qtdResolve;
+		this.qtdConexao = qtdConexao;
+		this.qtdAuth = qtdAuth;
+	}
+
+	public SSHpipelineChecker(SSHsource fonte, int qtdResolve, int qtdConexao, int qtdAuth) {
+		super(fonte, qtdConexao);
+		this.qtdResolve = qtdResolve;
+		this.qtdConexao = qtdConexao;
+		this.qtdAuth = qtdAuth;
+	}
+
+	@Override
+	int getQtdWorkers() {
+		return qtdResolve + qtdConexao + qtdAuth;
+	}
+
+	@Override
+	void startCheckers() {
+		resolvidos = new ArrayBlockingQueue<SSH>(qtdConexao * 2);
+		conectados = new ArrayBlockingQueue<SSH>(qtdAuth * 2);
+		limiteKex = new Semaphore(Runtime.getRuntime().availableProcessors());
+
+		AtomicInteger resolveAtivos = new AtomicInteger(qtdResolve);
+		AtomicInteger conexaoAtivos = new AtomicInteger(qtdConexao);
+		AtomicInteger authAtivos = new AtomicInteger(qtdAuth);
+
+		for (int i = 0; i < qtdResolve; i++)
+			newThread(new Resolve(resolveAtivos)).start();
+		for (int i = 0; i < qtdConexao; i++)
+			newThread(new Conexao(conexaoAtivos)).start();
+		for (int i = 0; i < qtdAuth; i++)
+			newThread(new Auth(authAtivos)).start();
+	}
+
+	@Override
+	void stopCheckers() {
+		for (SSH ssh : emAndamento)
+			ssh.stopCheck();
+	}
+
+	private abstract class Estagio implements Runnable {
+		private final AtomicInteger ativos;
+		private final BlockingQueue<SSH> seguinte;
+		private final int qtdSeguinte;
+		private final ResultBuffer resultado = newResultBuffer();
+
+		public Estagio(AtomicInteger ativos, BlockingQueue<SSH> seguinte, int qtdSeguinte) {
+			this.ativos = ativos;
+			this.seguinte = seguinte;
+			this.qtdSeguinte = qtdSeguinte;
+		}
+
+		/**
+		 * @return null quando o estágio anterior acabou.
+		 */
+		abstract SSH proximo() throws InterruptedException;
+
+		/**
+		 * @return a fila para onde o SSH segue, ou null se terminou.
+		 */
+		abstract BlockingQueue<SSH> processar(SSH ssh) throws IOException;
+
+		@Override
+		public void run() {
+			try {
+				SSH ssh;
+
+				while ((ssh = proximo()) != null) {
+					BlockingQueue<SSH> fila = null;
+
+					emAndamento.add(ssh);
+					try {
+						if (!isRunning())
+							ssh.stopCheck();
+						else
+							fila = processar(ssh);
+					} catch (IOException e) {
+						ssh.falhar(e);
+					} finally {
+						emAndamento.remove(ssh);
+					}
+
+					if (ssh.isStopped() || fila == null)
+						concluido(ssh);
+					else
+						fila.put(ssh);
+				}
+			} catch (InterruptedException e) {
+				onLog("SSH checker: interrupted exception!");
+			} finally {
+				if (ativos.decrementAndGet() == 0)
+					ultimo();
+
+				checkerDone();
+			}
+		}
+
+		private void concluido(SSH ssh) {
+			sshDone(ssh);
+
+			if (!ssh.isStopped())
+				addResult(resultado, ssh);
+		}
+
+		void ultimo() {
+			for (int i = 0; i < qtdSeguinte; i++) {
+				while (true) {
+					try {
+						seguinte.put(FIM);
+						break;
+					} catch (InterruptedException ignore) {}
+				}
+			}
+		}
+	}
+
+	private class Resolve extends Estagio {
+		public Resolve(AtomicInteger ativos) {
+			super(ativos, resolvidos, qtdConexao);
+		}
+
+		@Override
+		SSH proximo() {
+			return getSsh(true);
+		}
+
+		@Override
+		BlockingQueue<SSH> processar(SSH ssh) throws IOException {
+			if (ssh.semSenha(getPool()))
+				return null;
+
+			if (ssh.reaproveitar(getPool()))
+				return conectados;
+
+			ssh.setLimiteKex(limiteKex);
+			ssh.resolver();
+			return resolvidos;
+		}
+	}
+
+	private class Conexao extends Estagio {
+		public Conexao(AtomicInteger ativos) {
+			super(ativos, conectados, qtdAuth);
+		}
+
+		@Override
+		SSH proximo() throws InterruptedException {
+			SSH ssh = resolvidos.take();
+			return (ssh == FIM) ? null : ssh;
+		}
+
+		@Override
+		BlockingQueue<SSH> processar(SSH ssh) throws IOException {
+			ssh.conectar();
+			return ssh.isComplete() ? null : conectados;
+		}
+	}
+
+	private class Auth extends Estagio {
+		public Auth(AtomicInteger ativos) {
+			super(ativos, null, 0);
+		}
+
+		@Override
+		SSH proximo() throws InterruptedException {
+			SSH ssh = conectados.take();
+			return (ssh == FIM) ? null : ssh;
+		}
+
+		@Override
+		BlockingQueue<SSH> processar(SSH ssh) throws IOException {
+			ssh.autenticar(getPool());
+			return null;
+		}
+	}
+}
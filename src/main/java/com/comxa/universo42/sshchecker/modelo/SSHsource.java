@@ -0,0 +1,162 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alvos entregues ao SSHchecker um a um, conforme os workers pedem, sem que
+ * a lista inteira precise estar na memória. next() é chamado por várias
+ * threads ao mesmo tempo.
+ */
+public interface SSHsource {
+	/**
+	 * @return o próximo alvo, ou null quando acabaram.
+	 */
+	SSH next() throws IOException;
+
+	/**
+	 * @return o total de alvos, ou -1 se ainda não se sabe.
+	 */
+	int size();
+
+	void close();
+
+	/**
+	 * Alvos já na memória, na ordem da lista. Cada next() só pega o próximo
+	 * índice, sem lock.
+	 */
+	class ListSource implements SSHsource {
+		private final SSH[] alvos;
+		private final AtomicInteger proximo = new AtomicInteger();
+
+		public ListSource(List<SSH> sshs) {
+			this.alvos = sshs.toArray(new SSH[sshs.size()]);
+		}
+
+		/**
+		 * Se alguma chave do ConnectionPool (host:port e usuário) se repete,
+		 * junta os alvos de cada chave onde ela aparece primeiro, mantendo a
+		 * ordem entre eles, para que as senhas seguintes reaproveitem a
+		 * conexão; só essas chaves são registradas no pool. Sem repetição a
+		 * ordem não muda. A chave de cada alvo é montada uma vez só. Deve
+		 * ser chamado antes do primeiro next().
+		 */
+		void agrupar(ConnectionPool pool) {
+			Map<String, Integer> grupos = new HashMap<String, Integer>();
+			String[] chaves = new String[alvos.length];
+			int[] grupo = new int[alvos.length];
+			int[] tamanhos = new int[16];
+
+			for (int i = 0; i < alvos.length; i++) {
+				chaves[i] = ConnectionPool.chave(alvos[i]);
+				Integer g = grupos.get(chaves[i]);
+
+				if (g == null) {
+					g = grupos.size();
+					grupos.put(chaves[i], g);
+
+					if (g == tamanhos.length)
+						tamanhos = Arrays.copyOf(tamanhos, g * 2);
+				}
+
+				grupo[i] = g;
+				tamanhos[g]++;
+			}
+
+			if (grupos.size() == alvos.length)
+				return;
+
+			/* Início de cada grupo, na ordem da primeira aparição */
+			int[] inicios = new int[grupos.size()];
+			for (int g = 1; g < inicios.length; g++)
+				inicios[g] = inicios[g - 1] + tamanhos[g - 1];
+
+			SSH[] ordenados = new SSH[alvos.length];
+			for (int i = 0; i < alvos.length; i++) {
+				int g = grupo[i];
+
+				if (tamanhos[g] > 1 && ordenados[inicios[g]] == null)
+					pool.esperar(chaves[i], tamanhos[g]);
+
+				ordenados[inicios[g]++] = alvos[i];
+			}
+
+			System.arraycopy(ordenados, 0, alvos, 0, alvos.length);
+		}
+
+		@Override
+		public SSH next() {
+			int i = proximo.getAndIncrement();
+
+			if (i >= alvos.length) {
+				proximo.set(alvos.length);
+				return null;
+			}
+			return alvos[i];
+		}
+
+		@Override
+		public int size() {
+			return alvos.length;
+		}
+
+		@Override
+		public void close() {
+			proximo.set(alvos.length);
+		}
+	}
+
+	/**
+	 * Uma fonte depois da outra.
+	 */
+	class Chain implements SSHsource {
+		private final SSHsource[] fontes;
+		private final AtomicInteger atual = new AtomicInteger();
+
+		public Chain(SSHsource... fontes) {
+			this.fontes = fontes;
+		}
+
+		SSHsource[] getFontes() {
+			return this.fontes;
+		}
+
+		@Override
+		public SSH next() throws IOException {
+			while (true) {
+				int i = atual.get();
+
+				if (i >= fontes.length)
+					return null;
+
+				SSH ssh = fontes[i].next();
+				if (ssh != null)
+					return ssh;
+
+				atual.compareAndSet(i, i + 1);
+			}
+		}
+
+		@Override
+		public int size() {
+			int total = 0;
+
+			for (SSHsource f : fontes) {
+				if (f.size() < 0)
+					return -1;
+				total += f.size();
+			}
+			return total;
+		}
+
+		@Override
+		public void close() {
+			for (SSHsource f : fontes)
+				f.close();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lê os alvos linha a linha numa thread própria, no máximo readAhead à
+ * frente de quem consome. Nada é aberto até o primeiro next(); a memória
+ * usada não depende do tamanho do arquivo. Só pode ser percorrido uma vez.
+ */
+public abstract class SSHstream implements SSHsource, Runnable {
+	public static final int DEFAULT_READ_AHEAD = 1024;
+
+	/* Marca de fim; quem a tira da fila a devolve para os outros */
+	private static final SSH FIM = new SSH("", 0, "", "");
+
+	private final BlockingQueue<SSH> fila;
+	private final AtomicBoolean iniciado = new AtomicBoolean();
+	private final AtomicReference<IOException> erro = new AtomicReference<IOException>();
+	private volatile Thread leitor;
+	private volatile boolean fechado;
+	private volatile int qtdTotal = -1;
+
+	SSHstream(int readAhead) {
+		this.fila = new ArrayBlockingQueue<SSH>(readAhead);
+	}
+
+	/**
+	 * Abre a entrada; chamado na thread de leitura.
+	 */
+	abstract BufferedReader abrir() throws IOException;
+
+	/**
+	 * Coloca em saida os SSHs da linha (nenhum, se ela não tiver alvo).
+	 */
+	abstract void parse(String linha, List<SSH> saida);
+
+	/**
+	 * Bloqueia até haver um alvo lido. Um erro de leitura é lançado uma vez;
+	 * depois dele a fonte só retorna null.
+	 */
+	@Override
+	public SSH next() throws IOException {
+		if (fechado)
+			return null;
+
+		if (iniciado.compareAndSet(false, true)) {
+			Thread t = new Thread(this, "SSHstream");
+			t.setDaemon(true);
+			leitor = t;
+			t.start();
+		}
+
+		SSH ssh;
+		try {
+			ssh = fila.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		if (ssh != FIM)
+			return ssh;
+
+		fila.offer(FIM);
+
+		IOException e = erro.getAndSet(null);
+		if (e != null)
+			throw e;
+
+		return null;
+	}
+
+	/**
+	 * @return quantos alvos a entrada tinha, ou -1 se a leitura não acabou.
+	 */
+	@Override
+	public int size() {
+		return qtdTotal;
+	}
+
+	@Override
+	public void close() {
+		fechado = true;
+
+		Thread t = leitor;
+		if (t != null)
+			t.interrupt();
+
+		fila.clear();
+		fila.offer(FIM);
+	}
+
+	@Override
+	public void run() {
+		List<SSH> lote = new ArrayList<SSH>();
+		BufferedReader reader = null;
+		int qtd = 0;
+
+		try {
+			reader = abrir();
+			String linha;
+
+			while (!fechado && (linha = reader.readLine()) != null) {
+				parse(linha, lote);
+
+				for (SSH ssh : lote)
+					fila.put(ssh);
+
+				qtd += lote.size();
+				lote.clear();
+			}
+
+			if (!fechado)
+				qtdTotal = qtd;
+		} catch (IOException e) {
+			erro.set(e);
+		} catch (InterruptedException ignore) {
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException ignore) {}
+			}
+
+			if (fechado)
+				fila.clear();
+
+			while (true) {
+				try {
+					fila.put(FIM);
+					break;
+				} catch (InterruptedException ignore) {
+					if (fechado)
+						fila.clear();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+/**
+ * Embaralha os índices 0..n-1 sem guardar lista: cada índice passa por uma
+ * rede de Feistel com chaves tiradas da semente, sobre a menor potência de 4
+ * que cobre n, e é reaplicada enquanto cair fora (cycle-walking). O
+ * resultado é uma permutação de 0..n-1 com estado O(1), então faixas
+ * seguidas são visitadas espalhadas pelas sub-redes.
+ */
+public class ScanOrder {
+	private static final int RODADAS = 4;
+
+	private final long n;
+	private final int bitsMetade;
+	private final long mascara;
+	private final long[] chaves = new long[RODADAS];
+
+	public ScanOrder(long n, long semente) {
+		this.n = n;
+
+		int bits = 64 - Long.numberOfLeadingZeros(Math.max(n - 1, 1));
+		this.bitsMetade = (bits + 1) / 2;
+		this.mascara = (1L << bitsMetade) - 1;
+
+		for (int r = 0; r < RODADAS; r++) {
+			semente = LongHashSet.mix(semente + 0x9e3779b97f4a7c15L);
+			chaves[r] = semente;
+		}
+	}
+
+	public long size() {
+		return this.n;
+	}
+
+	/**
+	 * @return a posição i da ordem embaralhada (0 <= i < size()).
+	 */
+	public long get(long i) {
+		do {
+			i = embaralhar(i);
+		} while (i >= n);
+
+		return i;
+	}
+
+	private long embaralhar(long x) {
+		long esq = x >>> bitsMetade;
+		long dir = x & mascara;
+
+		for (int r = 0; r < RODADAS; r++) {
+			long aux = esq ^ (LongHashSet.mix(dir ^ chaves[r]) & mascara);
+			esq = dir;
+			dir = aux;
+		}
+
+		return (esq << bitsMetade) | dir;
+	}
+}
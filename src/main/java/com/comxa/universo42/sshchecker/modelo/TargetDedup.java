@@ -0,0 +1,103 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+/**
+ * Descarta, durante o carregamento, alvos que já apareceram; os repetidos
+ * só são contados. Pode ser passado a vários SSHloaders para juntar
+ * arquivos e colagens sem repetição.
+ *
+ * A chave de um IPv4 é o próprio (ip, porta) empacotado num long. Com
+ * CREDENCIAL ela é misturada a um hash de 64 bits de user/pass, e de um
+ * hostname entra o hash do nome; nesses casos dois alvos diferentes só
+ * colidem com chance da ordem de 2^-64 por par.
+ */
+public class TargetDedup {
+	/* host:port iguais, qualquer credencial */
+	public static final int HOST = 1;
+	/* host:port, user e pass iguais */
+	public static final int CREDENCIAL = 2;
+
+	private final int modo;
+	private final LongHashSet vistos = new LongHashSet();
+	private int qtdDuplicados;
+
+	public TargetDedup(int modo) {
+		this.modo = modo;
+	}
+
+	public int getMode() {
+		return this.modo;
+	}
+
+	/**
+	 * @return quantos alvos foram descartados por repetição.
+	 */
+	public int getQtdDuplicates() {
+		return this.qtdDuplicados;
+	}
+
+	/**
+	 * @return quantos alvos distintos já passaram.
+	 */
+	public int getQtdDistinct() {
+		return vistos.size();
+	}
+
+	/**
+	 * @return false (e conta) se a chave já foi vista.
+	 */
+	boolean novo(long chave) {
+		if (vistos.add(chave))
+			return true;
+
+		qtdDuplicados++;
+		return false;
+	}
+
+	boolean novo(SSH ssh) {
+		return novo(chave(ssh.getHost(), ssh.getPort(), ssh.getUser(), ssh.getPass()));
+	}
+
+	/**
+	 * Só calcula; pode ser chamado de várias threads.
+	 */
+	long chave(String host, int port, String user, String pass) {
+		long ip = TargetTable.parseIPv4(host);
+
+		if (ip == -1 || port < 0 || port > 0xffff) {
+			/* Bit 63 ligado: não se confunde com um IPv4 empacotado */
+			long h = LongHashSet.mix(hash(host.toLowerCase()) * 31 + port) | Long.MIN_VALUE;
+			return (modo == CREDENCIAL) ? h ^ hashCredencial(user, pass) : h;
+		}
+
+		return chave((int) ip, port, modo == CREDENCIAL ? hashCredencial(user, pass) : 0);
+	}
+
+	/**
+	 * @param hashCredencial de hashCredencial(); ignorado com HOST.
+	 */
+	long chave(int ip, int port, long hashCredencial) {
+		long empacotado = ((ip & 0xffffffffL) << 16) | (port & 0xffff);
+
+		if (modo != CREDENCIAL)
+			return empacotado;
+
+		return LongHashSet.mix(empacotado) ^ hashCredencial;
+	}
+
+	static long hashCredencial(String user, String pass) {
+		return LongHashSet.mix(hash(user) * 0x9e3779b97f4a7c15L + hash(pass));
+	}
+
+	/**
+	 * FNV-1a de 64 bits sobre os chars.
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,231 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Faixas de IPv4 ("10.0.0.0/16", "1.2.3.4-1.2.3.200") com credenciais fixas.
+ * Só o início, o tamanho e a porta de cada faixa ficam na memória: o alvo de
+ * cada índice é calculado quando um worker o pede, então uma faixa /8 custa
+ * o mesmo que um IP só.
+ */
+public class TargetRange implements SSHsource {
+	private final String user;
+	private final String pass;
+
+	private int qtdFaixas;
+	private long[] inicios = new long[16];
+	/* Quantos alvos há antes de cada faixa, para achar a faixa de um índice */
+	private long[] anteriores = new long[16];
+	private int[] ports = new int[16];
+	private long total;
+	/* null: na ordem das faixas */
+	private ScanOrder ordem;
+	private ExclusionList exclusao;
+	/* Algum "ip/bits" ou "ip-ip" com mais de um IP foi adicionado */
+	private boolean temFaixas;
+
+	private final AtomicLong proximo = new AtomicLong();
+
+	public TargetRange(String user, String pass) {
+		this.user = user;
+		this.pass = pass;
+	}
+
+	/**
+	 * Aceita "ip", "ip/bits" ou "ip-ip", cada um com ":porta" opcional.
+	 *
+	 * @param port usada quando o texto não traz porta.
+	 * @return false se o texto não é uma faixa.
+	 */
+	public boolean add(String faixa, int port) {
+		return add(faixa, port, false);
+	}
+
+	/**
+	 * Como add(String, int), mas só aceita "ip/bits" e "ip-ip": para um IP
+	 * solto dá false e não adiciona nada.
+	 */
+	public boolean addFaixa(String faixa, int port) {
+		return add(faixa, port, true);
+	}
+
+	private boolean add(String faixa, int port, boolean soFaixa) {
+		int aux = faixa.lastIndexOf(':');
+
+		if (aux != -1) {
+			try {
+				port = Integer.parseInt(faixa.substring(aux + 1));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+
+			if (port <= 0 || port > 0xffff)
+				return false;
+
+			faixa = faixa.substring(0, aux);
+		}
+
+		long inicio;
+		long fim;
+
+		if ((aux = faixa.indexOf('/')) != -1) {
+			inicio = TargetTable.parseIPv4(faixa.substring(0, aux));
+			int bits;
+
+			try {
+				bits = Integer.parseInt(faixa.substring(aux + 1));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+
+			if (inicio == -1 || bits < 0 || bits > 32)
+				return false;
+
+			long tam = 1L << (32 - bits);
+			inicio &= ~(tam - 1) & 0xffffffffL;
+			fim = inicio + tam - 1;
+		} else if ((aux = faixa.indexOf('-')) != -1) {
+			inicio = TargetTable.parseIPv4(faixa.substring(0, aux));
+			fim = TargetTable.parseIPv4(faixa.substring(aux + 1));
+
+			if (inicio == -1 || fim < inicio)
+				return false;
+		} else {
+			if (soFaixa)
+				return false;
+
+			inicio = fim = TargetTable.parseIPv4(faixa);
+
+			if (inicio == -1)
+				return false;
+		}
+
+		if (fim > inicio)
+			temFaixas = true;
+
+		add(inicio, fim, port);
+		return true;
+	}
+
+	/**
+	 * @param inicio primeiro IPv4 (sem sinal) da faixa.
+	 * @param fim último IPv4, inclusive.
+	 */
+	public void add(long inicio, long fim, int port) {
+		int ultima = qtdFaixas - 1;
+
+		/* IPs seguidos na mesma porta viram uma faixa só */
+		if (ultima >= 0 && ports[ultima] == port && inicios[ultima] + (total - anteriores[ultima]) == inicio) {
+			total += fim - inicio + 1;
+			return;
+		}
+
+		if (qtdFaixas == inicios.length) {
+			inicios = Arrays.copyOf(inicios, qtdFaixas * 2);
+			anteriores = Arrays.copyOf(anteriores, qtdFaixas * 2);
+			ports = Arrays.copyOf(ports, qtdFaixas * 2);
+		}
+
+		inicios[qtdFaixas] = inicio;
+		anteriores[qtdFaixas] = total;
+		ports[qtdFaixas] = port;
+		qtdFaixas++;
+		total += fim - inicio + 1;
+	}
+
+	/**
+	 * Visita os alvos numa ordem pseudo-aleatória (ver ScanOrder) em vez de
+	 * IP por IP, espalhando a carga pelas sub-redes. A mesma semente dá a
+	 * mesma ordem. Chamar depois de adicionar as faixas.
+	 */
+	public void shuffle(long semente) {
+		this.ordem = new ScanOrder(total, semente);
+	}
+
+	/**
+	 * IPs numa rede da lista são pulados ao serem gerados (e contados em
+	 * ExclusionList.getQtdExcluded()); size() continua contando com eles.
+	 */
+	public void setExclusion(ExclusionList exclusao) {
+		this.exclusao = exclusao;
+	}
+
+	/**
+	 * @return se algum texto "ip/bits" ou "ip-ip" com mais de um IP foi
+	 *         adicionado. IPs soltos seguidos, que são juntados numa faixa
+	 *         só, não contam.
+	 */
+	public boolean hasRanges() {
+		return temFaixas;
+	}
+
+	@Override
+	public SSH next() {
+		while (true) {
+			long i = proximo.getAndIncrement();
+
+			if (i >= total) {
+				proximo.set(total);
+				return null;
+			}
+
+			if (ordem != null)
+				i = ordem.get(i);
+
+			int f = faixa(i);
+			int ip = (int) (inicios[f] + i - anteriores[f]);
+
+			if (exclusao == null || !exclusao.exclui(ip))
+				return new SSH(IpScanner.toString(ip), ports[f], user, pass);
+		}
+	}
+
+	public SSH get(long i) {
+		int f = faixa(i);
+
+		return new SSH(IpScanner.toString((int) (inicios[f] + i - anteriores[f])), ports[f], user, pass);
+	}
+
+	/**
+	 * @return o total, ou -1 se passa de Integer.MAX_VALUE (ver getTotal()).
+	 */
+	@Override
+	public int size() {
+		return (total > Integer.MAX_VALUE) ? -1 : (int) total;
+	}
+
+	public long getTotal() {
+		return this.total;
+	}
+
+	@Override
+	public void close() {
+		proximo.set(total);
+	}
+
+	/**
+	 * Volta ao primeiro alvo, para percorrer as faixas de novo.
+	 */
+	public void rewind() {
+		proximo.set(0);
+	}
+
+	/**
+	 * Busca binária pela última faixa que começa em até i.
+	 */
+	private int faixa(long i) {
+		int ini = 0;
+		int fim = qtdFaixas - 1;
+
+		while (ini < fim) {
+			int meio = (ini + fim + 1) >>> 1;
+
+			if (anteriores[meio] <= i)
+				ini = meio;
+			else
+				fim = meio - 1;
+		}
+		return ini;
+	}
+}
@@ -0,0 +1,343 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alvos em arrays de primitivos para listas grandes: o IPv4 num int, a porta
+ * num short, user/pass como índice de um dicionário (com credenciais fixas
+ * todos apontam para a mesma entrada) e a linha original como posição no
+ * arquivo ou texto de origem. Como SSHsource, o SSH só é criado quando um
+ * worker pede o alvo.
+ *
+ * Com o dicionário cheio (listas com senha diferente em cada linha), user e
+ * pass de quem tem linha deixam de ser guardados e são lidos dela de novo.
+ *
+ * Alvos que não cabem (host que não é um IPv4 escrito na forma normal,
+ * porta fora de 0..65535) ficam guardados como SSH mesmo.
+ */
+public class TargetTable implements SSHsource {
+	static final int SEM_LINHA = -1;
+	public static final int MAX_CREDENCIAIS = 1 << 16;
+	/* user/pass são lidos da linha */
+	private static final int DA_LINHA = -1;
+
+	private int qtd;
+	private int[] ips = new int[16];
+	private short[] ports = new short[16];
+	private int[] credenciais = new int[16];
+	/* null enquanto nenhum alvo tem linha */
+	private long[] linhas;
+	private int[] tamanhos;
+	private final Map<Integer, SSH> avulsos = new HashMap<Integer, SSH>();
+	/* Chave de TargetDedup de cada alvo; só nas partes de um carregamento */
+	private long[] chaves;
+
+	private final List<String> users = new ArrayList<String>();
+	private final List<String> passes = new ArrayList<String>();
+	private final Map<String, Integer> dicionario = new HashMap<String, Integer>();
+
+	/* De onde vêm as linhas: bytes de um arquivo ou chars de um texto */
+	private File arquivo;
+	private Charset charset;
+	private String texto;
+	private String delimiter;
+	private FileChannel channel;
+
+	/* null: na ordem em que os alvos foram adicionados */
+	private ScanOrder ordem;
+
+	private final AtomicInteger proximo = new AtomicInteger();
+
+	/**
+	 * Linhas guardadas como posição em bytes no arquivo.
+	 */
+	void setSource(File arquivo, Charset charset, String delimiter) {
+		this.arquivo = arquivo;
+		this.charset = charset;
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Linhas guardadas como posição em chars no texto.
+	 */
+	void setSource(String texto, String delimiter) {
+		this.texto = texto;
+		this.delimiter = delimiter;
+	}
+
+	public void add(SSH ssh) {
+		if (!add(ssh.getHost(), ssh.getPort(), ssh.getUser(), ssh.getPass(), SEM_LINHA, 0))
+			addAvulso(ssh);
+	}
+
+	/**
+	 * @param inicioLinha posição da linha na origem (ver setSource), ou -1.
+	 * @return false se o alvo não cabe na tabela; use addAvulso().
+	 */
+	boolean add(String host, int port, String user, String pass, long inicioLinha, int tamLinha) {
+		long ip = parseIPv4(host);
+
+		if (ip == -1 || port < 0 || port > 0xffff)
+			return false;
+
+		add((int) ip, port, credencial(user, pass, inicioLinha != SEM_LINHA), inicioLinha, tamLinha);
+		return true;
+	}
+
+	void addAvulso(SSH ssh) {
+		crescer();
+
+		if (linhas != null)
+			linhas[qtd] = SEM_LINHA;
+
+		avulsos.put(qtd++, ssh);
+	}
+
+	/**
+	 * Guarda a chave de dedup do último alvo adicionado, para addAll().
+	 */
+	void setChave(long chave) {
+		if (chaves == null)
+			chaves = new long[ips.length];
+
+		chaves[qtd - 1] = chave;
+	}
+
+	void add(int ip, int port, int credencial, long inicioLinha, int tamLinha) {
+		crescer();
+
+		ips[qtd] = ip;
+		ports[qtd] = (short) port;
+		credenciais[qtd] = credencial;
+
+		if (inicioLinha != SEM_LINHA) {
+			if (linhas == null) {
+				linhas = new long[ips.length];
+				tamanhos = new int[ips.length];
+				Arrays.fill(linhas, 0, qtd, SEM_LINHA);
+			}
+			linhas[qtd] = inicioLinha;
+			tamanhos[qtd] = tamLinha;
+		} else if (linhas != null) {
+			linhas[qtd] = SEM_LINHA;
+		}
+
+		qtd++;
+	}
+
+	/**
+	 * @return o índice do par no dicionário, criando se preciso.
+	 */
+	int credencial(String user, String pass) {
+		return credencial(user, pass, false);
+	}
+
+	/**
+	 * @param temLinha se o alvo tem linha, para onde ir com o dicionário cheio.
+	 */
+	private int credencial(String user, String pass, boolean temLinha) {
+		String chave = user + '\0' + pass;
+		Integer i = dicionario.get(chave);
+
+		if (i == null && temLinha && users.size() >= MAX_CREDENCIAIS)
+			return DA_LINHA;
+
+		if (i == null) {
+			i = users.size();
+			users.add(user);
+			passes.add(pass);
+			dicionario.put(chave, i);
+		}
+		return i;
+	}
+
+	/**
+	 * Acrescenta os alvos de outra tabela com a mesma origem, na ordem.
+	 *
+	 * @param dedup se não for null, pula os repetidos pelas chaves de
+	 *        setChave().
+	 */
+	void addAll(TargetTable outra, TargetDedup dedup) {
+		int[] mapa = new int[outra.users.size()];
+		for (int i = 0; i < mapa.length; i++)
+			mapa[i] = credencial(outra.users.get(i), outra.passes.get(i), outra.linhas != null);
+
+		reservar(qtd + outra.qtd);
+
+		for (int i = 0; i < outra.qtd; i++) {
+			if (dedup != null && !dedup.novo(outra.chaves[i]))
+				continue;
+
+			SSH avulso = outra.avulsos.get(i);
+
+			if (avulso != null) {
+				addAvulso(avulso);
+				continue;
+			}
+
+			int c = outra.credenciais[i];
+			if (c != DA_LINHA)
+				c = mapa[c];
+
+			if (outra.linhas != null)
+				add(outra.ips[i], outra.ports[i] & 0xffff, c, outra.linhas[i], outra.tamanhos[i]);
+			else
+				add(outra.ips[i], outra.ports[i] & 0xffff, c, SEM_LINHA, 0);
+		}
+	}
+
+	/**
+	 * Visita os alvos numa ordem pseudo-aleatória (ver ScanOrder) em vez da
+	 * ordem do arquivo. Chamar depois de carregar.
+	 */
+	public void shuffle(long semente) {
+		this.ordem = new ScanOrder(qtd, semente);
+	}
+
+	/**
+	 * Cria o SSH do próximo alvo.
+	 */
+	@Override
+	public SSH next() throws IOException {
+		int i = proximo.getAndIncrement();
+
+		if (i >= qtd) {
+			proximo.set(qtd);
+			return null;
+		}
+		return get(ordem != null ? (int) ordem.get(i) : i);
+	}
+
+	public SSH get(int i) throws IOException {
+		SSH avulso = avulsos.get(i);
+		if (avulso != null)
+			return avulso;
+
+		String host = IpScanner.toString(ips[i]);
+		int port = ports[i] & 0xffff;
+		int c = credenciais[i];
+
+		if (linhas == null || linhas[i] == SEM_LINHA)
+			return new SSH(host, port, users.get(c), passes.get(c));
+
+		String linha = lerLinha(linhas[i], tamanhos[i]);
+
+		if (c == DA_LINHA)
+			return SSHloader.parseLinha(linha, delimiter);
+
+		return new SSH(host, port, users.get(c), passes.get(c), linha);
+	}
+
+	@Override
+	public int size() {
+		return qtd;
+	}
+
+	@Override
+	public void close() {
+		proximo.set(qtd);
+
+		synchronized (this) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignore) {}
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Volta ao primeiro alvo, para percorrer a tabela de novo.
+	 */
+	public void rewind() {
+		proximo.set(0);
+	}
+
+	private String lerLinha(long inicio, int tam) throws IOException {
+		if (texto != null)
+			return texto.substring((int) inicio, (int) inicio + tam);
+
+		ByteBuffer buf = ByteBuffer.allocate(tam);
+		FileChannel c = getChannel();
+
+		while (buf.hasRemaining()) {
+			if (c.read(buf, inicio + buf.position()) == -1)
+				break;
+		}
+
+		return new String(buf.array(), 0, buf.position(), charset);
+	}
+
+	private synchronized FileChannel getChannel() throws IOException {
+		if (channel == null)
+			channel = new RandomAccessFile(arquivo, "r").getChannel();
+		return channel;
+	}
+
+	private void crescer() {
+		if (qtd == ips.length)
+			reservar(ips.length * 2);
+	}
+
+	private void reservar(int tam) {
+		if (tam <= ips.length)
+			return;
+
+		ips = Arrays.copyOf(ips, tam);
+		ports = Arrays.copyOf(ports, tam);
+		credenciais = Arrays.copyOf(credenciais, tam);
+
+		if (linhas != null) {
+			linhas = Arrays.copyOf(linhas, tam);
+			tamanhos = Arrays.copyOf(tamanhos, tam);
+		}
+
+		if (chaves != null)
+			chaves = Arrays.copyOf(chaves, tam);
+	}
+
+	/**
+	 * @return o IPv4 sem sinal, ou -1 se host não é um IPv4 que volte igual
+	 *         por IpScanner.toString() (ex: zeros à esquerda).
+	 */
+	static long parseIPv4(String host) {
+		int len = host.length();
+		long ip = 0;
+		int octetos = 0;
+		int i = 0;
+
+		while (octetos < 4) {
+			int ini = i;
+			int valor = 0;
+
+			while (i < len && i - ini < 3 && host.charAt(i) >= '0' && host.charAt(i) <= '9')
+				valor = valor * 10 + (host.charAt(i++) - '0');
+
+			if (i == ini || valor > 255 || (i - ini > 1 && host.charAt(ini) == '0'))
+				return -1;
+
+			ip = (ip << 8) | valor;
+			octetos++;
+
+			if (octetos < 4) {
+				if (i >= len || host.charAt(i) != '.')
+					return -1;
+				i++;
+			}
+		}
+
+		return (i == len) ? ip : -1;
+	}
+}
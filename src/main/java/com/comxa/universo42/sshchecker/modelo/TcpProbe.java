@@ -0,0 +1,259 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import com.trilead.ssh2.util.DnsCache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Passada barata antes das verificações: só tenta o TCP connect, em massa e
+ * numa única thread com Selector. Cada host:port é testado uma vez; os SSHs
+ * de quem não respondeu já saem com erro, sem ocupar um worker por até
+ * SSH.TIMEOUT_TCP_CONNECTION. SSHs via proxy não são testados.
+ */
+public class TcpProbe {
+	public static final int DEFAULT_QTD_CONEXOES = 1000;
+	public static final int SELECT_TIMEOUT = 250;
+	/* Enquanto há nomes sendo resolvidos em segundo plano */
+	public static final int SELECT_TIMEOUT_DNS = 20;
+
+	private final int maxConexoes;
+	private volatile boolean isStopped;
+	private volatile Selector selector;
+	private final List<Sonda> resolvendo = new ArrayList<Sonda>();
+	private volatile ExclusionList exclusao;
+
+	public TcpProbe() {
+		this(DEFAULT_QTD_CONEXOES);
+	}
+
+	public TcpProbe(int maxConexoes) {
+		this.maxConexoes = maxConexoes;
+	}
+
+	/**
+	 * Endereços resolvidos numa rede da lista não são conectados: o alvo
+	 * morre com SSH.MSG_EXCLUIDO. null para não conferir.
+	 */
+	public void setExclusion(ExclusionList exclusao) {
+		this.exclusao = exclusao;
+	}
+
+	/**
+	 * @return os SSHs cujo host:port aceitou a conexão, na ordem original. Os
+	 *         outros já estão completos (com a exceção do connect) e foram
+	 *         passados a onDead(). Vazio se parado.
+	 */
+	public List<SSH> probe(SSH[] alvos) throws IOException {
+		Map<String, List<SSH>> hosts = new LinkedHashMap<String, List<SSH>>();
+		Set<String> vivos = new HashSet<String>();
+
+		for (SSH ssh : alvos) {
+			if (ssh.hasProxy())
+				continue;
+
+			String chave = chave(ssh);
+			List<SSH> lista = hosts.get(chave);
+			if (lista == null) {
+				lista = new ArrayList<SSH>();
+				hosts.put(chave, lista);
+			}
+			lista.add(ssh);
+		}
+
+		selector = Selector.open();
+		try {
+			Iterator<List<SSH>> pendentes = hosts.values().iterator();
+			int emAndamento = 0;
+
+			while (!isStopped) {
+				while (emAndamento < maxConexoes && pendentes.hasNext()) {
+					Sonda s = new Sonda(pendentes.next());
+
+					try {
+						if (s.conectar())
+							vivos.add(chave(s.lista.get(0)));
+						else
+							emAndamento++;
+					} catch (IOException e) {
+						morto(s.lista, e);
+					}
+				}
+
+				if (emAndamento == 0)
+					break;
+
+				selector.select(resolvendo.isEmpty() ? SELECT_TIMEOUT : SELECT_TIMEOUT_DNS);
+
+				for (Sonda s : new ArrayList<Sonda>(resolvendo)) {
+					try {
+						if (s.conectar()) {
+							vivos.add(chave(s.lista.get(0)));
+							emAndamento--;
+						}
+					} catch (IOException e) {
+						resolvendo.remove(s);
+						morto(s.lista, e);
+						emAndamento--;
+					}
+				}
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					Sonda s = (Sonda) key.attachment();
+
+					try {
+						if (((SocketChannel) key.channel()).finishConnect()) {
+							vivos.add(chave(s.lista.get(0)));
+							s.fechar();
+							emAndamento--;
+						}
+					} catch (IOException e) {
+						s.fechar();
+						morto(s.lista, e);
+						emAndamento--;
+					}
+				}
+				selector.selectedKeys().clear();
+
+				long agora = System.currentTimeMillis();
+				for (SelectionKey key : selector.keys()) {
+					Sonda s = (Sonda) key.attachment();
+
+					/* Canceladas acima continuam em keys() até o próximo select */
+					if (key.isValid() && agora > s.deadline) {
+						s.fechar();
+						morto(s.lista, new SocketTimeoutException("The connect timeout expired"));
+						emAndamento--;
+					}
+				}
+
+				for (Iterator<Sonda> it = resolvendo.iterator(); it.hasNext();) {
+					Sonda s = it.next();
+
+					if (agora > s.deadline) {
+						it.remove();
+						morto(s.lista, new SocketTimeoutException("The connect timeout expired"));
+						emAndamento--;
+					}
+				}
+			}
+		} finally {
+			resolvendo.clear();
+			for (SelectionKey key : selector.keys())
+				((Sonda) key.attachment()).fechar();
+			selector.close();
+		}
+
+		List<SSH> resultado = new ArrayList<SSH>();
+
+		if (isStopped)
+			return resultado;
+
+		for (SSH ssh : alvos)
+			if (ssh.hasProxy() || vivos.contains(chave(ssh)))
+				resultado.add(ssh);
+
+		return resultado;
+	}
+
+	public void stop() {
+		isStopped = true;
+
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+	}
+
+	public void onDead(SSH ssh) {}
+
+	private void morto(List<SSH> lista, IOException e) {
+		for (SSH ssh : lista) {
+			ssh.setResult(false, e);
+			onDead(ssh);
+		}
+	}
+
+	private static String chave(SSH ssh) {
+		return ssh.getHost().toLowerCase() + ":" + ssh.getPort();
+	}
+
+	private class Sonda {
+		private final List<SSH> lista;
+		private SocketChannel channel;
+		private boolean aguardandoDns;
+		private final long deadline = System.currentTimeMillis() + SSH.TIMEOUT_TCP_CONNECTION;
+
+		public Sonda(List<SSH> lista) {
+			this.lista = lista;
+		}
+
+		/**
+		 * Sem bloquear: se o nome ainda não foi resolvido (o DnsCache resolve
+		 * em segundo plano), fica em resolvendo até a próxima volta.
+		 *
+		 * @return true se conectou na hora (ex: localhost).
+		 */
+		public boolean conectar() throws IOException {
+			SSH ssh = lista.get(0);
+			InetAddress ip = DnsCache.poll(ssh.getHost());
+
+			if (ip == null) {
+				if (!aguardandoDns) {
+					aguardandoDns = true;
+					resolvendo.add(this);
+				}
+				return false;
+			}
+
+			if (aguardandoDns) {
+				aguardandoDns = false;
+				resolvendo.remove(this);
+			}
+
+			ExclusionList ex = exclusao;
+			if (ex != null && ex.exclui(ip))
+				throw new IOException(SSH.MSG_EXCLUIDO);
+
+			channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+
+				if (channel.connect(new InetSocketAddress(ip, ssh.getPort()))) {
+					channel.close();
+					return true;
+				}
+
+				channel.register(selector, SelectionKey.OP_CONNECT, this);
+				return false;
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		public void fechar() {
+			if (channel == null)
+				return;
+
+			SelectionKey key = channel.keyFor(selector);
+			if (key != null)
+				key.cancel();
+
+			try {
+				channel.close();
+			} catch (IOException ignore) {}
+		}
+	}
+}
@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.security.SecureRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.trilead.ssh2.auth.AuthenticationManager;
 import com.trilead.ssh2.crypto.CryptoWishList;
@@ -11,6 +14,7 @@ import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.packets.PacketIgnore;
 import com.trilead.ssh2.transport.KexManager;
+import com.trilead.ssh2.transport.KexParameters;
 import com.trilead.ssh2.transport.TransportManager;
 import com.trilead.ssh2.util.TimeoutService;
 import com.trilead.ssh2.util.TimeoutService.TimeoutToken;
@@ -76,6 +80,12 @@ public class Connection {
 	 */
 	private SecureRandom generator;
 
+	/*
+	 * Guards the connection state. Not a monitor: a virtual thread blocked in
+	 * connect() or in the authentication would otherwise pin its carrier.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
 	private AuthenticationManager am;
 
 	private boolean authenticated = false;
@@ -91,10 +101,16 @@ public class Connection {
 
 	private TransportManager tm;
 
+	private ConnectionTimings timings = new ConnectionTimings();
+
 	private boolean tcpNoDelay = false;
 
 	private ProxyData proxyData = null;
 
+	private Semaphore kexLimit = null;
+
+	private ThreadFactory threadFactory = null;
+
 	/**
 	 * Prepares a fresh <code>Connection</code> object which can then be used to
 	 * establish a connection to the specified SSH-2 server.
@@ -148,27 +164,34 @@ public class Connection {
 	 * @return if the connection is now authenticated.
 	 * @throws IOException
 	 */
-	public synchronized boolean authenticateWithPassword(String user,
+	public boolean authenticateWithPassword(String user,
 			String password) throws IOException {
-		if (tm == null)
-			throw new IllegalStateException("Connection is not established!");
+		lock.lock();
+		try {
+			if (tm == null)
+				throw new IllegalStateException("Connection is not established!");
 
-		if (authenticated)
-			throw new IllegalStateException(
-					"Connection is already authenticated!");
+			if (authenticated)
+				throw new IllegalStateException(
+						"Connection is already authenticated!");
 
-		if (am == null)
-			am = new AuthenticationManager(tm);
+			if (am == null)
+				am = new AuthenticationManager(tm);
 
-		if (user == null)
-			throw new IllegalArgumentException("user argument is null");
+			if (user == null)
+				throw new IllegalArgumentException("user argument is null");
 
-		if (password == null)
-			throw new IllegalArgumentException("password argument is null");
+			if (password == null)
+				throw new IllegalArgumentException("password argument is null");
 
-		authenticated = am.authenticatePassword(user, password);
+			timings.start(ConnectionTimings.AUTH);
+			authenticated = am.authenticatePassword(user, password);
+			timings.end(ConnectionTimings.AUTH);
 
-		return authenticated;
+			return authenticated;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -177,9 +200,14 @@ public class Connection {
 	 * you don't need a connection anymore - otherwise the receiver thread may
 	 * run forever.
 	 */
-	public synchronized void close() {
-		Throwable t = new Throwable("Closed due to user request.");
-		close(t, false);
+	public void close() {
+		lock.lock();
+		try {
+			Throwable t = new Throwable("Closed due to user request.");
+			close(t, false);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public void closeHard() {
@@ -205,7 +233,7 @@ public class Connection {
 	 *         connect(ServerHostKeyVerifier, int, int)} method.
 	 * @throws IOException
 	 */
-	public synchronized ConnectionInfo connect() throws IOException {
+	public ConnectionInfo connect() throws IOException {
 		return connect(null, 0, 0);
 	}
 
@@ -218,7 +246,7 @@ public class Connection {
 	 *         connect(ServerHostKeyVerifier, int, int)} method.
 	 * @throws IOException
 	 */
-	public synchronized ConnectionInfo connect(ServerHostKeyVerifier verifier)
+	public ConnectionInfo connect(ServerHostKeyVerifier verifier)
 			throws IOException {
 		return connect(verifier, 0, 0);
 	}
@@ -306,7 +334,16 @@ public class Connection {
 	 *             proxy is buggy and does not return a proper HTTP response,
 	 *             then a normal IOException is thrown instead.
 	 */
-	public synchronized ConnectionInfo connect(ServerHostKeyVerifier verifier, int connectTimeout, int kexTimeout) throws IOException {
+	public ConnectionInfo connect(ServerHostKeyVerifier verifier, int connectTimeout, int kexTimeout) throws IOException {
+		lock.lock();
+		try {
+			return connectLocked(verifier, connectTimeout, kexTimeout);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ConnectionInfo connectLocked(ServerHostKeyVerifier verifier, int connectTimeout, int kexTimeout) throws IOException {
 		final class TimeoutState {
 			boolean isCancelled = false;
 			boolean timeoutSocketClosed = false;
@@ -323,7 +360,10 @@ public class Connection {
 
 		final TimeoutState state = new TimeoutState();
 
-		tm = new TransportManager(hostname, port);
+		final TransportManager transport = tm = new TransportManager(hostname, port);
+		tm.setTimings(timings);
+		tm.setKexLimit(kexLimit);
+		tm.setThreadFactory(threadFactory);
 
 		// Don't offer compression if not requested
 		if (!compression) {
@@ -346,8 +386,10 @@ public class Connection {
 							if (state.isCancelled)
 								return;
 							state.timeoutSocketClosed = true;
-							tm.close(new SocketTimeoutException("The connect timeout expired"), false);
 						}
+
+						/* Outside the monitor, close() may have to wait for the transport lock */
+						transport.close(new SocketTimeoutException("The connect timeout expired"), false);
 					}
 				};
 
@@ -407,6 +449,86 @@ public class Connection {
 		}
 	}
 
+	/**
+	 * Connects to the server, exchanges the identification strings and closes
+	 * the connection again, without doing a key exchange. This is much cheaper
+	 * than {@link #connect()} if one only wants to know whether (and which)
+	 * SSH-2 server is listening. The connection is closed when this method
+	 * returns.
+	 *
+	 * @param connectTimeout
+	 *            connect timeout in milliseconds, 0 means no timeout.
+	 * @param readTimeout
+	 *            timeout in milliseconds for receiving the server line, 0
+	 *            means no timeout.
+	 * @return the server software version (e.g., "OpenSSH_7.4p1 Debian-10").
+	 * @throws IOException
+	 */
+	public String probeServerVersion(int connectTimeout, int readTimeout) throws IOException {
+		lock.lock();
+		try {
+			if (tm != null)
+				throw new IOException("Connection to " + hostname + " is already in connected state!");
+
+			tm = new TransportManager(hostname, port);
+			tm.setTimings(timings);
+
+			try {
+				return tm.initializeHello(connectTimeout, readTimeout, proxyData).getServerVersionComment();
+			} catch (IOException e) {
+				/* Do not wrap a HTTPProxyException */
+				if (e instanceof HTTPProxyException)
+					throw e;
+
+				throw (IOException) new IOException("There was a problem while connecting to " + hostname + ":" + port).initCause(e);
+			} finally {
+				close(new Throwable("Closed after probing the server version."), true);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Connects to the server, exchanges the identification strings and the
+	 * KEXINIT messages, and closes the connection again. No key exchange is
+	 * done, so this costs no DH computation nor signature verification. Useful
+	 * to find out which algorithms a server supports. The connection is closed
+	 * when this method returns.
+	 *
+	 * @param connectTimeout
+	 *            connect timeout in milliseconds, 0 means no timeout.
+	 * @param readTimeout
+	 *            timeout in milliseconds for each read from the server, 0
+	 *            means no timeout.
+	 * @return the algorithm lists proposed by the server.
+	 * @throws IOException
+	 */
+	public KexParameters probeKexInit(int connectTimeout, int readTimeout) throws IOException {
+		lock.lock();
+		try {
+			if (tm != null)
+				throw new IOException("Connection to " + hostname + " is already in connected state!");
+
+			tm = new TransportManager(hostname, port);
+			tm.setTimings(timings);
+
+			try {
+				return tm.initializeKexInit(cryptoWishList, connectTimeout, readTimeout, getOrCreateSecureRND(), proxyData);
+			} catch (IOException e) {
+				/* Do not wrap a HTTPProxyException */
+				if (e instanceof HTTPProxyException)
+					throw e;
+
+				throw (IOException) new IOException("There was a problem while connecting to " + hostname + ":" + port).initCause(e);
+			} finally {
+				close(new Throwable("Closed after probing the key exchange parameters."), true);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	/**
 	 * Force an asynchronous key re-exchange (the call does not block). The
 	 * latest values set for MAC, Cipher and DH group exchange parameters will
@@ -420,12 +542,27 @@ public class Connection {
 	 * @throws IOException
 	 *             In case of any failure behind the scenes.
 	 */
-	public synchronized void forceKeyExchange() throws IOException {
-		if (tm == null)
-			throw new IllegalStateException(
-					"You need to establish a connection first.");
+	public void forceKeyExchange() throws IOException {
+		lock.lock();
+		try {
+			if (tm == null)
+				throw new IllegalStateException(
+						"You need to establish a connection first.");
 
-		tm.forceKeyExchange(cryptoWishList, dhgexpara);
+			tm.forceKeyExchange(cryptoWishList, dhgexpara);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns how long each phase of this connection took. Still valid after
+	 * the connection was closed or failed (unfinished phases report -1).
+	 *
+	 * @return the {@link ConnectionTimings} of this connection.
+	 */
+	public ConnectionTimings getTimings() {
+		return timings;
 	}
 
 	/**
@@ -437,11 +574,16 @@ public class Connection {
 	 * @throws IOException
 	 *             In case of any failure behind the scenes.
 	 */
-	public synchronized ConnectionInfo getConnectionInfo() throws IOException {
-		if (tm == null)
-			throw new IllegalStateException(
-					"Cannot get details of connection, you need to establish a connection first.");
-		return tm.getConnectionInfo(1);
+	public ConnectionInfo getConnectionInfo() throws IOException {
+		lock.lock();
+		try {
+			if (tm == null)
+				throw new IllegalStateException(
+						"Cannot get details of connection, you need to establish a connection first.");
+			return tm.getConnectionInfo(1);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -449,8 +591,13 @@ public class Connection {
 	 * 
 	 * @return the hostname
 	 */
-	public synchronized String getHostname() {
-		return hostname;
+	public String getHostname() {
+		lock.lock();
+		try {
+			return hostname;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -458,8 +605,13 @@ public class Connection {
 	 * 
 	 * @return the TCP port
 	 */
-	public synchronized int getPort() {
-		return port;
+	public int getPort() {
+		lock.lock();
+		try {
+			return port;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	private final SecureRandom getOrCreateSecureRND() {
@@ -475,8 +627,86 @@ public class Connection {
 	 * 
 	 * @return <code>true</code> if no further authentication steps are needed.
 	 */
-	public synchronized boolean isAuthenticationComplete() {
-		return authenticated;
+	public boolean isAuthenticationComplete() {
+		lock.lock();
+		try {
+			return authenticated;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * After a successful connect, one has to authenticate oneself. This method
+	 * can be used to tell which authentication methods are supported by the
+	 * server at a certain stage of the authentication process (for the given
+	 * username).
+	 * <p>
+	 * Note 1: the username will only be used if no authentication step was
+	 * done so far (it will be used to ask the server for a list of possible
+	 * authentication methods by sending the initial "none" request). Otherwise,
+	 * this method ignores the user name and returns a cached method list (which
+	 * is based on the information contained in the last negative server
+	 * response).
+	 * <p>
+	 * Note 2: the server may return method names that are not supported by
+	 * this implementation.
+	 * <p>
+	 * After a successful authentication, this method must not be called
+	 * anymore.
+	 *
+	 * @param user
+	 *            A <code>String</code> holding the username.
+	 *
+	 * @return a (possibly emtpy) array holding authentication method names.
+	 * @throws IOException
+	 */
+	public String[] getRemainingAuthMethods(String user) throws IOException {
+		lock.lock();
+		try {
+			if (user == null)
+				throw new IllegalArgumentException("user argument may not be NULL!");
+
+			if (tm == null)
+				throw new IllegalStateException("Connection is not established!");
+
+			if (authenticated)
+				throw new IllegalStateException("Connection is already authenticated!");
+
+			if (am == null)
+				am = new AuthenticationManager(tm);
+
+			return am.getRemainingMethods(user);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if a specified authentication method is available. This method is
+	 * actually just a wrapper for {@link #getRemainingAuthMethods(String)
+	 * getRemainingAuthMethods()}.
+	 *
+	 * @param user
+	 *            A <code>String</code> holding the username.
+	 * @param method
+	 *            An authentication method name (e.g., "publickey", "password",
+	 *            "keyboard-interactive") as specified by the SSH-2 standard.
+	 * @return if the specified authentication method is currently available.
+	 * @throws IOException
+	 */
+	public boolean isAuthMethodAvailable(String user, String method) throws IOException {
+		if (method == null)
+			throw new IllegalArgumentException("method argument may not be NULL!");
+
+		String methods[] = getRemainingAuthMethods(user);
+
+		for (int i = 0; i < methods.length; i++) {
+			if (methods[i].compareTo(method) == 0)
+				return true;
+		}
+
+		return false;
 	}
 
 	/**
@@ -491,11 +721,16 @@ public class Connection {
 	 * @return if the there was a failed authentication step and the last one
 	 *         was marked as a "partial success".
 	 */
-	public synchronized boolean isAuthenticationPartialSuccess() {
-		if (am == null)
-			return false;
+	public boolean isAuthenticationPartialSuccess() {
+		lock.lock();
+		try {
+			if (am == null)
+				return false;
 
-		return am.getPartialSuccess();
+			return am.getPartialSuccess();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -507,13 +742,18 @@ public class Connection {
 	 * 
 	 * @throws IOException
 	 */
-	public synchronized void sendIgnorePacket() throws IOException {
-		SecureRandom rnd = getOrCreateSecureRND();
+	public void sendIgnorePacket() throws IOException {
+		lock.lock();
+		try {
+			SecureRandom rnd = getOrCreateSecureRND();
 
-		byte[] data = new byte[rnd.nextInt(16)];
-		rnd.nextBytes(data);
+			byte[] data = new byte[rnd.nextInt(16)];
+			rnd.nextBytes(data);
 
-		sendIgnorePacket(data);
+			sendIgnorePacket(data);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -523,19 +763,24 @@ public class Connection {
 	 * 
 	 * @throws IOException
 	 */
-	public synchronized void sendIgnorePacket(byte[] data) throws IOException {
-		if (data == null)
-			throw new IllegalArgumentException(
-					"data argument must not be null.");
+	public void sendIgnorePacket(byte[] data) throws IOException {
+		lock.lock();
+		try {
+			if (data == null)
+				throw new IllegalArgumentException(
+						"data argument must not be null.");
 
-		if (tm == null)
-			throw new IllegalStateException(
-					"Cannot send SSH_MSG_IGNORE packet, you need to establish a connection first.");
+			if (tm == null)
+				throw new IllegalStateException(
+						"Cannot send SSH_MSG_IGNORE packet, you need to establish a connection first.");
 
-		PacketIgnore pi = new PacketIgnore();
-		pi.setData(data);
+			PacketIgnore pi = new PacketIgnore();
+			pi.setData(data);
 
-		tm.sendMessage(pi.getPayload());
+			tm.sendMessage(pi.getPayload());
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -556,8 +801,52 @@ public class Connection {
 	 *            then no proxy will be used (non surprisingly, this is also the
 	 *            default).
 	 */
-	public synchronized void setProxyData(ProxyData proxyData) {
-		this.proxyData = proxyData;
+	public void setProxyData(ProxyData proxyData) {
+		lock.lock();
+		try {
+			this.proxyData = proxyData;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Bounds how many connections do their Diffie-Hellman computations at the
+	 * same time: pass the same semaphore to a group of connections (e.g., with
+	 * as many permits as there are cores). A permit is only held around the
+	 * modPow work, by the receive thread. It only makes sense to call this
+	 * method before calling the {@link #connect() connect()} method.
+	 * 
+	 * @param kexLimit
+	 *            the shared permits, or <code>null</code> for no limit (the
+	 *            default).
+	 */
+	public void setKexLimit(Semaphore kexLimit) {
+		lock.lock();
+		try {
+			this.kexLimit = kexLimit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates the threads of this connection (receive loop and asynchronous
+	 * replies) with the given factory instead of the process-wide default of
+	 * {@link com.trilead.ssh2.util.ThreadService}, e.g. virtual threads for a
+	 * single scan. It only makes sense to call this method before calling the
+	 * {@link #connect() connect()} method.
+	 * 
+	 * @param threadFactory
+	 *            the factory, or <code>null</code> for the default.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		lock.lock();
+		try {
+			this.threadFactory = threadFactory;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -573,10 +862,15 @@ public class Connection {
 	 *            method.
 	 * @throws IOException
 	 */
-	public synchronized void setTCPNoDelay(boolean enable) throws IOException {
-		tcpNoDelay = enable;
+	public void setTCPNoDelay(boolean enable) throws IOException {
+		lock.lock();
+		try {
+			tcpNoDelay = enable;
 
-		if (tm != null)
-			tm.setTcpNoDelay(enable);
+			if (tm != null)
+				tm.setTcpNoDelay(enable);
+		} finally {
+			lock.unlock();
+		}
 	}
 }
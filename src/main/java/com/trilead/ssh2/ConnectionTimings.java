@@ -0,0 +1,100 @@
+package com.trilead.ssh2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.trilead.ssh2.util.CpuTime;
+
+/**
+ * Wall-clock duration of each phase of a {@link Connection}: TCP connect,
+ * identification string exchange, the first key exchange (including DH and
+ * the host key signature check) and the last password authentication.
+ * <p>
+ * Phases may end on another thread than the one that started them (the
+ * first KEX ends on the receive thread), hence the atomic arrays. A phase
+ * that did not complete (e.g., the connect timed out) reports -1.
+ * <p>
+ * Besides the wall-clock phases, the thread CPU time (see {@link CpuTime})
+ * spent on behalf of the connection is added up per kind of work: the DH
+ * computations, the host key signature check, the packet cipher and MAC, and
+ * the socket calls. It is cumulative over the life of the connection.
+ */
+public class ConnectionTimings {
+	public static final int TCP = 0;
+	public static final int BANNER = 1;
+	public static final int KEX = 2;
+	public static final int AUTH = 3;
+	public static final int PHASES = 4;
+
+	public static final int CPU_DH = 0;
+	public static final int CPU_SIGNATURE = 1;
+	public static final int CPU_CIPHER = 2;
+	public static final int CPU_IO = 3;
+	public static final int CPU_KINDS = 4;
+
+	private static final String[] NAMES = { "tcp", "banner", "kex", "auth" };
+	private static final String[] CPU_NAMES = { "dh", "signature", "cipher", "io" };
+
+	private final AtomicLongArray starts = new AtomicLongArray(PHASES);
+	private final AtomicLongArray nanos = new AtomicLongArray(PHASES);
+	private final AtomicLongArray cpu = new AtomicLongArray(CPU_KINDS);
+
+	public ConnectionTimings() {
+		for (int i = 0; i < PHASES; i++)
+			nanos.set(i, -1);
+	}
+
+	public void start(int phase) {
+		starts.set(phase, System.nanoTime());
+		nanos.set(phase, -1);
+	}
+
+	/**
+	 * Ends a started phase. Ending it again (e.g., a later re-keying) does
+	 * not change the recorded duration.
+	 */
+	public void end(int phase) {
+		long start = starts.get(phase);
+
+		if (start != 0)
+			nanos.compareAndSet(phase, -1, System.nanoTime() - start);
+	}
+
+	/**
+	 * @return the duration in nanoseconds, or -1.
+	 */
+	public long getNanos(int phase) {
+		return nanos.get(phase);
+	}
+
+	public static String getName(int phase) {
+		return NAMES[phase];
+	}
+
+	/**
+	 * @param kind CPU_DH, CPU_SIGNATURE, CPU_CIPHER or CPU_IO.
+	 * @param nanos as measured with {@link CpuTime}; 0 is ignored.
+	 */
+	public void addCpu(int kind, long nanos) {
+		if (nanos > 0)
+			cpu.addAndGet(kind, nanos);
+	}
+
+	/**
+	 * @return the CPU time spent so far on that kind of work, in nanoseconds.
+	 */
+	public long getCpuNanos(int kind) {
+		return cpu.get(kind);
+	}
+
+	public static String getCpuName(int kind) {
+		return CPU_NAMES[kind];
+	}
+
+	/**
+	 * @return whether that kind of work is cryptography (everything but
+	 *         CPU_IO).
+	 */
+	public static boolean isCrypto(int kind) {
+		return kind != CPU_IO;
+	}
+}
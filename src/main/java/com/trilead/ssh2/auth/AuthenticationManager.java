@@ -2,6 +2,8 @@ package com.trilead.ssh2.auth;
 
 import java.io.IOException;
 import java.util.Vector;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.trilead.ssh2.packets.PacketServiceAccept;
 import com.trilead.ssh2.packets.PacketServiceRequest;
@@ -24,6 +26,10 @@ public class AuthenticationManager implements MessageHandler {
 	TransportManager tm;
 
 	Vector packets = new Vector();
+
+	/* Not a monitor, a waiting virtual thread must not pin its carrier */
+	final ReentrantLock packetsLock = new ReentrantLock();
+	final Condition packetsChanged = packetsLock.newCondition();
 	boolean connectionClosed = false;
 
 	String banner;
@@ -80,7 +86,8 @@ public class AuthenticationManager implements MessageHandler {
 	}
 
 	byte[] deQueue() throws IOException {
-		synchronized (packets) {
+		packetsLock.lock();
+		try {
 			while (packets.size() == 0) {
 				if (connectionClosed)
 					throw (IOException) new IOException(
@@ -88,7 +95,7 @@ public class AuthenticationManager implements MessageHandler {
 							.getReasonClosedCause());
 
 				try {
-					packets.wait();
+					packetsChanged.await();
 				} catch (InterruptedException ign) {
 				}
 			}
@@ -96,6 +103,8 @@ public class AuthenticationManager implements MessageHandler {
 			byte[] res = (byte[]) packets.firstElement();
 			packets.removeElementAt(0);
 			return res;
+		} finally {
+			packetsLock.unlock();
 		}
 	}
 
@@ -124,7 +133,8 @@ public class AuthenticationManager implements MessageHandler {
 
 	@Override
 	public void handleMessage(byte[] msg, int msglen) throws IOException {
-		synchronized (packets) {
+		packetsLock.lock();
+		try {
 			if (msg == null) {
 				connectionClosed = true;
 			} else {
@@ -133,13 +143,15 @@ public class AuthenticationManager implements MessageHandler {
 				packets.addElement(tmp);
 			}
 
-			packets.notifyAll();
+			packetsChanged.signalAll();
 
 			if (packets.size() > 5) {
 				connectionClosed = true;
 				throw new IOException(
 						"Error, peer is flooding us with authentication packets.");
 			}
+		} finally {
+			packetsLock.unlock();
 		}
 	}
 
@@ -8,13 +8,20 @@ package com.trilead.ssh2.log;
  * For speed reasons, the static variables are not protected with semaphores. In
  * other words, if you dynamicaly change the logging settings, then some threads
  * may still use the old setting.
- * 
+ * <p>
+ * Text messages go to System.err, and only if {@link #enabled}. Build costly
+ * messages either behind {@link #isEnabled()} or with the parameterized
+ * variants of {@link #log(int, String)}, which do not allocate anything while
+ * logging is off. For tracing production runs see {@link TraceBuffer}, which
+ * records binary events instead of text.
+ *
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: Logger.java,v 1.2 2008/03/03 07:01:36 cplattne Exp $
  */
 
 public class Logger {
 	public static boolean enabled = false;
+	public static int logLevel = 99;
 
 	public final static Logger getLogger(Class x) {
 		return new Logger(x);
@@ -31,9 +38,53 @@ public class Logger {
 	}
 
 	public final void log(int level, String message) {
-		if (!enabled)
+		if ((enabled == false) || (level > logLevel))
+			return;
+
+		print(message);
+	}
+
+	/**
+	 * Logs message with the first "{}" replaced by arg; nothing is formatted
+	 * unless the message is actually logged.
+	 */
+	public final void log(int level, String message, Object arg) {
+		if ((enabled == false) || (level > logLevel))
+			return;
+
+		print(format(message, arg, null));
+	}
+
+	/**
+	 * Like {@link #log(int, String, Object)}, with two "{}".
+	 */
+	public final void log(int level, String message, Object arg1, Object arg2) {
+		if ((enabled == false) || (level > logLevel))
 			return;
 
-		return;
+		print(format(message, arg1, arg2));
+	}
+
+	private void print(String message) {
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			System.err.println(now + " : " + className + ": " + message);
+		}
+	}
+
+	private static String format(String message, Object arg1, Object arg2) {
+		StringBuilder sb = new StringBuilder(message.length() + 32);
+		Object[] args = { arg1, arg2 };
+		int used = 0;
+		int start = 0;
+		int i;
+
+		while ((used < 2) && ((i = message.indexOf("{}", start)) != -1)) {
+			sb.append(message, start, i).append(args[used++]);
+			start = i + 2;
+		}
+
+		return sb.append(message, start, message.length()).toString();
 	}
 }
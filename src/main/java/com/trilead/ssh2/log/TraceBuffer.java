@@ -0,0 +1,277 @@
+package com.trilead.ssh2.log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.trilead.ssh2.packets.Packets;
+
+/**
+ * TraceBuffer. Records what the connections do as small binary events
+ * (timestamp, connection id, event, SSH message type, size), to diagnose a
+ * run without the cost of text logging.
+ * <p>
+ * Off by default; while off, {@link #record(int, int, int, int)} returns
+ * right away. While on, each thread writes into a ring buffer of its own
+ * (the last {@link #setCapacity(int) capacity} events), so recording takes
+ * no lock and allocates nothing. {@link #dump(Writer)} can be called at any
+ * time from any thread: it merges the rings in time order, skipping events
+ * that are being overwritten meanwhile. The ring of a thread that died is
+ * handed to the next new thread, its events stay until overwritten.
+ * <p>
+ * At most {@link #setMaxRings(int) maxRings} threads get a ring of their own,
+ * so thousands of (virtual) threads do not mean thousands of rings. Threads
+ * beyond that share one of {@link #SHARED_RINGS} extra rings, which they write
+ * under the lock of the ring.
+ */
+public class TraceBuffer {
+	/** TCP connection established. */
+	public static final int CONNECT = 1;
+	/** Packet sent; type and payload size. */
+	public static final int SEND = 2;
+	/** Packet received; type and payload size. */
+	public static final int RECEIVE = 3;
+	/** Key exchange finished. */
+	public static final int KEX_DONE = 4;
+	/** Connection closed. */
+	public static final int CLOSE = 5;
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int DEFAULT_MAX_RINGS = 64;
+	public static final int SHARED_RINGS = Runtime.getRuntime().availableProcessors();
+
+	private static final String[] EVENT_NAMES = { "?", "connect", "send", "receive", "kex-done", "close" };
+
+	/* Per event: nanoTime, connection << 32 | event << 8 | type, size */
+	private static final int SLOTS = 3;
+
+	private static class Ring {
+		final AtomicLongArray events;
+		final int mask;
+		/* Events written so far; the slots of an event are set before it */
+		final AtomicLong written = new AtomicLong();
+		/* Guarded by rings; null for a shared ring */
+		WeakReference<Thread> owner;
+
+		Ring(int capacity) {
+			events = new AtomicLongArray(capacity * SLOTS);
+			mask = capacity - 1;
+		}
+
+		void add(long time, long what, long size) {
+			if (owner == null) {
+				synchronized (this) {
+					write(time, what, size);
+				}
+			} else {
+				write(time, what, size);
+			}
+		}
+
+		private void write(long time, long what, long size) {
+			long n = written.get();
+			int i = (int) (n & mask) * SLOTS;
+
+			events.lazySet(i, time);
+			events.lazySet(i + 1, what);
+			events.lazySet(i + 2, size);
+			written.lazySet(n + 1);
+		}
+
+		boolean isFree() {
+			if (owner == null)
+				return false;
+
+			Thread t = owner.get();
+			return (t == null) || !t.isAlive();
+		}
+	}
+
+	private static final ArrayList<Ring> rings = new ArrayList<Ring>();
+	/* Guarded by rings */
+	private static final Ring[] shared = new Ring[SHARED_RINGS];
+	private static int owned = 0;
+	private static int nextShared = 0;
+	private static final ThreadLocal<Ring> local = new ThreadLocal<Ring>();
+	private static final AtomicInteger connectionIds = new AtomicInteger();
+
+	private static volatile boolean enabled = false;
+	private static volatile int capacity = DEFAULT_CAPACITY;
+	private static volatile int maxRings = DEFAULT_MAX_RINGS;
+	private static volatile long clearedAt = Long.MIN_VALUE;
+
+	public static void setEnabled(boolean enabled) {
+		TraceBuffer.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param events per ring, rounded up to a power of 2. Only rings created
+	 *            from now on get the new capacity.
+	 */
+	public static void setCapacity(int events) {
+		int c = Integer.highestOneBit(Math.max(16, events));
+		capacity = (c < events) ? c << 1 : c;
+	}
+
+	/**
+	 * @param rings how many threads may get a ring of their own; the ones
+	 *            beyond share a few rings. Rings already handed out are kept.
+	 */
+	public static void setMaxRings(int rings) {
+		if (rings < 0)
+			throw new IllegalArgumentException("rings must be >= 0");
+
+		maxRings = rings;
+	}
+
+	/**
+	 * @return an id to tell the events of a connection apart.
+	 */
+	public static int newConnectionId() {
+		return connectionIds.incrementAndGet();
+	}
+
+	/**
+	 * @param connection see {@link #newConnectionId()}.
+	 * @param event CONNECT, SEND, RECEIVE, KEX_DONE or CLOSE.
+	 * @param type the SSH message type, or 0.
+	 * @param size bytes, or 0.
+	 */
+	public static void record(int connection, int event, int type, int size) {
+		if (enabled == false)
+			return;
+
+		Ring r = local.get();
+
+		if (r == null)
+			r = acquire();
+
+		r.add(System.nanoTime(), ((long) connection << 32) | (event << 8) | (type & 0xff), size);
+	}
+
+	/**
+	 * Events recorded before this call are left out of later dumps.
+	 */
+	public static void clear() {
+		clearedAt = System.nanoTime();
+	}
+
+	/**
+	 * Writes the recorded events, oldest first, one per line: milliseconds
+	 * since the first event, connection id, event, message type and size.
+	 */
+	public static void dump(Writer out) throws IOException {
+		Ring[] all;
+
+		synchronized (rings) {
+			all = rings.toArray(new Ring[rings.size()]);
+		}
+
+		ArrayList<long[]> events = new ArrayList<long[]>();
+		long since = clearedAt;
+
+		for (Ring r : all)
+			collect(r, since, events);
+
+		long[][] sorted = events.toArray(new long[events.size()][]);
+
+		Arrays.sort(sorted, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+			}
+		});
+
+		long first = (sorted.length > 0) ? sorted[0][0] : 0;
+		StringBuilder sb = new StringBuilder();
+
+		for (long[] e : sorted) {
+			long us = (e[0] - first) / 1000;
+			int event = (int) (e[1] >>> 8) & 0xff;
+			int type = (int) e[1] & 0xff;
+
+			sb.setLength(0);
+			sb.append(us / 1000).append('.');
+			sb.append((char) ('0' + us / 100 % 10)).append((char) ('0' + us / 10 % 10)).append((char) ('0' + us % 10));
+			sb.append(" #").append(e[1] >>> 32).append(' ');
+			sb.append((event < EVENT_NAMES.length) ? EVENT_NAMES[event] : EVENT_NAMES[0]);
+
+			if ((event == SEND) || (event == RECEIVE))
+				sb.append(' ').append(Packets.getMessageName(type)).append(' ').append(e[2]);
+
+			sb.append('\n');
+			out.write(sb.toString());
+		}
+
+		out.flush();
+	}
+
+	private static void collect(Ring r, long since, ArrayList<long[]> events) {
+		int size = r.mask + 1;
+		long end = r.written.get();
+		long start = Math.max(0, end - size);
+		long[][] copy = new long[(int) (end - start)][];
+
+		for (long n = start; n < end; n++) {
+			int i = (int) (n & r.mask) * SLOTS;
+			copy[(int) (n - start)] = new long[] { r.events.get(i), r.events.get(i + 1), r.events.get(i + 2) };
+		}
+
+		/* The owner kept writing: whatever it may have overwritten is gone */
+		long valid = r.written.get() - size + 1;
+
+		for (long n = Math.max(start, valid); n < end; n++) {
+			long[] e = copy[(int) (n - start)];
+
+			if (e[0] >= since)
+				events.add(e);
+		}
+	}
+
+	private static Ring acquire() {
+		Ring r = null;
+
+		synchronized (rings) {
+			int c = capacity;
+
+			for (Ring free : rings) {
+				if ((free.mask + 1 == c) && free.isFree()) {
+					r = free;
+					break;
+				}
+			}
+
+			if (r == null && owned < maxRings) {
+				r = new Ring(c);
+				rings.add(r);
+				owned++;
+			}
+
+			if (r != null) {
+				r.owner = new WeakReference<Thread>(Thread.currentThread());
+			} else {
+				int i = nextShared;
+				nextShared = (i + 1) % SHARED_RINGS;
+				r = shared[i];
+
+				if (r == null) {
+					r = shared[i] = new Ring(c);
+					rings.add(r);
+				}
+			}
+		}
+
+		local.set(r);
+		return r;
+	}
+}
@@ -82,6 +82,14 @@ public class ClientServerHello {
 					"Server uses incompatible protocol, it is not SSH-2 compatible.");
 	}
 
+	/**
+	 * @return the server software version, i.e., the server line without the
+	 *         protocol version prefix (e.g. "OpenSSH_7.4p1 Debian-10").
+	 */
+	public String getServerVersionComment() {
+		return server_versioncomment;
+	}
+
 	/**
 	 * @return Returns the client_versioncomment.
 	 */
@@ -2,8 +2,12 @@ package com.trilead.ssh2.transport;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.trilead.ssh2.ConnectionInfo;
+import com.trilead.ssh2.ConnectionTimings;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.CompressionFactory;
@@ -32,6 +36,7 @@ import com.trilead.ssh2.signature.DSASignature;
 import com.trilead.ssh2.signature.RSAPublicKey;
 import com.trilead.ssh2.signature.RSASHA1Verify;
 import com.trilead.ssh2.signature.RSASignature;
+import com.trilead.ssh2.util.CpuTime;
 
 /**
  * KexManager.
@@ -81,7 +86,19 @@ public class KexManager {
 
 	ClientServerHello csh;
 
-	final Object accessLock = new Object();
+	/*
+	 * Locks instead of monitors, so that virtual threads waiting for the key
+	 * exchange do not pin their carrier thread.
+	 */
+	final ReentrantLock accessLock = new ReentrantLock();
+	final Condition connInfoChanged = accessLock.newCondition();
+	final ReentrantLock kexLock = new ReentrantLock();
+
+	/*
+	 * Shared by a group of connections: bounds how many of them do their DH
+	 * computations at the same time. null means no limit.
+	 */
+	private Semaphore kexLimit;
 
 	ConnectionInfo lastConnInfo = null;
 	boolean connectionClosed = false;
@@ -205,7 +222,8 @@ public class KexManager {
 
 	public ConnectionInfo getOrWaitForConnectionInfo(int minKexCount)
 			throws IOException {
-		synchronized (accessLock) {
+		accessLock.lock();
+		try {
 			while (true) {
 				if ((lastConnInfo != null)
 						&& (lastConnInfo.keyExchangeCounter >= minKexCount))
@@ -217,22 +235,61 @@ public class KexManager {
 							.initCause(tm.getReasonClosedCause());
 
 				try {
-					accessLock.wait();
+					connInfoChanged.await();
 				} catch (InterruptedException e) {
 				}
 			}
+		} finally {
+			accessLock.unlock();
+		}
+	}
+
+	/**
+	 * Bounds the number of connections doing DH computations at the same time
+	 * (e.g., to the number of cores) to the permits of kexLimit; the others
+	 * wait in the thread that handles their KEX messages, so only set it for
+	 * connections that have a thread of their own. A permit is held only
+	 * around the modPow work, not while waiting for the server.
+	 *
+	 * @param kexLimit
+	 *            permits shared by a group of connections, or null for no
+	 *            limit (the default).
+	 */
+	public void setKexLimit(Semaphore kexLimit) {
+		this.kexLimit = kexLimit;
+	}
+
+	public void handleMessage(byte[] msg, int msglen) throws IOException {
+		kexLock.lock();
+		try {
+			handleMessageLocked(msg, msglen);
+		} finally {
+			kexLock.unlock();
 		}
 	}
 
-	public synchronized void handleMessage(byte[] msg, int msglen)
+	private void acquireDh() {
+		if (kexLimit != null)
+			kexLimit.acquireUninterruptibly();
+	}
+
+	private void releaseDh() {
+		if (kexLimit != null)
+			kexLimit.release();
+	}
+
+	private void handleMessageLocked(byte[] msg, int msglen)
 			throws IOException {
 		PacketKexInit kip;
 
 		if (msg == null) {
-			synchronized (accessLock) {
+			accessLock.lock();
+			try {
 				connectionClosed = true;
-				accessLock.notifyAll();
+				connInfoChanged.signalAll();
 				return;
+			} finally {
+				accessLock.unlock();
 			}
 		}
 
@@ -300,12 +357,21 @@ public class KexManager {
 
 			if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1")
 					|| kxs.np.kex_algo.equals("diffie-hellman-group14-sha1")) {
-				kxs.dhx = new DhExchange();
+				acquireDh();
+				try {
+					long cpu = CpuTime.now();
+
+					kxs.dhx = new DhExchange();
 
-				if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1"))
-					kxs.dhx.init(1, rnd);
-				else
-					kxs.dhx.init(14, rnd);
+					if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1"))
+						kxs.dhx.init(1, rnd);
+					else
+						kxs.dhx.init(14, rnd);
+
+					addCpu(ConnectionTimings.CPU_DH, cpu);
+				} finally {
+					releaseDh();
+				}
 
 				PacketKexDHInit kp = new PacketKexDHInit(kxs.dhx.getE());
 				tm.sendKexMessage(kp.getPayload());
@@ -356,9 +422,12 @@ public class KexManager {
 			sci.serverHostKeyAlgorithm = kxs.np.server_host_key_algo;
 			sci.serverHostKey = kxs.hostkey;
 
-			synchronized (accessLock) {
+			accessLock.lock();
+			try {
 				lastConnInfo = sci;
-				accessLock.notifyAll();
+				connInfoChanged.signalAll();
+			} finally {
+				accessLock.unlock();
 			}
 
 			kxs = null;
@@ -372,8 +441,15 @@ public class KexManager {
 			if (kxs.state == 1) {
 				PacketKexDhGexGroup dhgexgrp = new PacketKexDhGexGroup(msg, 0,
 						msglen);
-				kxs.dhgx = new DhGroupExchange(dhgexgrp.getP(), dhgexgrp.getG());
-				kxs.dhgx.init(rnd);
+				acquireDh();
+				try {
+					long cpu = CpuTime.now();
+					kxs.dhgx = new DhGroupExchange(dhgexgrp.getP(), dhgexgrp.getG());
+					kxs.dhgx.init(rnd);
+					addCpu(ConnectionTimings.CPU_DH, cpu);
+				} finally {
+					releaseDh();
+				}
 				PacketKexDhGexInit dhgexinit = new PacketKexDhGexInit(
 						kxs.dhgx.getE());
 				tm.sendKexMessage(dhgexinit.getPayload());
@@ -404,7 +480,14 @@ public class KexManager {
 								"The server hostkey was not accepted by the verifier callback");
 				}
 
-				kxs.dhgx.setF(dhgexrpl.getF());
+				long cpu = CpuTime.now();
+
+				acquireDh();
+				try {
+					kxs.dhgx.setF(dhgexrpl.getF());
+				} finally {
+					releaseDh();
+				}
 
 				try {
 					kxs.H = kxs.dhgx.calculateH(csh.getClientString(),
@@ -416,9 +499,14 @@ public class KexManager {
 							.initCause(e);
 				}
 
+				addCpu(ConnectionTimings.CPU_DH, cpu);
+				cpu = CpuTime.now();
+
 				boolean res = verifySignature(dhgexrpl.getSignature(),
 						kxs.hostkey);
 
+				addCpu(ConnectionTimings.CPU_SIGNATURE, cpu);
+
 				if (res == false)
 					throw new IOException(
 							"Hostkey signature sent by remote is wrong!");
@@ -458,7 +546,14 @@ public class KexManager {
 								"The server hostkey was not accepted by the verifier callback");
 				}
 
-				kxs.dhx.setF(dhr.getF());
+				long cpu = CpuTime.now();
+
+				acquireDh();
+				try {
+					kxs.dhx.setF(dhr.getF());
+				} finally {
+					releaseDh();
+				}
 
 				try {
 					kxs.H = kxs.dhx.calculateH(csh.getClientString(),
@@ -469,8 +564,13 @@ public class KexManager {
 							.initCause(e);
 				}
 
+				addCpu(ConnectionTimings.CPU_DH, cpu);
+				cpu = CpuTime.now();
+
 				boolean res = verifySignature(dhr.getSignature(), kxs.hostkey);
 
+				addCpu(ConnectionTimings.CPU_SIGNATURE, cpu);
+
 				if (res == false)
 					throw new IOException(
 							"Hostkey signature sent by remote is wrong!");
@@ -487,18 +587,23 @@ public class KexManager {
 				+ kxs.np.kex_algo + ")");
 	}
 
-	public synchronized void initiateKEX(CryptoWishList cwl,
+	public void initiateKEX(CryptoWishList cwl,
 			DHGexParameters dhgex) throws IOException {
-		nextKEXcryptoWishList = cwl;
-		nextKEXdhgexParameters = dhgex;
+		kexLock.lock();
+		try {
+			nextKEXcryptoWishList = cwl;
+			nextKEXdhgexParameters = dhgex;
 
-		if (kxs == null) {
-			kxs = new KexState();
+			if (kxs == null) {
+				kxs = new KexState();
 
-			kxs.dhgexParameters = nextKEXdhgexParameters;
-			PacketKexInit kp = new PacketKexInit(nextKEXcryptoWishList, rnd);
-			kxs.localKEX = kp;
-			tm.sendKexMessage(kp.getPayload());
+				kxs.dhgexParameters = nextKEXdhgexParameters;
+				PacketKexInit kp = new PacketKexInit(nextKEXcryptoWishList, rnd);
+				kxs.localKEX = kp;
+				tm.sendKexMessage(kp.getPayload());
+			}
+		} finally {
+			kexLock.unlock();
 		}
 	}
 
@@ -532,13 +637,13 @@ public class KexManager {
 			np.kex_algo = getFirstMatch(client.kex_algorithms,
 					server.kex_algorithms);
 
-			log.log(20, "kex_algo=" + np.kex_algo);
+			log.log(20, "kex_algo={}", np.kex_algo);
 
 			np.server_host_key_algo = getFirstMatch(
 					client.server_host_key_algorithms,
 					server.server_host_key_algorithms);
 
-			log.log(20, "server_host_key_algo=" + np.server_host_key_algo);
+			log.log(20, "server_host_key_algo={}", np.server_host_key_algo);
 
 			np.enc_algo_client_to_server = getFirstMatch(
 					client.encryption_algorithms_client_to_server,
@@ -547,10 +652,8 @@ public class KexManager {
 					client.encryption_algorithms_server_to_client,
 					server.encryption_algorithms_server_to_client);
 
-			log.log(20, "enc_algo_client_to_server="
-					+ np.enc_algo_client_to_server);
-			log.log(20, "enc_algo_server_to_client="
-					+ np.enc_algo_server_to_client);
+			log.log(20, "enc_algo_client_to_server={}", np.enc_algo_client_to_server);
+			log.log(20, "enc_algo_server_to_client={}", np.enc_algo_server_to_client);
 
 			np.mac_algo_client_to_server = getFirstMatch(
 					client.mac_algorithms_client_to_server,
@@ -559,10 +662,8 @@ public class KexManager {
 					client.mac_algorithms_server_to_client,
 					server.mac_algorithms_server_to_client);
 
-			log.log(20, "mac_algo_client_to_server="
-					+ np.mac_algo_client_to_server);
-			log.log(20, "mac_algo_server_to_client="
-					+ np.mac_algo_server_to_client);
+			log.log(20, "mac_algo_client_to_server={}", np.mac_algo_client_to_server);
+			log.log(20, "mac_algo_server_to_client={}", np.mac_algo_server_to_client);
 
 			np.comp_algo_client_to_server = getFirstMatch(
 					client.compression_algorithms_client_to_server,
@@ -571,10 +672,8 @@ public class KexManager {
 					client.compression_algorithms_server_to_client,
 					server.compression_algorithms_server_to_client);
 
-			log.log(20, "comp_algo_client_to_server="
-					+ np.comp_algo_client_to_server);
-			log.log(20, "comp_algo_server_to_client="
-					+ np.comp_algo_server_to_client);
+			log.log(20, "comp_algo_client_to_server={}", np.comp_algo_client_to_server);
+			log.log(20, "comp_algo_server_to_client={}", np.comp_algo_server_to_client);
 
 		} catch (NegotiateException e) {
 			return null;
@@ -602,6 +701,15 @@ public class KexManager {
 		return np;
 	}
 
+	/**
+	 * Adds the CPU time used since start (see {@link CpuTime}) to the
+	 * timings of the connection.
+	 */
+	private void addCpu(int kind, long start) {
+		if (start >= 0)
+			tm.getTimings().addCpu(kind, CpuTime.since(start));
+	}
+
 	private boolean verifySignature(byte[] sig, byte[] hostkey)
 			throws IOException {
 		if (kxs.np.server_host_key_algo.equals("ssh-rsa")) {
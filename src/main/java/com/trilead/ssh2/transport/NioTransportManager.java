@@ -0,0 +1,368 @@
+package com.trilead.ssh2.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Vector;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionTimings;
+import com.trilead.ssh2.DHGexParameters;
+import com.trilead.ssh2.compression.ICompressor;
+import com.trilead.ssh2.crypto.CryptoWishList;
+import com.trilead.ssh2.crypto.cipher.BlockCipher;
+import com.trilead.ssh2.crypto.cipher.NullCipher;
+import com.trilead.ssh2.crypto.digest.MAC;
+import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.log.TraceBuffer;
+import com.trilead.ssh2.packets.PacketKexInit;
+import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.util.CpuTime;
+
+/**
+ * NioTransportManager. A {@link TransportManager} that does not own a socket:
+ * the caller pushes the bytes read from a non-blocking channel with
+ * {@link #receive(byte[], int, int)} and drains the packets we produce with
+ * {@link #getPendingOutput()}. No receive thread is started, the banner, the
+ * key exchange and the packet decoding are all driven from the thread that
+ * calls {@link #receiveMessage()}.
+ * <p>
+ * Only the "none" compression method is supported.
+ */
+public class NioTransportManager extends TransportManager {
+	private static final Logger log = Logger.getLogger(NioTransportManager.class);
+
+	/* ClientServerHello accepts at most 50 lines of 512 bytes */
+	private static final int MAX_HELLO_SIZE = 50 * 512;
+
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+	private final Vector<byte[]> deferredMessages = new Vector<byte[]>();
+
+	private final CryptoWishList cwl;
+	private final SecureRandom rnd;
+
+	private ClientServerHello csh;
+	private boolean stopAfterHello;
+	private boolean stopAtKexInit;
+	private KexParameters serverKexParameters;
+
+	private byte[] input = new byte[4096];
+	private int inputLen = 0;
+
+	private BlockCipher recvCipher = new NullCipher();
+	private MAC recvMac;
+	private byte[] recvMacBuffer;
+	private int recvSeqNumber = 0;
+
+	/* Packet whose first block was already decrypted */
+	private byte[] packet;
+	private int packetPos;
+
+	public NioTransportManager(String host, int port, CryptoWishList cwl, SecureRandom rnd) throws IOException {
+		super(host, port);
+		this.cwl = cwl;
+		this.rnd = rnd;
+
+		tc = new TransportConnection(new ByteArrayInputStream(new byte[0]), output, rnd, traceId);
+
+		/* Made once the channel is connected */
+		TraceBuffer.record(traceId, TraceBuffer.CONNECT, 0, 0);
+
+		output.write(("SSH-2.0-" + Connection.identification + "\r\n").getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * If set, the key exchange is not started once the server line arrives;
+	 * only {@link #getServerVersionComment()} is of interest then.
+	 */
+	public void setStopAfterHello(boolean stopAfterHello) {
+		this.stopAfterHello = stopAfterHello;
+	}
+
+	/**
+	 * If set, the server's KEXINIT is not handed to the {@link KexManager}:
+	 * it is only parsed, see {@link #getServerKexParameters()}, and no DH
+	 * computation is done.
+	 */
+	public void setStopAtKexInit(boolean stopAtKexInit) {
+		this.stopAtKexInit = stopAtKexInit;
+	}
+
+	/**
+	 * @return the algorithm lists proposed by the server, or
+	 *         <code>null</code> if its KEXINIT was not received yet.
+	 */
+	public KexParameters getServerKexParameters() {
+		return serverKexParameters;
+	}
+
+	/**
+	 * Appends data received from the server to the input buffer.
+	 */
+	public void receive(byte[] buf, int off, int len) {
+		if (inputLen + len > input.length) {
+			byte[] tmp = new byte[Math.max(input.length * 2, inputLen + len)];
+			System.arraycopy(input, 0, tmp, 0, inputLen);
+			input = tmp;
+		}
+
+		System.arraycopy(buf, off, input, inputLen, len);
+		inputLen += len;
+	}
+
+	/**
+	 * Decodes the buffered input. Transport layer messages (KEX, IGNORE,
+	 * DEBUG) are consumed internally.
+	 *
+	 * @return the payload of the next message for the upper layers, or
+	 *         <code>null</code> if more input is needed.
+	 * @throws IOException
+	 */
+	public byte[] receiveMessage() throws IOException {
+		if (csh == null && receiveHello() == false)
+			return null;
+
+		if (km == null)
+			return null;
+
+		while (true) {
+			long cpu = CpuTime.now();
+			byte[] msg = receivePacket();
+
+			timings.addCpu(ConnectionTimings.CPU_CIPHER, CpuTime.since(cpu));
+
+			if (msg == null)
+				return null;
+
+			int type = msg[0] & 0xff;
+
+			if ((type == Packets.SSH_MSG_IGNORE) || (type == Packets.SSH_MSG_DEBUG))
+				continue;
+
+			if (type == Packets.SSH_MSG_UNIMPLEMENTED)
+				throw new IOException("Peer sent UNIMPLEMENTED message, that should not happen.");
+
+			if (type == Packets.SSH_MSG_DISCONNECT) {
+				TypesReader tr = new TypesReader(msg, 0, msg.length);
+				tr.readByte();
+				int reason_code = tr.readUINT32();
+				String reason = tr.readString("UTF-8");
+
+				if (reason.length() > 255)
+					reason = reason.substring(0, 252) + "...";
+
+				throw new IOException("Peer sent DISCONNECT message (reason code " + reason_code + "): " + reason);
+			}
+
+			if ((type == Packets.SSH_MSG_KEXINIT) && stopAtKexInit) {
+				if (serverKexParameters == null)
+					serverKexParameters = new PacketKexInit(msg, 0, msg.length).getKexParameters();
+				return null;
+			}
+
+			if ((type == Packets.SSH_MSG_KEXINIT) || (type == Packets.SSH_MSG_NEWKEYS) || ((type >= 30) && (type <= 49))) {
+				km.handleMessage(msg, msg.length);
+				continue;
+			}
+
+			return msg;
+		}
+	}
+
+	/**
+	 * @return everything that was sent since the last call, or
+	 *         <code>null</code> if there is nothing to send.
+	 */
+	public byte[] getPendingOutput() {
+		connectionLock.lock();
+		try {
+			if (output.size() == 0)
+				return null;
+
+			byte[] res = output.toByteArray();
+			output.reset();
+			return res;
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
+	public boolean isKexFinished() {
+		return (km != null) && (km.lastConnInfo != null);
+	}
+
+	/**
+	 * @return the server version comment, or <code>null</code> if the server
+	 *         line was not received yet.
+	 */
+	public String getServerVersionComment() {
+		return (csh != null) ? csh.getServerVersionComment() : null;
+	}
+
+	@Override
+	public void changeRecvCipher(BlockCipher bc, MAC mac) {
+		recvCipher = bc;
+		recvMac = mac;
+		recvMacBuffer = (mac != null) ? new byte[mac.size()] : null;
+	}
+
+	@Override
+	public void changeRecvCompression(ICompressor comp) {
+		/* Only "none" is offered, see the class comment */
+	}
+
+	@Override
+	public void kexFinished() throws IOException {
+		TraceBuffer.record(traceId, TraceBuffer.KEX_DONE, 0, 0);
+
+		connectionLock.lock();
+		try {
+			flagKexOngoing = false;
+
+			/* Flush whatever the upper layers sent during the exchange */
+
+			while (deferredMessages.size() > 0) {
+				tc.sendMessage(deferredMessages.firstElement());
+				deferredMessages.removeElementAt(0);
+			}
+
+			connectionStateChanged.signalAll();
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
+	/**
+	 * Never blocks: messages sent while a key exchange is in progress are
+	 * queued and sent as soon as it finishes.
+	 */
+	@Override
+	public void sendMessage(byte[] msg) throws IOException {
+		connectionLock.lock();
+		try {
+			if (connectionClosed) {
+				throw (IOException) new IOException(
+						"Sorry, this connection is closed.")
+						.initCause(reasonClosedCause);
+			}
+
+			if (flagKexOngoing) {
+				deferredMessages.addElement(msg);
+				return;
+			}
+
+			tc.sendMessage(msg);
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
+	private boolean receiveHello() throws IOException {
+		int lineStart = 0;
+
+		for (int i = 0; i < inputLen; i++) {
+			if (input[i] != '\n')
+				continue;
+
+			if ((i - lineStart >= 4) && (input[lineStart] == 'S') && (input[lineStart + 1] == 'S')
+					&& (input[lineStart + 2] == 'H') && (input[lineStart + 3] == '-')) {
+				csh = new ClientServerHello(new ByteArrayInputStream(input, 0, i + 1), new ByteArrayOutputStream());
+
+				consume(i + 1);
+
+				if (log.isEnabled())
+					log.log(50, "Server version: " + csh.server_versioncomment);
+
+				if (stopAfterHello)
+					return true;
+
+				km = new KexManager(this, csh, cwl, hostname, port, null, rnd);
+				km.initiateKEX(cwl, new DHGexParameters());
+				return true;
+			}
+
+			lineStart = i + 1;
+		}
+
+		if (inputLen > MAX_HELLO_SIZE)
+			throw new IOException(
+					"Malformed server identification string. There was no line starting with 'SSH-' amongst the first 50 lines.");
+
+		return false;
+	}
+
+	private byte[] receivePacket() throws IOException {
+		int blockSize = recvCipher.getBlockSize();
+
+		if (packet == null) {
+			if (inputLen < blockSize)
+				return null;
+
+			byte[] firstBlock = new byte[blockSize];
+			recvCipher.transformBlock(input, 0, firstBlock, 0);
+			consume(blockSize);
+
+			int packet_length = ((firstBlock[0] & 0xff) << 24)
+					| ((firstBlock[1] & 0xff) << 16)
+					| ((firstBlock[2] & 0xff) << 8)
+					| ((firstBlock[3] & 0xff));
+
+			if (packet_length > 35000 || packet_length < 12)
+				throw new IOException("Illegal packet size! (" + packet_length + ")");
+
+			if ((packet_length + 4) % blockSize != 0)
+				throw new IOException("Illegal packet size! (" + packet_length + ")");
+
+			packet = new byte[packet_length + 4];
+			System.arraycopy(firstBlock, 0, packet, 0, blockSize);
+			packetPos = blockSize;
+		}
+
+		int macLen = (recvMac != null) ? recvMacBuffer.length : 0;
+		int remaining = packet.length - packetPos;
+
+		if (inputLen < remaining + macLen)
+			return null;
+
+		for (int off = 0; off < remaining; off += blockSize)
+			recvCipher.transformBlock(input, off, packet, packetPos + off);
+
+		if (recvMac != null) {
+			recvMac.initMac(recvSeqNumber);
+			recvMac.update(packet, 0, packet.length);
+			recvMac.getMac(recvMacBuffer, 0);
+
+			for (int i = 0; i < macLen; i++) {
+				if (recvMacBuffer[i] != input[remaining + i])
+					throw new IOException("Remote sent corrupt MAC.");
+			}
+		}
+
+		consume(remaining + macLen);
+		recvSeqNumber++;
+
+		int padding_length = packet[4] & 0xff;
+		int payload_length = packet.length - 5 - padding_length;
+
+		if (payload_length <= 0)
+			throw new IOException("Illegal padding_length in packet from remote (" + padding_length + ")");
+
+		byte[] msg = new byte[payload_length];
+		System.arraycopy(packet, 5, msg, 0, payload_length);
+		packet = null;
+
+		TraceBuffer.record(traceId, TraceBuffer.RECEIVE, msg[0] & 0xff, payload_length);
+
+		if (log.isEnabled())
+			log.log(90, "Received " + Packets.getMessageName(msg[0] & 0xff) + " " + payload_length + " bytes payload");
+
+		return msg;
+	}
+
+	private void consume(int len) {
+		System.arraycopy(input, len, input, 0, inputLen - len);
+		inputLen -= len;
+	}
+}
@@ -1,10 +1,13 @@
 package com.trilead.ssh2.transport;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SecureRandom;
 
+import com.trilead.ssh2.ConnectionTimings;
 import com.trilead.ssh2.compression.ICompressor;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.CipherInputStream;
@@ -12,7 +15,9 @@ import com.trilead.ssh2.crypto.cipher.CipherOutputStream;
 import com.trilead.ssh2.crypto.cipher.NullCipher;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.log.TraceBuffer;
 import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.util.CpuTime;
 
 /**
  * TransportConnection.
@@ -79,12 +84,42 @@ public class TransportConnection {
 
 	final SecureRandom rnd;
 
+	final int traceId;
+
+	/*
+	 * CPU accounting, see setTimings(). The socket calls are counted as I/O,
+	 * the rest of sending/receiving a packet as cipher (and MAC) work. Each
+	 * counter is only touched by the thread of its direction.
+	 */
+
+	ConnectionTimings timings;
+
+	long recv_io_cpu = 0;
+
+	long send_io_cpu = 0;
+
 	public TransportConnection(InputStream is, OutputStream os, SecureRandom rnd) {
-		this.cis = new CipherInputStream(new NullCipher(), is);
-		this.cos = new CipherOutputStream(new NullCipher(), os);
+		this(is, os, rnd, TraceBuffer.newConnectionId());
+	}
+
+	/**
+	 * @param traceId the connection id for the {@link TraceBuffer} events.
+	 */
+	public TransportConnection(InputStream is, OutputStream os, SecureRandom rnd, int traceId) {
+		this.traceId = traceId;
+		this.cis = new CipherInputStream(new NullCipher(), new IoInputStream(is));
+		this.cos = new CipherOutputStream(new NullCipher(), new IoOutputStream(os));
 		this.rnd = rnd;
 	}
 
+	/**
+	 * Where the CPU time of sending and receiving packets is added up;
+	 * <code>null</code> (the default) to not account it.
+	 */
+	public void setTimings(ConnectionTimings timings) {
+		this.timings = timings;
+	}
+
 	public void changeRecvCipher(BlockCipher bc, MAC mac) {
 		cis.changeCipher(bc);
 		recv_mac = mac;
@@ -162,6 +197,23 @@ public class TransportConnection {
 
 	public int receiveMessage(byte buffer[], int off, int len)
 			throws IOException {
+		ConnectionTimings t = timings;
+		long cpu = (t != null) ? CpuTime.now() : -1;
+
+		if (cpu < 0)
+			return readMessage(buffer, off, len);
+
+		long io = recv_io_cpu;
+
+		try {
+			return readMessage(buffer, off, len);
+		} finally {
+			t.addCpu(ConnectionTimings.CPU_CIPHER, CpuTime.since(cpu) - (recv_io_cpu - io));
+		}
+	}
+
+	private int readMessage(byte buffer[], int off, int len)
+			throws IOException {
 		if (recv_packet_header_present == false) {
 			cis.read(recv_packet_header_buffer, 0, 5);
 		} else
@@ -209,6 +261,8 @@ public class TransportConnection {
 
 		recv_seq_number++;
 
+		TraceBuffer.record(traceId, TraceBuffer.RECEIVE, buffer[off] & 0xff, payload_length);
+
 		if (log.isEnabled()) {
 			log.log(90,
 					"Received " + Packets.getMessageName(buffer[off] & 0xff)
@@ -240,6 +294,25 @@ public class TransportConnection {
 
 	public void sendMessage(byte[] message, int off, int len, int padd)
 			throws IOException {
+		ConnectionTimings t = timings;
+		long cpu = (t != null) ? CpuTime.now() : -1;
+
+		if (cpu < 0) {
+			writeMessage(message, off, len, padd);
+			return;
+		}
+
+		long io = send_io_cpu;
+
+		try {
+			writeMessage(message, off, len, padd);
+		} finally {
+			t.addCpu(ConnectionTimings.CPU_CIPHER, CpuTime.since(cpu) - (send_io_cpu - io));
+		}
+	}
+
+	private void writeMessage(byte[] message, int off, int len, int padd)
+			throws IOException {
 		if (padd < 4)
 			padd = 4;
 		else if (padd > 64)
@@ -320,6 +393,8 @@ public class TransportConnection {
 					+ " " + len + " bytes payload");
 		}
 
+		TraceBuffer.record(traceId, TraceBuffer.SEND, message[off] & 0xff, len);
+
 		send_seq_number++;
 	}
 
@@ -330,4 +405,81 @@ public class TransportConnection {
 		can_recv_compress = true;
 		can_send_compress = true;
 	}
+
+	/**
+	 * Counts the CPU time spent in the socket reads as I/O.
+	 */
+	private class IoInputStream extends FilterInputStream {
+		IoInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			ConnectionTimings t = timings;
+
+			if (t == null)
+				return in.read(b, off, len);
+
+			long cpu = CpuTime.now();
+
+			try {
+				return in.read(b, off, len);
+			} finally {
+				long used = CpuTime.since(cpu);
+				recv_io_cpu += used;
+				t.addCpu(ConnectionTimings.CPU_IO, used);
+			}
+		}
+	}
+
+	/**
+	 * Counts the CPU time spent in the socket writes as I/O.
+	 */
+	private class IoOutputStream extends FilterOutputStream {
+		IoOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ConnectionTimings t = timings;
+
+			if (t == null) {
+				out.write(b, off, len);
+				return;
+			}
+
+			long cpu = CpuTime.now();
+
+			try {
+				out.write(b, off, len);
+			} finally {
+				account(t, CpuTime.since(cpu));
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			ConnectionTimings t = timings;
+
+			if (t == null) {
+				out.flush();
+				return;
+			}
+
+			long cpu = CpuTime.now();
+
+			try {
+				out.flush();
+			} finally {
+				account(t, CpuTime.since(cpu));
+			}
+		}
+
+		private void account(ConnectionTimings t, long used) {
+			send_io_cpu += used;
+			t.addCpu(ConnectionTimings.CPU_IO, used);
+		}
+	}
 }
@@ -9,8 +9,14 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.util.Vector;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.trilead.ssh2.ConnectionInfo;
+import com.trilead.ssh2.ConnectionTimings;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.HTTPProxyData;
 import com.trilead.ssh2.HTTPProxyException;
@@ -22,9 +28,14 @@ import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.log.TraceBuffer;
 import com.trilead.ssh2.packets.PacketDisconnect;
+import com.trilead.ssh2.packets.PacketKexInit;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.util.CpuTime;
+import com.trilead.ssh2.util.DnsCache;
+import com.trilead.ssh2.util.ThreadService;
 import com.trilead.ssh2.util.Tokenizer;
 
 /*
@@ -50,13 +61,14 @@ import com.trilead.ssh2.util.Tokenizer;
  * @version $Id: TransportManager.java,v 1.2 2008/04/01 12:38:09 cplattne Exp $
  */
 public class TransportManager {
-	class AsynchronousWorker extends Thread {
+	class AsynchronousWorker implements Runnable {
 		@Override
 		public void run() {
 			while (true) {
 				byte[] msg = null;
 
-				synchronized (asynchronousQueue) {
+				asynchronousLock.lock();
+				try {
 					if (asynchronousQueue.size() == 0) {
 						/*
 						 * After the queue is empty for about 2 seconds, stop
@@ -64,7 +76,7 @@ public class TransportManager {
 						 */
 
 						try {
-							asynchronousQueue.wait(2000);
+							asynchronousQueueChanged.await(2000, TimeUnit.MILLISECONDS);
 						} catch (InterruptedException e) {
 							/*
 							 * OKOK, if somebody interrupts us, then we may die
@@ -79,6 +91,8 @@ public class TransportManager {
 					}
 
 					msg = asynchronousQueue.remove(0);
+				} finally {
+					asynchronousLock.unlock();
 				}
 
 				/*
@@ -111,13 +125,21 @@ public class TransportManager {
 	private static final Logger log = Logger.getLogger(TransportManager.class);
 	private final Vector<byte[]> asynchronousQueue = new Vector<byte[]>();
 
+	/*
+	 * java.util.concurrent locks instead of monitors: a virtual thread that
+	 * blocks inside a synchronized block pins its carrier thread.
+	 */
+	private final ReentrantLock asynchronousLock = new ReentrantLock();
+	private final Condition asynchronousQueueChanged = asynchronousLock.newCondition();
+
 	private Thread asynchronousThread = null;
 
 	String hostname;
 	int port;
 	final Socket sock = new Socket();
 
-	Object connectionSemaphore = new Object();
+	final ReentrantLock connectionLock = new ReentrantLock();
+	final Condition connectionStateChanged = connectionLock.newCondition();
 
 	boolean flagKexOngoing = false;
 	boolean connectionClosed = false;
@@ -134,11 +156,56 @@ public class TransportManager {
 	Vector connectionMonitors = new Vector();
 	boolean monitorsWereInformed = false;
 
+	ConnectionTimings timings = new ConnectionTimings();
+
+	Semaphore kexLimit;
+
+	ThreadFactory threadFactory;
+
+	/* Tells the events of this connection apart in the TraceBuffer */
+	final int traceId = TraceBuffer.newConnectionId();
+
 	public TransportManager(String host, int port) throws IOException {
 		this.hostname = host;
 		this.port = port;
 	}
 
+	/**
+	 * Where the phase durations of this connection are recorded; set it
+	 * before initializing, so it survives the TransportManager.
+	 */
+	public void setTimings(ConnectionTimings timings) {
+		this.timings = timings;
+
+		if (tc != null)
+			tc.setTimings(timings);
+	}
+
+	public ConnectionTimings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * See {@link KexManager#setKexLimit(Semaphore)}; set it before
+	 * initializing.
+	 */
+	public void setKexLimit(Semaphore kexLimit) {
+		this.kexLimit = kexLimit;
+	}
+
+	/**
+	 * Creates the receive and asynchronous send threads of this connection;
+	 * <code>null</code> uses the {@link ThreadService} default. Set it before
+	 * initializing.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	private Thread newThread(Runnable r) {
+		return threadFactory != null ? threadFactory.newThread(r) : ThreadService.newThread(r);
+	}
+
 	public void changeRecvCipher(BlockCipher bc, MAC mac) {
 		tc.changeRecvCipher(bc, mac);
 	}
@@ -181,7 +248,8 @@ public class TransportManager {
 			 */
 		}
 
-		synchronized (connectionSemaphore) {
+		connectionLock.lock();
+		try {
 			if (connectionClosed == false) {
 				if (useDisconnectPacket == true) {
 					try {
@@ -201,15 +269,19 @@ public class TransportManager {
 
 				connectionClosed = true;
 				reasonClosedCause = cause; /* may be null */
+				TraceBuffer.record(traceId, TraceBuffer.CLOSE, 0, 0);
 			}
-			connectionSemaphore.notifyAll();
+			connectionStateChanged.signalAll();
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
 	/**
 	 * There were reports that there are JDKs which use the resolver even though
 	 * one supplies a dotted IP address in the Socket constructor. That is why
-	 * we try to generate the InetAdress "by hand".
+	 * we try to generate the InetAdress "by hand". Names go through the
+	 * {@link DnsCache}.
 	 * 
 	 * @param host
 	 * @return the InetAddress
@@ -224,7 +296,7 @@ public class TransportManager {
 		if (addr != null)
 			return addr;
 
-		return InetAddress.getByName(host);
+		return DnsCache.resolve(host);
 	}
 
 	private void establishConnection(ProxyData proxyData, int connectTimeout) throws IOException {
@@ -333,8 +405,11 @@ public class TransportManager {
 	}
 
 	public Throwable getReasonClosedCause() {
-		synchronized (connectionSemaphore) {
+		connectionLock.lock();
+		try {
 			return reasonClosedCause;
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -345,7 +420,12 @@ public class TransportManager {
 	public void initialize(CryptoWishList cwl, ServerHostKeyVerifier verifier, DHGexParameters dhgex, int connectTimeout, SecureRandom rnd, ProxyData proxyData) throws IOException {
 		/* First, establish the TCP connection to the SSH-2 server */
 
+		long cpu = CpuTime.now();
+
+		timings.start(ConnectionTimings.TCP);
 		establishConnection(proxyData, connectTimeout);
+		timings.end(ConnectionTimings.TCP);
+		TraceBuffer.record(traceId, TraceBuffer.CONNECT, 0, 0);
 
 		/*
 		 * Parse the server line and say hello - important: this information is
@@ -353,14 +433,21 @@ public class TransportManager {
 		 * - that is why we wrap it into an object for later use.
 		 */
 
+		timings.start(ConnectionTimings.BANNER);
 		ClientServerHello csh = new ClientServerHello(sock.getInputStream(), sock.getOutputStream());
+		timings.end(ConnectionTimings.BANNER);
+		timings.addCpu(ConnectionTimings.CPU_IO, CpuTime.since(cpu));
 
-		tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd);
+		tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd, traceId);
+		tc.setTimings(timings);
 
+		/* Ends in kexFinished(), on the receive thread */
+		timings.start(ConnectionTimings.KEX);
 		km = new KexManager(this, csh, cwl, hostname, port, verifier, rnd);
+		km.setKexLimit(kexLimit);
 		km.initiateKEX(cwl, dhgex);
 
-		receiveThread = new Thread(new Runnable() {
+		receiveThread = newThread(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -394,14 +481,92 @@ public class TransportManager {
 			}
 		});
 
-		receiveThread.setDaemon(true);
 		receiveThread.start();
 	}
 
+	/**
+	 * Only establishes the TCP connection and exchanges the identification
+	 * strings. Neither the key exchange nor the receive thread are started;
+	 * the caller is expected to close the connection afterwards.
+	 *
+	 * @param readTimeout
+	 *            timeout in ms for reading the server line, 0 means no
+	 *            timeout.
+	 */
+	public ClientServerHello initializeHello(int connectTimeout, int readTimeout, ProxyData proxyData) throws IOException {
+		long cpu = CpuTime.now();
+
+		timings.start(ConnectionTimings.TCP);
+		establishConnection(proxyData, connectTimeout);
+		timings.end(ConnectionTimings.TCP);
+		TraceBuffer.record(traceId, TraceBuffer.CONNECT, 0, 0);
+		sock.setSoTimeout(readTimeout);
+
+		timings.start(ConnectionTimings.BANNER);
+		ClientServerHello csh = new ClientServerHello(sock.getInputStream(), sock.getOutputStream());
+		timings.end(ConnectionTimings.BANNER);
+		timings.addCpu(ConnectionTimings.CPU_IO, CpuTime.since(cpu));
+
+		return csh;
+	}
+
+	/**
+	 * Like {@link #initializeHello(int, int, ProxyData)}, then sends our
+	 * KEXINIT and waits for the one of the server. No key exchange is done
+	 * (no DH, no host key verification); the caller is expected to close the
+	 * connection afterwards.
+	 *
+	 * @return the algorithm lists proposed by the server.
+	 */
+	public KexParameters initializeKexInit(CryptoWishList cwl, int connectTimeout, int readTimeout, SecureRandom rnd,
+			ProxyData proxyData) throws IOException {
+		initializeHello(connectTimeout, readTimeout, proxyData);
+
+		/* Here KEX is only the KEXINIT round trip */
+		timings.start(ConnectionTimings.KEX);
+		tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd, traceId);
+		tc.setTimings(timings);
+		tc.sendMessage(new PacketKexInit(cwl, rnd).getPayload());
+
+		byte[] msg = new byte[35000];
+
+		while (true) {
+			int msglen = tc.receiveMessage(msg, 0, msg.length);
+			int type = msg[0] & 0xff;
+
+			if ((type == Packets.SSH_MSG_IGNORE) || (type == Packets.SSH_MSG_DEBUG))
+				continue;
+
+			if (type == Packets.SSH_MSG_DISCONNECT) {
+				TypesReader tr = new TypesReader(msg, 0, msglen);
+				tr.readByte();
+				int reason_code = tr.readUINT32();
+				String reason = tr.readString("UTF-8");
+
+				if (reason.length() > 255)
+					reason = reason.substring(0, 252) + "...";
+
+				throw new IOException("Peer sent DISCONNECT message (reason code " + reason_code + "): " + reason);
+			}
+
+			if (type != Packets.SSH_MSG_KEXINIT)
+				throw new IOException("Unexpected SSH message (type " + type + ")");
+
+			timings.end(ConnectionTimings.KEX);
+			return new PacketKexInit(msg, 0, msglen).getKexParameters();
+		}
+	}
+
 	public void kexFinished() throws IOException {
-		synchronized (connectionSemaphore) {
+		timings.end(ConnectionTimings.KEX);
+		TraceBuffer.record(traceId, TraceBuffer.KEX_DONE, 0, 0);
+
+		connectionLock.lock();
+		try {
 			flagKexOngoing = false;
-			connectionSemaphore.notifyAll();
+			connectionStateChanged.signalAll();
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -575,8 +740,10 @@ public class TransportManager {
 	}
 
 	public void sendAsynchronousMessage(byte[] msg) throws IOException {
-		synchronized (asynchronousQueue) {
+		asynchronousLock.lock();
+		try {
 			asynchronousQueue.addElement(msg);
+			asynchronousQueueChanged.signal();
 
 			/*
 			 * This limit should be flexible enough. We need this, otherwise the
@@ -594,8 +761,7 @@ public class TransportManager {
 			/* Check if we have an asynchronous sending thread */
 
 			if (asynchronousThread == null) {
-				asynchronousThread = new AsynchronousWorker();
-				asynchronousThread.setDaemon(true);
+				asynchronousThread = newThread(new AsynchronousWorker());
 				asynchronousThread.start();
 
 				/*
@@ -603,11 +769,14 @@ public class TransportManager {
 				 * empty queue)
 				 */
 			}
+		} finally {
+			asynchronousLock.unlock();
 		}
 	}
 
 	public void sendKexMessage(byte[] msg) throws IOException {
-		synchronized (connectionSemaphore) {
+		connectionLock.lock();
+		try {
 			if (connectionClosed) {
 				throw (IOException) new IOException(
 						"Sorry, this connection is closed.")
@@ -622,6 +791,8 @@ public class TransportManager {
 				close(e, false);
 				throw e;
 			}
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -629,7 +800,8 @@ public class TransportManager {
 		if (Thread.currentThread() == receiveThread)
 			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
 
-		synchronized (connectionSemaphore) {
+		connectionLock.lock();
+		try {
 			while (true) {
 				if (connectionClosed) {
 					throw (IOException) new IOException(
@@ -641,7 +813,7 @@ public class TransportManager {
 					break;
 
 				try {
-					connectionSemaphore.wait();
+					connectionStateChanged.await();
 				} catch (InterruptedException e) {
 				}
 			}
@@ -652,6 +824,8 @@ public class TransportManager {
 				close(e, false);
 				throw e;
 			}
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
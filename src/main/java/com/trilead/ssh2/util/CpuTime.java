@@ -0,0 +1,95 @@
+package com.trilead.ssh2.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * CpuTime. CPU time of the current thread, in nanoseconds, for accounting
+ * where a connection spends its CPU (see
+ * {@link com.trilead.ssh2.ConnectionTimings}). Time a thread spends blocked
+ * on a socket does not count, only the time it actually runs.
+ * <p>
+ * Uses the ThreadMXBean on a JVM and android.os.Debug.threadCpuTimeNanos()
+ * on Android, where java.lang.management does not exist; both are looked up
+ * by reflection, so that the library still builds for either. If neither is
+ * there, {@link #now()} returns -1 and nothing is accounted.
+ */
+public class CpuTime {
+	private static final Object target;
+	private static final Method method;
+
+	private static volatile boolean enabled = true;
+
+	static {
+		Object t = null;
+		Method m = null;
+
+		try {
+			t = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean")
+					.invoke(null);
+			Class<?> c = Class.forName("java.lang.management.ThreadMXBean");
+
+			if ((Boolean) c.getMethod("isCurrentThreadCpuTimeSupported").invoke(t)) {
+				if (!(Boolean) c.getMethod("isThreadCpuTimeEnabled").invoke(t))
+					c.getMethod("setThreadCpuTimeEnabled", boolean.class).invoke(t, true);
+
+				m = c.getMethod("getCurrentThreadCpuTime");
+			}
+		} catch (Throwable e) {
+			m = null;
+		}
+
+		if (m == null) {
+			t = null;
+
+			try {
+				m = Class.forName("android.os.Debug").getMethod("threadCpuTimeNanos");
+			} catch (Throwable e) {
+				m = null;
+			}
+		}
+
+		target = t;
+		method = m;
+	}
+
+	public static boolean isSupported() {
+		return method != null;
+	}
+
+	/**
+	 * Turns the accounting off (or back on); {@link #now()} then returns -1.
+	 */
+	public static void setEnabled(boolean enabled) {
+		CpuTime.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled && (method != null);
+	}
+
+	/**
+	 * @return the CPU time of the current thread, or -1 if not available.
+	 */
+	public static long now() {
+		if (!enabled || (method == null))
+			return -1;
+
+		try {
+			return ((Long) method.invoke(target, (Object[]) null)).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param start a value returned by {@link #now()} on this thread.
+	 * @return the CPU time used since then, or 0 if not available.
+	 */
+	public static long since(long start) {
+		if (start < 0)
+			return 0;
+
+		long now = now();
+		return (now < start) ? 0 : now - start;
+	}
+}
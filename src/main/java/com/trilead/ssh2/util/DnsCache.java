@@ -0,0 +1,281 @@
+package com.trilead.ssh2.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * DnsCache. Resolves host names for the library, so that a name that appears
+ * in many connections is only looked up once per TTL.
+ * <p>
+ * Failed lookups are cached as well (for a shorter TTL), so a dead name does
+ * not block every connect to it. Concurrent requests for the same name wait
+ * for a single lookup. {@link #prefetch(String)} starts a lookup on a small
+ * background pool, so that it is usually done by the time the connection is
+ * made. The cache is bounded; expired entries are dropped first.
+ * <p>
+ * Address literals are never looked up nor cached.
+ */
+public class DnsCache {
+	public static final long DEFAULT_TTL = 60 * 1000;
+	public static final long DEFAULT_NEGATIVE_TTL = 10 * 1000;
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final int PREFETCH_THREADS = 4;
+	private static final int PREFETCH_QUEUE = 1024;
+
+	private static class Entry {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile InetAddress address;
+		volatile String error;
+		/* 0 also marks a lookup that was never made (prefetch queue full) */
+		volatile long expires;
+
+		boolean expired(long now) {
+			return done.getCount() == 0 && expires <= now;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	private static final AtomicBoolean trimming = new AtomicBoolean();
+
+	private static volatile long ttl = DEFAULT_TTL;
+	private static volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+	private static volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	private static final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 30,
+			TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return ThreadService.newThread(r);
+				}
+			});
+
+	static {
+		prefetcher.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param positive how long a resolved address is kept (ms).
+	 * @param negative how long a failed lookup is kept (ms).
+	 */
+	public static void setTtl(long positive, long negative) {
+		ttl = positive;
+		negativeTtl = negative;
+	}
+
+	public static void setMaxEntries(int max) {
+		maxEntries = max;
+	}
+
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Like InetAddress.getByName(), through the cache.
+	 */
+	public static InetAddress resolve(String host) throws UnknownHostException {
+		if (isLiteral(host))
+			return InetAddress.getByName(host);
+
+		String key = host.toLowerCase(Locale.ENGLISH);
+
+		while (true) {
+			Entry e = cache.get(key);
+
+			if (e == null) {
+				Entry created = new Entry();
+				e = cache.putIfAbsent(key, created);
+
+				if (e == null) {
+					lookup(host, created);
+					e = created;
+				}
+			}
+
+			await(e);
+
+			if (e.expired(System.currentTimeMillis())) {
+				cache.remove(key, e);
+				continue;
+			}
+
+			if (e.error != null)
+				throw new UnknownHostException(e.error);
+
+			return e.address;
+		}
+	}
+
+	/**
+	 * Starts resolving host in the background, unless it is already cached
+	 * or being resolved. Does nothing if the background pool is busy.
+	 */
+	public static void prefetch(final String host) {
+		if (isLiteral(host))
+			return;
+
+		String key = host.toLowerCase(Locale.ENGLISH);
+		Entry e = cache.get(key);
+
+		if (e != null) {
+			if (!e.expired(System.currentTimeMillis()))
+				return;
+			cache.remove(key, e);
+		}
+
+		final Entry created = new Entry();
+
+		if (cache.putIfAbsent(key, created) != null)
+			return;
+
+		try {
+			prefetcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					lookup(host, created);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			/* Whoever waits on it retries with a lookup of its own */
+			cache.remove(key, created);
+			created.done.countDown();
+		}
+	}
+
+	/**
+	 * Like {@link #resolve(String)}, but never blocks: if the name is not
+	 * resolved yet, a background lookup is started (see
+	 * {@link #prefetch(String)}) and <code>null</code> is returned; call again
+	 * later. Meant for selector threads.
+	 *
+	 * @return the address, or <code>null</code> while the lookup is running.
+	 * @throws UnknownHostException if the name is known not to resolve.
+	 */
+	public static InetAddress poll(String host) throws UnknownHostException {
+		if (isLiteral(host))
+			return InetAddress.getByName(host);
+
+		String key = host.toLowerCase(Locale.ENGLISH);
+		Entry e = cache.get(key);
+
+		if ((e == null) || e.expired(System.currentTimeMillis())) {
+			prefetch(host);
+			return null;
+		}
+
+		if (e.done.getCount() != 0)
+			return null;
+
+		if (e.error != null)
+			throw new UnknownHostException(e.error);
+
+		return e.address;
+	}
+
+	/**
+	 * @return the cached address of a name, or <code>null</code> if it is not
+	 *         (yet) known. Never blocks; address literals give
+	 *         <code>null</code>.
+	 */
+	public static InetAddress peek(String host) {
+		if (isLiteral(host))
+			return null;
+
+		Entry e = cache.get(host.toLowerCase(Locale.ENGLISH));
+
+		if ((e == null) || (e.done.getCount() != 0) || e.expired(System.currentTimeMillis()))
+			return null;
+
+		return e.address;
+	}
+
+	private static void lookup(String host, Entry e) {
+		try {
+			e.address = InetAddress.getByName(host);
+			e.expires = System.currentTimeMillis() + ttl;
+		} catch (UnknownHostException uhe) {
+			e.error = uhe.getMessage();
+			e.expires = System.currentTimeMillis() + negativeTtl;
+		} catch (RuntimeException re) {
+			/* Not cached (e.g., SecurityException); the caller retries */
+			e.expires = 0;
+		} finally {
+			e.done.countDown();
+		}
+
+		if (cache.size() > maxEntries)
+			trim();
+	}
+
+	/**
+	 * Drops the expired entries and, if still too many, any finished ones
+	 * until the cache is down to 3/4 of the limit.
+	 */
+	private static void trim() {
+		if (!trimming.compareAndSet(false, true))
+			return;
+
+		try {
+			long now = System.currentTimeMillis();
+			int target = maxEntries / 4 * 3;
+
+			for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+				if (it.next().expired(now))
+					it.remove();
+			}
+
+			for (Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator(); it.hasNext()
+					&& cache.size() > target;) {
+				if (it.next().getValue().done.getCount() == 0)
+					it.remove();
+			}
+		} finally {
+			trimming.set(false);
+		}
+	}
+
+	private static void await(Entry e) {
+		boolean interrupted = false;
+
+		while (true) {
+			try {
+				e.done.await();
+				break;
+			} catch (InterruptedException ie) {
+				/* InetAddress.getByName() is not interruptible either */
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Dotted IPv4 (only digits and dots) or IPv6 (has a colon) literals;
+	 * InetAddress.getByName() does not look those up.
+	 */
+	private static boolean isLiteral(String host) {
+		if (host.indexOf(':') != -1)
+			return true;
+
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+
+			if ((c != '.') && ((c < '0') || (c > '9')))
+				return false;
+		}
+		return host.length() > 0;
+	}
+}
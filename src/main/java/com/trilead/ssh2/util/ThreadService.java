@@ -0,0 +1,78 @@
+package com.trilead.ssh2.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ThreadService. Creates the background threads of the library (receive
+ * thread, asynchronous sender, timeout thread).
+ * <p>
+ * By default plain daemon threads are used. If the runtime supports virtual
+ * threads (Java 21+), {@link #useVirtualThreads()} switches all threads created
+ * afterwards to virtual threads, so that the number of concurrent connections
+ * is no longer bounded by the number of OS threads. On runtimes without
+ * virtual threads (e.g., Android) nothing changes.
+ * <p>
+ * This is a process-wide default. A single connection can use another factory
+ * through {@link com.trilead.ssh2.Connection#setThreadFactory(ThreadFactory)}
+ * without touching it.
+ */
+public class ThreadService {
+	private static final ThreadFactory daemonFactory = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	private static volatile ThreadFactory factory = daemonFactory;
+
+	/**
+	 * @return a factory for virtual threads, or <code>null</code> if the
+	 *         runtime does not support them.
+	 */
+	public static ThreadFactory getVirtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public static boolean isVirtualThreadsSupported() {
+		return getVirtualThreadFactory() != null;
+	}
+
+	/**
+	 * @return <code>true</code> if virtual threads are now in use.
+	 */
+	public static boolean useVirtualThreads() {
+		ThreadFactory f = getVirtualThreadFactory();
+
+		if (f == null)
+			return false;
+
+		factory = f;
+		return true;
+	}
+
+	public static void usePlatformThreads() {
+		factory = daemonFactory;
+	}
+
+	public static void setThreadFactory(ThreadFactory f) {
+		factory = (f != null) ? f : daemonFactory;
+	}
+
+	public static ThreadFactory getThreadFactory() {
+		return factory;
+	}
+
+	public static Thread newThread(Runnable r) {
+		return factory.newThread(r);
+	}
+}
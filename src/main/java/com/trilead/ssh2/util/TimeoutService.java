@@ -2,8 +2,14 @@ package com.trilead.ssh2.util;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.trilead.ssh2.log.Logger;
 
@@ -15,120 +21,328 @@ import com.trilead.ssh2.log.Logger;
  * thread. Once all timeouts have expired/are cancelled, the thread will (sooner
  * or later) exit. Only after new timeouts arrive a new thread (singleton) will
  * be instantiated.
- * 
+ * <p>
+ * Timeouts are kept in a hashed timing wheel: {@link #WHEEL_SIZE} buckets of
+ * {@link #TICK_MS} each, a timeout further away than one revolution simply
+ * stays in its bucket until its tick comes around again. Adding and cancelling
+ * are O(1) and only lock one of {@link #STRIPES} bucket locks, so concurrent
+ * connects do not contend on a single list. The timeout thread only collects
+ * expired handlers; they run on a small pool, since they may block (e.g.,
+ * closing a socket).
+ * <p>
+ * The timeout thread does not wake up on every tick: when nothing is due it
+ * sleeps until the earliest pending timeout, and adding an earlier one wakes
+ * it up.
+ *
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: TimeoutService.java,v 1.1 2007/10/15 12:49:57 cplattne Exp $
  */
 public class TimeoutService {
-	private static class TimeoutThread extends Thread {
+	public static final int TICK_MS = 10;
+	public static final int WHEEL_SIZE = 512;
+	public static final int STRIPES = 16;
+	public static final int HANDLER_THREADS = 4;
+
+	private static class TimeoutThread implements Runnable {
 		@Override
 		public void run() {
-			synchronized (todolist) {
-				while (true) {
-					if (todolist.size() == 0) {
-						timeoutThread = null;
-						return;
-					}
-
-					long now = System.currentTimeMillis();
+			while (true) {
+				long t = nextTick;
+				long now = System.currentTimeMillis();
+				long due = tickOf(now);
 
-					TimeoutToken tt = (TimeoutToken) todolist.getFirst();
+				if (t > due) {
+					sleep();
+					continue;
+				}
 
-					if (tt.runTime > now) {
-						/* Not ready yet, sleep a little bit */
+				/* After a long pause every bucket only needs to be visited once */
+				if (due - t >= WHEEL_SIZE)
+					t = due - WHEEL_SIZE + 1;
 
-						try {
-							todolist.wait(tt.runTime - now);
-						} catch (InterruptedException e) {
-						}
+				for (; t <= due; t++)
+					expire(t);
 
-						/*
-						 * We cannot simply go on, since it could be that the
-						 * token was removed (cancelled) or another one has been
-						 * inserted in the meantime.
-						 */
+				if (pending.get() == 0) {
+					running.set(false);
 
-						continue;
-					}
-
-					todolist.removeFirst();
-
-					try {
-						tt.handler.run();
-					} catch (Exception e) {
-						StringWriter sw = new StringWriter();
-						e.printStackTrace(new PrintWriter(sw));
-						log.log(20,
-								"Exeception in Timeout handler:"
-										+ e.getMessage() + "(" + sw.toString()
-										+ ")");
-					}
+					/* A timeout added meanwhile may have seen running == true */
+					if (pending.get() == 0 || !running.compareAndSet(false, true))
+						return;
 				}
 			}
 		}
 	}
 
-	public static class TimeoutToken implements Comparable {
-		private long runTime;
-		private Runnable handler;
+	public static class TimeoutToken {
+		private final long tick;
+		private final Runnable handler;
 
-		private TimeoutToken(long runTime, Runnable handler) {
-			this.runTime = runTime;
-			this.handler = handler;
-		}
+		/* Guarded by the lock of the bucket; -1 once expired or cancelled */
+		private int bucket = -1;
+		private TimeoutToken prev;
+		private TimeoutToken next;
 
-		@Override
-		public int compareTo(Object o) {
-			TimeoutToken t = (TimeoutToken) o;
-			if (runTime > t.runTime)
-				return 1;
-			if (runTime == t.runTime)
-				return 0;
-			return -1;
+		private TimeoutToken(long tick, Runnable handler) {
+			this.tick = tick;
+			this.handler = handler;
 		}
 	}
 
 	private static final Logger log = Logger.getLogger(TimeoutService.class);
 
-	/* The list object is also used for locking purposes */
-	private static final LinkedList todolist = new LinkedList();
+	/* Ticks are counted from here, so they fit the wheel without wrapping issues */
+	private static final long START = System.currentTimeMillis();
+
+	private static final TimeoutToken[] wheel = new TimeoutToken[WHEEL_SIZE];
+	private static final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+	static {
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	/*
+	 * First tick not yet expired. Only raised to t + 1 while holding the lock
+	 * of the bucket of t, so whoever holds a bucket lock and sees nextTick <= t
+	 * knows tick t of that bucket is still to come.
+	 */
+	private static volatile long nextTick = tickOf(START);
 
-	private static Thread timeoutThread = null;
+	private static final AtomicInteger pending = new AtomicInteger();
+	private static final AtomicBoolean running = new AtomicBoolean();
+
+	/*
+	 * The tick the timeout thread sleeps until; Long.MAX_VALUE while it looks
+	 * for it, Long.MIN_VALUE while it is awake. Whoever adds an earlier
+	 * timeout lowers it and signals wakeUp, both under sleepLock.
+	 */
+	private static final ReentrantLock sleepLock = new ReentrantLock();
+	private static final Condition wakeUp = sleepLock.newCondition();
+	private static volatile long sleepUntil = Long.MIN_VALUE;
+
+	private static final ThreadPoolExecutor handlers = new ThreadPoolExecutor(HANDLER_THREADS, HANDLER_THREADS, 30,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return ThreadService.newThread(r);
+				}
+			});
+
+	static {
+		handlers.allowCoreThreadTimeOut(true);
+	}
 
 	/**
 	 * It is assumed that the passed handler will not execute for a long time.
-	 * 
+	 *
 	 * @param runTime
 	 * @param handler
 	 * @return a TimeoutToken that can be used to cancel the timeout.
 	 */
 	public static final TimeoutToken addTimeoutHandler(long runTime,
 			Runnable handler) {
-		TimeoutToken token = new TimeoutToken(runTime, handler);
-
-		synchronized (todolist) {
-			todolist.add(token);
-			Collections.sort(todolist);
-
-			if (timeoutThread != null)
-				timeoutThread.interrupt();
-			else {
-				timeoutThread = new TimeoutThread();
-				timeoutThread.setDaemon(true);
-				timeoutThread.start();
+		/* Rounded up, a handler never runs before runTime */
+		TimeoutToken token = new TimeoutToken((runTime - START + TICK_MS - 1) / TICK_MS, handler);
+		long tick = token.tick;
+
+		pending.incrementAndGet();
+
+		while (true) {
+			int bucket = (int) (tick & (WHEEL_SIZE - 1));
+			ReentrantLock lock = lockOf(bucket);
+
+			lock.lock();
+			try {
+				long next = nextTick;
+
+				/* Already due: the next tick to be expired picks it up */
+				if (tick < next) {
+					tick = next;
+
+					if (lockOf((int) (tick & (WHEEL_SIZE - 1))) != lock)
+						continue;
+
+					bucket = (int) (tick & (WHEEL_SIZE - 1));
+				}
+
+				token.bucket = bucket;
+				token.next = wheel[bucket];
+				if (token.next != null)
+					token.next.prev = token;
+				wheel[bucket] = token;
+				break;
+			} finally {
+				lock.unlock();
 			}
 		}
 
+		if (running.compareAndSet(false, true))
+			ThreadService.newThread(new TimeoutThread()).start();
+		else if (tick < sleepUntil)
+			wake(tick);
+
 		return token;
 	}
 
 	public static final void cancelTimeoutHandler(TimeoutToken token) {
-		synchronized (todolist) {
-			todolist.remove(token);
+		while (true) {
+			int bucket = token.bucket;
 
-			if (timeoutThread != null)
-				timeoutThread.interrupt();
+			if (bucket == -1)
+				return;
+
+			ReentrantLock lock = lockOf(bucket);
+
+			lock.lock();
+			try {
+				/* Otherwise it expired in the meantime */
+				if (token.bucket == bucket) {
+					unlink(token);
+					pending.decrementAndGet();
+				}
+				return;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static void wake(long tick) {
+		sleepLock.lock();
+		try {
+			if (tick < sleepUntil) {
+				sleepUntil = tick;
+				wakeUp.signal();
+			}
+		} finally {
+			sleepLock.unlock();
 		}
 	}
 
+	/**
+	 * Sleeps until the earliest pending tick (at most one revolution), or
+	 * until an earlier timeout is added.
+	 */
+	private static void sleep() {
+		sleepLock.lock();
+		try {
+			/* From here on, every add wakes us up, even one made during the scan */
+			sleepUntil = Long.MAX_VALUE;
+			long tick = earliestTick();
+			sleepUntil = tick;
+
+			long ms = START + tick * TICK_MS - System.currentTimeMillis();
+
+			if (ms > 0)
+				wakeUp.await(ms, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		} finally {
+			sleepUntil = Long.MIN_VALUE;
+			sleepLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the earliest tick of a pending timeout, or one revolution ahead
+	 *         if there is none. A token in the bucket k ticks ahead is due
+	 *         no earlier than that, so the scan stops at the first bucket
+	 *         past the best tick found.
+	 */
+	private static long earliestTick() {
+		long first = nextTick;
+		long best = first + WHEEL_SIZE;
+
+		for (long t = first; t < best; t++) {
+			int bucket = (int) (t & (WHEEL_SIZE - 1));
+			ReentrantLock lock = lockOf(bucket);
+
+			lock.lock();
+			try {
+				for (TimeoutToken tt = wheel[bucket]; tt != null; tt = tt.next)
+					best = Math.min(best, Math.max(tt.tick, t));
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		return best;
+	}
+
+	private static void expire(long tick) {
+		int bucket = (int) (tick & (WHEEL_SIZE - 1));
+		ReentrantLock lock = lockOf(bucket);
+		TimeoutToken expired = null;
+
+		lock.lock();
+		try {
+			nextTick = tick + 1;
+
+			TimeoutToken tt = wheel[bucket];
+
+			while (tt != null) {
+				TimeoutToken next = tt.next;
+
+				/* Later revolutions stay in the bucket */
+				if (tt.tick <= tick) {
+					unlink(tt);
+					pending.decrementAndGet();
+					tt.next = expired;
+					expired = tt;
+				}
+				tt = next;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		for (; expired != null; expired = expired.next)
+			handlers.execute(new Handler(expired.handler));
+	}
+
+	private static void unlink(TimeoutToken tt) {
+		if (tt.prev != null)
+			tt.prev.next = tt.next;
+		else
+			wheel[tt.bucket] = tt.next;
+
+		if (tt.next != null)
+			tt.next.prev = tt.prev;
+
+		tt.bucket = -1;
+		tt.prev = null;
+		tt.next = null;
+	}
+
+	private static ReentrantLock lockOf(int bucket) {
+		return locks[bucket & (STRIPES - 1)];
+	}
+
+	private static long tickOf(long time) {
+		return (time - START) / TICK_MS;
+	}
+
+	private static class Handler implements Runnable {
+		private final Runnable handler;
+
+		Handler(Runnable handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void run() {
+			try {
+				handler.run();
+			} catch (Exception e) {
+				if (log.isEnabled()) {
+					StringWriter sw = new StringWriter();
+					e.printStackTrace(new PrintWriter(sw));
+					log.log(20,
+							"Exeception in Timeout handler:"
+									+ e.getMessage() + "(" + sw.toString()
+									+ ")");
+				}
+			}
+		}
+	}
 }
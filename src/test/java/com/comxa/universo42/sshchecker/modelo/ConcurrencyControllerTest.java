@@ -0,0 +1,178 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyControllerTest {
+    /**
+     * Uma janela inteira de verificações: ocupa todas as vagas e devolve,
+     * as "timeouts" primeiras como timeout.
+     */
+    private static void janela(ConcurrencyController c, long latencia, int timeouts) {
+        int n = c.getLimite();
+
+        for (int i = 0; i < n; i++)
+            assertTrue(c.tryAcquire());
+
+        for (int i = 0; i < n; i++) {
+            if (i < timeouts)
+                c.release(-1, true);
+            else
+                c.release(latencia, false);
+        }
+    }
+
+    @Test
+    public void slowStartDobraAteOMaximo() {
+        ConcurrencyController c = new ConcurrencyController(1, 20, 1);
+
+        janela(c, 10, 0);
+        assertEquals(2, c.getLimite());
+        janela(c, 10, 0);
+        assertEquals(4, c.getLimite());
+        janela(c, 10, 0);
+        assertEquals(8, c.getLimite());
+        janela(c, 10, 0);
+        assertEquals(16, c.getLimite());
+        janela(c, 10, 0);
+        assertEquals(20, c.getLimite());
+        janela(c, 10, 0);
+        assertEquals(20, c.getLimite());
+    }
+
+    @Test
+    public void timeoutsCortamPelaMetadeEDepoisCresceDeUmEmUm() {
+        ConcurrencyController c = new ConcurrencyController(1, 100, 8);
+
+        /* 1 de 8 não passa de 10% */
+        janela(c, 10, 0);
+        assertEquals(16, c.getLimite());
+
+        /* 2 de 16 passa */
+        janela(c, 10, 2);
+        assertEquals(8, c.getLimite());
+
+        janela(c, 10, 0);
+        assertEquals(9, c.getLimite());
+        janela(c, 10, 0);
+        assertEquals(10, c.getLimite());
+    }
+
+    @Test
+    public void latenciaAcimaDoDobroDaBaseCorta() {
+        ConcurrencyController c = new ConcurrencyController(1, 100, 8);
+
+        janela(c, 100, 0);
+        assertEquals(16, c.getLimite());
+
+        /* Exatamente o dobro ainda é aceitável */
+        janela(c, 200, 0);
+        assertEquals(32, c.getLimite());
+
+        janela(c, 201, 0);
+        assertEquals(16, c.getLimite());
+
+        /* Fora do slow start */
+        janela(c, 100, 0);
+        assertEquals(17, c.getLimite());
+    }
+
+    @Test
+    public void baseVoltaASubirDepoisDeUmaJanelaRapida() {
+        ConcurrencyController c = new ConcurrencyController(1, 1000, 64);
+
+        /* Ex: uma rajada de RSTs */
+        janela(c, 1, 0);
+        assertEquals(128, c.getLimite());
+
+        /* Enquanto a janela rápida é a base, a latência normal corta... */
+        for (int i = 0; i < ConcurrencyController.JANELAS_BASE; i++)
+            janela(c, 100, 0);
+        int limite = c.getLimite();
+        assertTrue(limite < 128);
+
+        /* ...mas ela sai das últimas janelas e o limite volta a crescer */
+        janela(c, 100, 0);
+        assertEquals(limite + 1, c.getLimite());
+        janela(c, 100, 0);
+        assertEquals(limite + 2, c.getLimite());
+
+        /* E a base nova (100) continua valendo */
+        janela(c, 201, 0);
+        assertEquals((limite + 2) / 2, c.getLimite());
+    }
+
+    @Test
+    public void nuncaAbaixoDoMinimo() {
+        ConcurrencyController c = new ConcurrencyController(3, 10, 4);
+
+        janela(c, -1, 4);
+        assertEquals(3, c.getLimite());
+        janela(c, -1, 3);
+        assertEquals(3, c.getLimite());
+    }
+
+    @Test
+    public void inicialFicaDentroDosLimites() {
+        assertEquals(5, new ConcurrencyController(5, 10, 1).getLimite());
+        assertEquals(10, new ConcurrencyController(5, 10, 50).getLimite());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitesInvalidos() {
+        new ConcurrencyController(5, 4, 4);
+    }
+
+    @Test
+    public void vagasRespeitamOLimite() throws InterruptedException {
+        ConcurrencyController c = new ConcurrencyController(1, 10, 2);
+
+        assertTrue(c.tryAcquire());
+        assertTrue(c.acquire());
+        assertFalse(c.tryAcquire());
+
+        c.release();
+        assertTrue(c.tryAcquire());
+
+        c.close();
+        assertFalse(c.acquire());
+        assertFalse(c.tryAcquire());
+    }
+
+    @Test
+    public void closeAcordaQuemEspera() throws InterruptedException {
+        final ConcurrencyController c = new ConcurrencyController(1, 1, 1);
+        final boolean[] resultado = { true };
+
+        assertTrue(c.tryAcquire());
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    resultado[0] = c.acquire();
+                } catch (InterruptedException ignore) {}
+            }
+        };
+        t.start();
+
+        Thread.sleep(50);
+        c.close();
+        t.join(1000);
+
+        assertFalse(t.isAlive());
+        assertFalse(resultado[0]);
+    }
+
+    @Test
+    public void isTimeoutOlhaAsCausas() {
+        assertTrue(ConcurrencyController.isTimeout(new SocketTimeoutException()));
+        assertTrue(ConcurrencyController.isTimeout(new IOException("x", new SocketTimeoutException())));
+        assertFalse(ConcurrencyController.isTimeout(new IOException("x")));
+        assertFalse(ConcurrencyController.isTimeout(null));
+    }
+}
@@ -0,0 +1,176 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import com.trilead.ssh2.Connection;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+    private static class Conexao extends Connection {
+        private boolean fechada;
+
+        Conexao() {
+            super("10.0.0.1", 22);
+        }
+
+        @Override
+        public void close() {
+            fechada = true;
+        }
+    }
+
+    private static SSH ssh(String host, String user) {
+        return new SSH(host, 22, user, "x");
+    }
+
+    @Test
+    public void devolveParaOMesmoHostEUsuario() {
+        ConnectionPool pool = new ConnectionPool();
+        Conexao c = new Conexao();
+
+        pool.esperar(ssh("10.0.0.1", "root"));
+        pool.give(ssh("10.0.0.1", "root"), c);
+
+        assertNull(pool.take(ssh("10.0.0.1", "admin")));
+        assertNull(pool.take(ssh("10.0.0.2", "root")));
+        assertSame(c, pool.take(ssh("10.0.0.1", "root")));
+        assertNull(pool.take(ssh("10.0.0.1", "root")));
+        assertFalse(c.fechada);
+    }
+
+    @Test
+    public void semAlvoPendenteFechaNaHora() {
+        ConnectionPool pool = new ConnectionPool();
+        Conexao c = new Conexao();
+
+        pool.esperar(ssh("10.0.0.1", "root"));
+        pool.iniciar(ssh("10.0.0.1", "root"));
+        pool.give(ssh("10.0.0.1", "root"), c);
+
+        assertTrue(c.fechada);
+        assertEquals(0, pool.size());
+        assertNull(pool.take(ssh("10.0.0.1", "root")));
+    }
+
+    @Test
+    public void pendentesSaoContados() {
+        ConnectionPool pool = new ConnectionPool();
+
+        pool.esperar(ssh("10.0.0.1", "root"));
+        pool.esperar(ssh("10.0.0.1", "root"));
+        pool.iniciar(ssh("10.0.0.1", "root"));
+
+        Conexao c = new Conexao();
+        pool.give(ssh("10.0.0.1", "root"), c);
+        assertFalse(c.fechada);
+
+        pool.iniciar(ssh("10.0.0.1", "root"));
+        /* Um iniciar() a mais não atrapalha */
+        pool.iniciar(ssh("10.0.0.1", "root"));
+
+        Conexao d = new Conexao();
+        pool.give(ssh("10.0.0.1", "root"), d);
+        assertTrue(d.fechada);
+    }
+
+    @Test
+    public void vencidaNaoEDevolvida() throws InterruptedException {
+        ConnectionPool pool = new ConnectionPool(20);
+        Conexao c = new Conexao();
+
+        pool.esperar(ssh("10.0.0.1", "root"));
+        pool.give(ssh("10.0.0.1", "root"), c);
+        Thread.sleep(50);
+
+        assertNull(pool.take(ssh("10.0.0.1", "root")));
+        assertTrue(c.fechada);
+    }
+
+    @Test
+    public void varreduraFechaVencidasDeOutrasChaves() throws InterruptedException {
+        ConnectionPool pool = new ConnectionPool(20);
+        Conexao velha = new Conexao();
+        Conexao nova = new Conexao();
+
+        pool.esperar(ssh("10.0.0.1", "root"));
+        pool.esperar(ssh("10.0.0.2", "root"));
+        pool.give(ssh("10.0.0.1", "root"), velha);
+        Thread.sleep(50);
+
+        /* Ninguém mais pede 10.0.0.1: é o give() de outra chave que a fecha */
+        pool.give(ssh("10.0.0.2", "root"), nova);
+
+        assertTrue(velha.fechada);
+        assertFalse(nova.fechada);
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void depoisDoCloseTudoFecha() {
+        ConnectionPool pool = new ConnectionPool();
+        Conexao c = new Conexao();
+        Conexao d = new Conexao();
+
+        pool.esperar(ssh("10.0.0.1", "root"));
+        pool.give(ssh("10.0.0.1", "root"), c);
+        pool.close();
+        pool.give(ssh("10.0.0.1", "root"), d);
+
+        assertTrue(c.fechada);
+        assertTrue(d.fechada);
+        assertEquals(0, pool.size());
+    }
+
+    private static List<String> ordem(SSHsource fonte) throws IOException {
+        List<String> hosts = new ArrayList<String>();
+        SSH ssh;
+
+        while ((ssh = fonte.next()) != null)
+            hosts.add(ssh.getHost() + "/" + ssh.getUser());
+        return hosts;
+    }
+
+    @Test
+    public void listaSemRepeticaoNaoMudaNemRegistra() throws IOException {
+        ConnectionPool pool = new ConnectionPool();
+        List<SSH> l = Arrays.asList(ssh("10.0.0.3", "root"), ssh("10.0.0.1", "root"), ssh("10.0.0.1", "admin"));
+        SSHsource.ListSource fonte = new SSHsource.ListSource(l);
+
+        fonte.agrupar(pool);
+        assertEquals(Arrays.asList("10.0.0.3/root", "10.0.0.1/root", "10.0.0.1/admin"), ordem(fonte));
+
+        Conexao c = new Conexao();
+        pool.give(ssh("10.0.0.1", "root"), c);
+        assertTrue(c.fechada);
+    }
+
+    @Test
+    public void listaComRepeticaoAgrupaNaPrimeiraAparicao() throws IOException {
+        ConnectionPool pool = new ConnectionPool();
+        List<SSH> l = Arrays.asList(ssh("10.0.0.3", "root"), ssh("10.0.0.1", "root"), ssh("10.0.0.2", "root"),
+                ssh("10.0.0.1", "root"), ssh("10.0.0.3", "root"), ssh("10.0.0.1", "root"));
+        SSHsource.ListSource fonte = new SSHsource.ListSource(l);
+
+        fonte.agrupar(pool);
+        assertEquals(Arrays.asList("10.0.0.3/root", "10.0.0.3/root", "10.0.0.1/root", "10.0.0.1/root",
+                "10.0.0.1/root", "10.0.0.2/root"), ordem(fonte));
+
+        /* 10.0.0.1 tem 3 pendentes: depois de 2 iniciados ainda guarda */
+        pool.iniciar(ssh("10.0.0.1", "root"));
+        pool.iniciar(ssh("10.0.0.1", "root"));
+        Conexao c = new Conexao();
+        pool.give(ssh("10.0.0.1", "root"), c);
+        assertFalse(c.fechada);
+
+        /* 10.0.0.2 não se repete e não foi registrado */
+        Conexao d = new Conexao();
+        pool.give(ssh("10.0.0.2", "root"), d);
+        assertTrue(d.fechada);
+    }
+}
@@ -0,0 +1,197 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+public class ExclusionListTest {
+    private static int ip(String s) {
+        return (int) TargetTable.parseIPv4(s);
+    }
+
+    @Test
+    public void prefixoCurtoDepoisCobreOLongo() {
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("10.1.0.0/16");
+        ex.add("10.2.0.0/16");
+        assertFalse(ex.contains(ip("10.3.0.1")));
+
+        ex.add("10.0.0.0/8");
+
+        assertTrue(ex.contains(ip("10.1.2.3")));
+        assertTrue(ex.contains(ip("10.2.2.3")));
+        assertTrue(ex.contains(ip("10.3.0.1")));
+        assertTrue(ex.contains(ip("10.255.255.255")));
+        assertFalse(ex.contains(ip("11.0.0.0")));
+        assertFalse(ex.contains(ip("9.255.255.255")));
+    }
+
+    @Test
+    public void prefixoCurtoAntesCobreOLongo() {
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("10.0.0.0/8");
+        ex.add("10.1.0.0/16");
+        ex.add("10.1.2.3");
+
+        assertTrue(ex.contains(ip("10.200.0.1")));
+        assertTrue(ex.contains(ip("10.1.2.3")));
+        assertFalse(ex.contains(ip("12.1.2.3")));
+    }
+
+    @Test
+    public void ramoViraRede() {
+        ExclusionList ex = new ExclusionList();
+
+        /* Bifurcam em 10.0.0.0/14, que depois é adicionada */
+        ex.add("10.1.0.0/16");
+        ex.add("10.2.0.0/16");
+        assertFalse(ex.contains(ip("10.0.0.1")));
+
+        ex.add("10.0.0.0/14");
+        assertTrue(ex.contains(ip("10.0.0.1")));
+        assertTrue(ex.contains(ip("10.3.255.255")));
+        assertFalse(ex.contains(ip("10.4.0.0")));
+    }
+
+    @Test
+    public void limitesDoCidr() {
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("192.168.1.128/25");
+
+        assertFalse(ex.contains(ip("192.168.1.127")));
+        assertTrue(ex.contains(ip("192.168.1.128")));
+        assertTrue(ex.contains(ip("192.168.1.255")));
+        assertFalse(ex.contains(ip("192.168.2.0")));
+
+        ExclusionList tudo = new ExclusionList();
+        tudo.add("0.0.0.0/0");
+        assertTrue(tudo.contains(ip("255.255.255.255")));
+        assertTrue(tudo.contains(ip("0.0.0.0")));
+    }
+
+    @Test
+    public void muitasRedesDeUmIp() {
+        ExclusionList ex = new ExclusionList();
+
+        for (int i = 0; i < 5000; i += 2)
+            ex.add("10.0." + (i >> 8) + "." + (i & 0xff));
+
+        for (int i = 0; i < 5000; i++)
+            assertEquals(i % 2 == 0, ex.contains(ip("10.0." + (i >> 8) + "." + (i & 0xff))));
+    }
+
+    @Test
+    public void textoInvalido() {
+        ExclusionList ex = new ExclusionList();
+
+        assertFalse(ex.add("10.0.0.0/33"));
+        assertFalse(ex.add("10.0.0.0/x"));
+        assertFalse(ex.add("2001:db8::/129"));
+        assertFalse(ex.add("host.example"));
+        assertEquals(0, ex.size());
+    }
+
+    @Test
+    public void parseIPv6ComDoisPontosDuplos() {
+        assertArrayEquals(new long[] { 0, 0 }, ExclusionList.parseIPv6("::"));
+        assertArrayEquals(new long[] { 0, 1 }, ExclusionList.parseIPv6("::1"));
+        assertArrayEquals(new long[] { 0x20010db800000000L, 0 }, ExclusionList.parseIPv6("2001:db8::"));
+        assertArrayEquals(new long[] { 0x20010db800000000L, 0x0000000000000001L },
+                ExclusionList.parseIPv6("2001:db8::1"));
+        assertArrayEquals(new long[] { 0x0001000200030004L, 0x0005000600070008L },
+                ExclusionList.parseIPv6("1:2:3:4:5:6:7:8"));
+        assertArrayEquals(new long[] { 0x0001000000000000L, 0x0000000000070008L },
+                ExclusionList.parseIPv6("1::7:8"));
+        assertArrayEquals(new long[] { 0xfe80000000000000L, 0x0000abcd0000ffffL },
+                ExclusionList.parseIPv6("FE80::ABCD:0:FFFF"));
+    }
+
+    @Test
+    public void parseIPv6ComIPv4NoFinal() {
+        assertArrayEquals(new long[] { 0, 0x0000ffff01020304L }, ExclusionList.parseIPv6("::ffff:1.2.3.4"));
+        assertArrayEquals(new long[] { 0, 0x01020304L }, ExclusionList.parseIPv6("::1.2.3.4"));
+        assertArrayEquals(new long[] { 0x0001000200030004L, 0x000500060a000001L },
+                ExclusionList.parseIPv6("1:2:3:4:5:6:10.0.0.1"));
+    }
+
+    @Test
+    public void parseIPv6Invalido() {
+        String[] invalidos = { "", ":", ":::", "1::2::3", ":1", "1:", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+                "12345::", "1:2:3:4:5:6:7:1.2.3.4", "::1.2.3", "::256.0.0.1", "g::1", "1:2:3:4:5:6:7:8::" };
+
+        for (String s : invalidos)
+            assertNull(s, ExclusionList.parseIPv6(s));
+    }
+
+    @Test
+    public void ipv6EIpv4Mapeado() {
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("2001:db8::/32");
+        ex.add("10.0.0.0/8");
+
+        assertTrue(ex.contains("2001:db8:ffff::1"));
+        assertTrue(ex.contains("[2001:db8::1]"));
+        assertFalse(ex.contains("2001:db9::1"));
+        assertTrue(ex.contains("::ffff:10.1.2.3"));
+        assertFalse(ex.contains("::ffff:11.1.2.3"));
+        assertFalse(ex.contains("intranet.example"));
+    }
+
+    @Test
+    public void ipv4EmOutrosFormatos() {
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("10.0.0.0/8");
+
+        /* Todos viram 10.0.0.1 (ou 8.0.0.1 no octal do inet_aton) em algum resolvedor */
+        assertTrue(ex.contains("010.0.0.1"));
+        assertTrue(ex.contains("10.0.0.01"));
+        assertTrue(ex.contains("10.1"));
+        assertTrue(ex.contains("10.0.1"));
+        assertTrue(ex.contains("167772161"));
+        assertTrue(ex.contains("0xa000001"));
+        assertTrue(ex.contains("0xa.0.0.1"));
+        assertFalse(ex.contains("11.1"));
+        assertFalse(ex.contains("0xb000001"));
+
+        /* Parece número mas não é IPv4: na dúvida, excluído */
+        assertTrue(ex.contains("10.0.0.1a"));
+        assertTrue(ex.contains("999.0.0.1"));
+        assertFalse(ex.contains("10.example"));
+        assertFalse(ex.contains("1e100.net"));
+
+        assertEquals(167772161L, ExclusionList.parseIPv4Livre("10.1", false));
+        assertEquals(0x0a010203L, ExclusionList.parseIPv4Livre("10.1.515", false));
+        assertEquals(0x08000001L, ExclusionList.parseIPv4Livre("010.0.0.1", true));
+        assertEquals(-1, ExclusionList.parseIPv4Livre("1.2.3.256", false));
+        assertEquals(-1, ExclusionList.parseIPv4Livre("1.16777216", false));
+    }
+
+    @Test
+    public void listaSemIpv4NaoExcluiNumeroInvalido() {
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("2001:db8::/32");
+        assertFalse(ex.contains("999.0.0.1"));
+    }
+
+    @Test
+    public void enderecoResolvido() throws UnknownHostException {
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("10.0.0.0/8");
+        ex.add("2001:db8::/32");
+
+        assertTrue(ex.contains(InetAddress.getByAddress(new byte[] { 10, 1, 2, 3 })));
+        assertFalse(ex.contains(InetAddress.getByAddress(new byte[] { 11, 1, 2, 3 })));
+        assertTrue(ex.contains(InetAddress.getByName("2001:db8::5")));
+        assertFalse(ex.contains(InetAddress.getByName("2001:db9::5")));
+    }
+}
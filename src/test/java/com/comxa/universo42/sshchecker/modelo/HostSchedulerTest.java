@@ -0,0 +1,121 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HostSchedulerTest {
+    private static SSH ssh(String host) {
+        return new SSH(host, 22, "root", "root");
+    }
+
+    @Test
+    public void adiaQuandoOHostLota() {
+        HostScheduler agenda = new HostScheduler(2, 0);
+
+        assertTrue(agenda.offer(ssh("10.0.0.1")));
+        assertTrue(agenda.offer(ssh("10.0.0.1")));
+        assertFalse(agenda.offer(ssh("10.0.0.1")));
+        assertTrue(agenda.offer(ssh("10.0.0.2")));
+
+        assertTrue(agenda.hasPending());
+        assertNull(agenda.pollReady());
+
+        agenda.done(ssh("10.0.0.1"));
+        assertNotNull(agenda.pollReady());
+        assertFalse(agenda.hasPending());
+    }
+
+    @Test
+    public void limiteDeAdiados() throws InterruptedException {
+        HostScheduler agenda = new HostScheduler(1, 0, 3);
+
+        assertTrue(agenda.offer(ssh("10.0.0.1")));
+        assertTrue(agenda.offer(ssh("10.0.0.2")));
+
+        assertFalse(agenda.offer(ssh("10.0.0.1")));
+        assertFalse(agenda.offer(ssh("10.0.0.2")));
+        assertFalse(agenda.isFull());
+        assertFalse(agenda.offer(ssh("10.0.0.1")));
+        assertTrue(agenda.isFull());
+
+        /* Sair da fila para prontos já libera espaço */
+        agenda.done(ssh("10.0.0.1"));
+        assertFalse(agenda.isFull());
+        assertTrue(agenda.awaitReady());
+        assertNotNull(agenda.pollReady());
+    }
+
+    @Test
+    public void semLimitePorHostNuncaEnche() {
+        HostScheduler agenda = new HostScheduler(0, 0, 1);
+
+        for (int i = 0; i < 10; i++)
+            assertTrue(agenda.offer(ssh("10.0.0.1")));
+
+        assertFalse(agenda.isFull());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limiteInvalido() {
+        new HostScheduler(1, 0, 0);
+    }
+
+    @Test
+    public void variasThreadsNuncaPassamDoLimite() throws InterruptedException {
+        final HostScheduler agenda = new HostScheduler(2, 0);
+        final ConcurrentHashMap<String, AtomicInteger> ativos = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger feitos = new AtomicInteger();
+        final AtomicBoolean estourou = new AtomicBoolean();
+        final int porThread = 2000;
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < 5; i++)
+            ativos.put("10.0.0." + i + ":22", new AtomicInteger());
+
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t;
+            threads[t] = new Thread() {
+                private void verificar(SSH ssh) {
+                    AtomicInteger a = ativos.get(ssh.getChaveServidor());
+
+                    if (a.incrementAndGet() > 2)
+                        estourou.set(true);
+                    a.decrementAndGet();
+                    feitos.incrementAndGet();
+                    agenda.done(ssh);
+                }
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < porThread; i++) {
+                        SSH pronto;
+                        while ((pronto = agenda.pollReady()) != null)
+                            verificar(pronto);
+
+                        SSH ssh = ssh("10.0.0." + ((base + i) % 5));
+                        if (agenda.offer(ssh))
+                            verificar(ssh);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        SSH pronto;
+        while ((pronto = agenda.pollReady()) != null) {
+            feitos.incrementAndGet();
+            agenda.done(pronto);
+        }
+
+        assertFalse(estourou.get());
+        assertEquals(threads.length * porThread, feitos.get());
+        assertFalse(agenda.hasPending());
+    }
+}
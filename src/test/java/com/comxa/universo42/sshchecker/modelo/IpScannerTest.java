@@ -0,0 +1,108 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IpScannerTest {
+    private static class Coletor extends IpScanner {
+        final List<String> achados = new ArrayList<String>();
+
+        @Override
+        void onIp(int ip, int port) {
+            achados.add(toString(ip) + (port == SEM_PORTA ? "" : ":" + port));
+        }
+    }
+
+    private static List<String> scan(String... pedacos) {
+        Coletor c = new Coletor();
+
+        for (String p : pedacos)
+            c.scan(p);
+        c.end();
+
+        return c.achados;
+    }
+
+    private static List<String> scanBytes(String... pedacos) {
+        Coletor c = new Coletor();
+
+        for (String p : pedacos) {
+            byte[] b = p.getBytes();
+            c.scan(b, 0, b.length);
+        }
+        c.end();
+
+        return c.achados;
+    }
+
+    private static List<String> lista(String... ips) {
+        List<String> l = new ArrayList<String>();
+
+        for (String ip : ips)
+            l.add(ip);
+        return l;
+    }
+
+    @Test
+    public void ipComESemPorta() {
+        assertEquals(lista("1.2.3.4"), scan("1.2.3.4"));
+        assertEquals(lista("10.0.0.1:22"), scan("host 10.0.0.1:22 ok"));
+        assertEquals(lista("1.1.1.1", "2.2.2.2:80"), scan("1.1.1.1,2.2.2.2:80;"));
+        assertEquals(lista("255.255.255.255:65535"), scan("255.255.255.255:65535"));
+    }
+
+    @Test
+    public void portaComMaisDeCincoDigitos() {
+        assertEquals(lista("1.2.3.4"), scan("1.2.3.4:222222"));
+        assertEquals(lista("1.2.3.4", "5.6.7.8:22"), scan("1.2.3.4:2222222 5.6.7.8:22"));
+        assertEquals(lista("1.2.3.4"), scanBytes("1.2.3.4:22222", "2"));
+    }
+
+    @Test
+    public void portaInvalida() {
+        assertEquals(lista("1.2.3.4"), scan("1.2.3.4:65536"));
+        assertEquals(lista("1.2.3.4"), scan("1.2.3.4:0"));
+        assertEquals(lista("1.2.3.4"), scan("1.2.3.4:"));
+        assertEquals(lista("1.2.3.4"), scan("1.2.3.4:x"));
+    }
+
+    @Test
+    public void ipInvalido() {
+        assertEquals(lista(), scan("256.1.1.1"));
+        assertEquals(lista(), scan("1.2.3"));
+        assertEquals(lista(), scan("1..2.3.4"));
+        assertEquals(lista(), scan("1234.1.1.1"));
+        assertEquals(lista(), scan("1.2.3.4567"));
+        assertEquals(lista(), scan("1.2.3.999"));
+    }
+
+    @Test
+    public void digitoColadoAntes() {
+        /* "9999" não é octeto, e o que vem depois fica colado nele */
+        assertEquals(lista(), scan("9999.1.2.3"));
+        assertEquals(lista("1.2.3.4"), scan("x1.2.3.4"));
+    }
+
+    @Test
+    public void entradaEmPedacos() {
+        assertEquals(lista("10.0.0.1:22"), scan("10.0.", "0.1:2", "2"));
+        assertEquals(lista("10.0.0.1:22"), scanBytes("10", ".0.0.1", ":", "22"));
+        assertEquals(lista("1.2.3.4", "5.6.7.8"), scanBytes("1.2.3.4\n5.6.", "7.8\n"));
+    }
+
+    @Test
+    public void endReiniciaOEstado() {
+        Coletor c = new Coletor();
+
+        c.scan("1.2.3");
+        c.end();
+        c.scan(".4");
+        c.end();
+
+        assertEquals(lista(), c.achados);
+    }
+}
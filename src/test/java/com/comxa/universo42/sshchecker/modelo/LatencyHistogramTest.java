@@ -0,0 +1,129 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    private static long sozinho(long valor) {
+        LatencyHistogram h = new LatencyHistogram();
+        h.add(valor);
+        h.add(Long.MAX_VALUE / 4);
+        /* O máximo alto não deixa o limite pelo max esconder a faixa */
+        return h.getPercentile(50);
+    }
+
+    @Test
+    public void vazio() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0.0, h.getMean(), 0);
+        assertEquals(0, h.getPercentile(50));
+        assertEquals(0, h.getPercentile(100));
+    }
+
+    @Test
+    public void valoresPequenosSaoExatos() {
+        for (long v = 0; v < 64; v++)
+            assertEquals(v, sozinho(v));
+    }
+
+    @Test
+    public void faixasAcimaDe64() {
+        /* 64..127 em faixas de 2, o meio é o início + 1 */
+        assertEquals(65, sozinho(64));
+        assertEquals(65, sozinho(65));
+        assertEquals(67, sozinho(66));
+        assertEquals(127, sozinho(127));
+        /* 128..255 em faixas de 4 */
+        assertEquals(130, sozinho(128));
+        assertEquals(130, sozinho(131));
+        assertEquals(134, sozinho(132));
+        /* 1024..2047 em faixas de 32 */
+        assertEquals(1040, sozinho(1024));
+        assertEquals(1040, sozinho(1055));
+        assertEquals(1072, sozinho(1056));
+    }
+
+    @Test
+    public void erroRelativoPequeno() {
+        for (long v = 1; v < 1L << 40; v = v * 3 / 2 + 1) {
+            long m = sozinho(v);
+
+            assertTrue(v + " -> " + m, Math.abs(m - v) <= v / 32 + 1);
+        }
+    }
+
+    @Test
+    public void percentisDeUniforme() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        for (long v = 10000; v >= 1; v--)
+            h.add(v);
+
+        assertEquals(10000, h.getCount());
+        assertEquals(10000, h.getMax());
+        assertEquals(5000.5, h.getMean(), 1e-9);
+
+        double[] ps = { 1, 10, 50, 90, 99, 99.9 };
+        for (double p : ps) {
+            long esperado = (long) Math.ceil(p / 100 * 10000);
+            long obtido = h.getPercentile(p);
+
+            assertTrue(p + " -> " + obtido, Math.abs(obtido - esperado) <= esperado / 32 + 1);
+        }
+
+        /* p0 é o primeiro valor e p100 nunca passa do máximo */
+        assertEquals(1, h.getPercentile(0));
+        assertEquals(10000, h.getPercentile(100));
+    }
+
+    @Test
+    public void percentilNaoPassaDoMaximo() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        /* 1000 cai na faixa 992..1023, cujo meio é 1008 */
+        h.add(1000);
+        assertEquals(1000, h.getPercentile(50));
+        assertEquals(1000, h.getPercentile(100));
+    }
+
+    @Test
+    public void negativoIgnoradoEEnormeNoTopo() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        h.add(-1);
+        assertEquals(0, h.getCount());
+
+        h.add(Long.MAX_VALUE);
+        assertEquals(1, h.getCount());
+        assertEquals(Long.MAX_VALUE, h.getMax());
+        assertTrue(h.getPercentile(50) >= (1L << 40));
+    }
+
+    @Test
+    public void addConcorrente() throws InterruptedException {
+        final LatencyHistogram h = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        h.add(base * 10000 + i);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(40000, h.getCount());
+        assertEquals(39999, h.getMax());
+        assertEquals(19999.5, h.getMean(), 1e-9);
+    }
+}
@@ -0,0 +1,117 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LongHashSetTest {
+    /**
+     * Valores que caem todos na mesma posição de uma tabela de 16.
+     */
+    private static long[] colidindo(int qtd, int posicao) {
+        long[] valores = new long[qtd];
+        int n = 0;
+
+        for (long v = 1; n < qtd; v++)
+            if (((int) LongHashSet.mix(v) & 15) == posicao)
+                valores[n++] = v;
+
+        return valores;
+    }
+
+    @Test
+    public void addEContains() {
+        LongHashSet s = new LongHashSet();
+
+        assertTrue(s.add(42));
+        assertFalse(s.add(42));
+        assertTrue(s.contains(42));
+        assertFalse(s.contains(43));
+        assertEquals(1, s.size());
+    }
+
+    @Test
+    public void zeroFicaForaDaTabela() {
+        LongHashSet s = new LongHashSet();
+
+        assertFalse(s.contains(0));
+        assertTrue(s.add(0));
+        assertFalse(s.add(0));
+        assertTrue(s.contains(0));
+        assertEquals(1, s.size());
+
+        assertTrue(s.add(-1));
+        assertTrue(s.add(Long.MIN_VALUE));
+        assertTrue(s.contains(-1));
+        assertTrue(s.contains(Long.MIN_VALUE));
+        assertEquals(3, s.size());
+    }
+
+    @Test
+    public void colisoesDaoAVoltaNaTabela() {
+        /* 16 posições, limite de 12: sem redimensionar */
+        LongHashSet s = new LongHashSet(1);
+        long[] valores = colidindo(8, 15);
+
+        for (long v : valores)
+            assertTrue(s.add(v));
+
+        for (long v : valores) {
+            assertTrue(s.contains(v));
+            assertFalse(s.add(v));
+        }
+
+        for (long v : colidindo(12, 15))
+            if (!contem(valores, v))
+                assertFalse(s.contains(v));
+
+        assertEquals(valores.length, s.size());
+    }
+
+    @Test
+    public void cresceSemPerderNada() {
+        LongHashSet s = new LongHashSet(1);
+        Set<Long> esperado = new HashSet<Long>();
+        Random r = new Random(1);
+
+        for (int i = 0; i < 100000; i++) {
+            long v = (i % 2 == 0) ? i : r.nextLong();
+            assertEquals(esperado.add(v), s.add(v));
+        }
+
+        assertEquals(esperado.size(), s.size());
+
+        for (long v : esperado)
+            assertTrue(s.contains(v));
+
+        for (int i = 0; i < 1000; i++) {
+            long v = r.nextLong();
+            assertEquals(esperado.contains(v), s.contains(v));
+        }
+    }
+
+    @Test
+    public void clearEsvazia() {
+        LongHashSet s = new LongHashSet();
+
+        for (long v = 0; v < 5000; v++)
+            s.add(v);
+        s.clear();
+
+        assertEquals(0, s.size());
+        assertFalse(s.contains(0));
+        assertFalse(s.contains(1234));
+        assertTrue(s.add(1234));
+    }
+
+    private static boolean contem(long[] valores, long v) {
+        for (long x : valores)
+            if (x == v)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedLineParserTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static List<SSH> parse(String conteudo, String delimiter) throws IOException {
+        File file = File.createTempFile("alvos", ".txt");
+
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(conteudo.getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+
+            return new MappedLineParser.Lista(delimiter, UTF8, null).parse(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertSsh(SSH ssh, String host, int port, String user, String pass) {
+        assertEquals(host, ssh.getHost());
+        assertEquals(port, ssh.getPort());
+        assertEquals(user, ssh.getUser());
+        assertEquals(pass, ssh.getPass());
+    }
+
+    @Test
+    public void camposEPorta() throws IOException {
+        List<SSH> l = parse("10.0.0.1|root|toor\n10.0.0.2:2222| admin |123|extra\nsem delimitador\n", "|");
+
+        assertEquals(2, l.size());
+        assertSsh(l.get(0), "10.0.0.1", SSHbean.DEFAULT_PORT, "root", "toor");
+        assertSsh(l.get(1), "10.0.0.2", 2222, "admin", "123");
+    }
+
+    @Test
+    public void quebrasCrLfEUltimaLinhaSemQuebra() throws IOException {
+        List<SSH> l = parse("a|u1|p1\r\nb|u2|p2\r\n\r\nc|u3|p3", "|");
+
+        assertEquals(3, l.size());
+        assertSsh(l.get(0), "a", SSHbean.DEFAULT_PORT, "u1", "p1");
+        assertSsh(l.get(1), "b", SSHbean.DEFAULT_PORT, "u2", "p2");
+        assertSsh(l.get(2), "c", SSHbean.DEFAULT_PORT, "u3", "p3");
+    }
+
+    @Test
+    public void delimitadorDeVariosBytes() throws IOException {
+        /* "§" são 2 bytes em UTF-8 */
+        List<SSH> l = parse("10.0.0.1:22§root§sen§ha§x\n10.0.0.2 :: root :: pw\n", "§");
+
+        assertEquals(1, l.size());
+        assertSsh(l.get(0), "10.0.0.1", 22, "root", "sen");
+
+        l = parse("10.0.0.2::root::pw\n10.0.0.3:2200::u::p::\n", "::");
+
+        assertEquals(2, l.size());
+        assertSsh(l.get(0), "10.0.0.2", SSHbean.DEFAULT_PORT, "root", "pw");
+        assertSsh(l.get(1), "10.0.0.3", 2200, "u", "p");
+    }
+
+    @Test
+    public void linhasAtravessandoBlocosEPedacos() throws IOException {
+        /* ~3 MB: vários blocos de 64 KB e, com mais de um núcleo, pedaços em paralelo */
+        StringBuilder sb = new StringBuilder();
+        int qtd = 0;
+
+        while (sb.length() < 3 * MappedLineParser.MIN_PEDACO) {
+            sb.append("10.").append(qtd >> 16 & 0xff).append('.').append(qtd >> 8 & 0xff).append('.')
+                    .append(qtd & 0xff).append(":22|user").append(qtd).append("|senha-").append(qtd)
+                    .append(qtd % 3 == 0 ? "\r\n" : "\n");
+            qtd++;
+        }
+
+        /* Uma linha bem maior que o buffer de emenda */
+        StringBuilder longa = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            longa.append("x");
+        sb.append("10.255.255.255|longo|").append(longa);
+
+        List<SSH> l = parse(sb.toString(), "|");
+
+        assertEquals(qtd + 1, l.size());
+
+        for (int i = 0; i < qtd; i++)
+            assertSsh(l.get(i), "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff), 22,
+                    "user" + i, "senha-" + i);
+
+        assertSsh(l.get(qtd), "10.255.255.255", SSHbean.DEFAULT_PORT, "longo", longa.toString());
+    }
+
+    @Test
+    public void arquivoVazio() throws IOException {
+        assertEquals(0, parse("", "|").size());
+        assertEquals(0, parse("\n\r\n", "|").size());
+    }
+}
@@ -0,0 +1,69 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanOrderTest {
+    /**
+     * Cada índice de 0..n-1 aparece exatamente uma vez.
+     */
+    private static void assertPermutacao(long n, long semente) {
+        ScanOrder ordem = new ScanOrder(n, semente);
+        boolean[] visto = new boolean[(int) n];
+
+        assertEquals(n, ordem.size());
+
+        for (long i = 0; i < n; i++) {
+            long j = ordem.get(i);
+
+            assertTrue(j >= 0 && j < n);
+            assertFalse("repetido: " + j, visto[(int) j]);
+            visto[(int) j] = true;
+        }
+    }
+
+    @Test
+    public void bijecaoEmVariosTamanhos() {
+        long[] tamanhos = { 1, 2, 3, 4, 5, 15, 16, 17, 255, 256, 257, 1000, 4096, 65539 };
+
+        for (long n : tamanhos)
+            for (long semente = 0; semente < 3; semente++)
+                assertPermutacao(n, semente);
+    }
+
+    @Test
+    public void bijecaoNumaFaixaGrande() {
+        assertPermutacao(1 << 20, 12345);
+    }
+
+    @Test
+    public void mesmaSementeMesmaOrdem() {
+        ScanOrder a = new ScanOrder(1000, 42);
+        ScanOrder b = new ScanOrder(1000, 42);
+        ScanOrder c = new ScanOrder(1000, 43);
+        int iguais = 0;
+
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(a.get(i), b.get(i));
+
+            if (a.get(i) == c.get(i))
+                iguais++;
+        }
+
+        assertTrue(iguais < 100);
+    }
+
+    @Test
+    public void espalhaIndicesVizinhos() {
+        ScanOrder ordem = new ScanOrder(1 << 16, 1);
+        int vizinhos = 0;
+
+        for (long i = 0; i < 1000; i++)
+            if (Math.abs(ordem.get(i + 1) - ordem.get(i)) < 256)
+                vizinhos++;
+
+        /* Em ordem aleatória ~1% dos pares ficaria na mesma /24 */
+        assertTrue(vizinhos < 50);
+    }
+}
@@ -0,0 +1,75 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TargetDedupTest {
+    @Test
+    public void porHostIgnoraACredencial() {
+        TargetDedup d = new TargetDedup(TargetDedup.HOST);
+
+        assertTrue(d.novo(new SSH("10.0.0.1", 22, "root", "a")));
+        assertFalse(d.novo(new SSH("10.0.0.1", 22, "admin", "b")));
+        assertTrue(d.novo(new SSH("10.0.0.1", 2222, "root", "a")));
+        assertTrue(d.novo(new SSH("10.0.0.2", 22, "root", "a")));
+
+        assertEquals(3, d.getQtdDistinct());
+        assertEquals(1, d.getQtdDuplicates());
+    }
+
+    @Test
+    public void porCredencial() {
+        TargetDedup d = new TargetDedup(TargetDedup.CREDENCIAL);
+
+        assertTrue(d.novo(new SSH("10.0.0.1", 22, "root", "a")));
+        assertFalse(d.novo(new SSH("10.0.0.1", 22, "root", "a")));
+        assertTrue(d.novo(new SSH("10.0.0.1", 22, "root", "b")));
+        assertTrue(d.novo(new SSH("10.0.0.1", 22, "admin", "a")));
+
+        /* user e pass não se misturam: "ab"/"c" não é "a"/"bc" */
+        assertTrue(d.novo(new SSH("10.0.0.1", 22, "ab", "c")));
+        assertTrue(d.novo(new SSH("10.0.0.1", 22, "a", "bc")));
+
+        assertEquals(5, d.getQtdDistinct());
+        assertEquals(1, d.getQtdDuplicates());
+    }
+
+    @Test
+    public void nomeSemDiferencaDeCaixa() {
+        TargetDedup d = new TargetDedup(TargetDedup.HOST);
+
+        assertTrue(d.novo(new SSH("Example.com", 22, "root", "a")));
+        assertFalse(d.novo(new SSH("example.COM", 22, "root", "a")));
+        assertTrue(d.novo(new SSH("example.com", 23, "root", "a")));
+    }
+
+    @Test
+    public void chaveDeNomeNaoColideComIPv4() {
+        TargetDedup d = new TargetDedup(TargetDedup.HOST);
+
+        long ip = d.chave("10.0.0.1", 22, "root", "a");
+        long nome = d.chave("host.example", 22, "root", "a");
+
+        assertEquals(((0x0a000001L) << 16) | 22, ip);
+        assertTrue(ip >= 0);
+        assertTrue(nome < 0);
+    }
+
+    @Test
+    public void faixaInteiraSemColisao() {
+        TargetDedup d = new TargetDedup(TargetDedup.CREDENCIAL);
+        long hash = TargetDedup.hashCredencial("root", "root");
+
+        /* Uma /16 inteira em duas portas: chaves vizinhas, mesma credencial */
+        for (int ip = 0x0a000000; ip < 0x0a010000; ip++) {
+            assertTrue(d.novo(d.chave(ip, 22, hash)));
+            assertTrue(d.novo(d.chave(ip, 2222, hash)));
+        }
+
+        for (int ip = 0x0a000000; ip < 0x0a010000; ip += 97)
+            assertFalse(d.novo(d.chave(ip, 22, hash)));
+
+        assertEquals(2 * 65536, d.getQtdDistinct());
+    }
+}
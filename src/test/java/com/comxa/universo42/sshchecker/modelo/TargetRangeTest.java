@@ -0,0 +1,167 @@
+package com.comxa.universo42.sshchecker.modelo;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TargetRangeTest {
+    private static String alvo(SSH ssh) {
+        return ssh.getHost() + ":" + ssh.getPort();
+    }
+
+    @Test
+    public void cidrAlinhaOInicio() {
+        TargetRange r = new TargetRange("root", "root");
+
+        /* .5/30 é a rede .4 a .7 */
+        assertTrue(r.add("10.0.0.5/30", 22));
+        assertEquals(4, r.size());
+        assertEquals("10.0.0.4:22", alvo(r.next()));
+        assertEquals("10.0.0.5:22", alvo(r.next()));
+        assertEquals("10.0.0.6:22", alvo(r.next()));
+        assertEquals("10.0.0.7:22", alvo(r.next()));
+        assertNull(r.next());
+        assertNull(r.next());
+    }
+
+    @Test
+    public void limitesDoPrefixo() {
+        TargetRange r = new TargetRange("u", "p");
+
+        assertTrue(r.add("1.2.3.4/32", 22));
+        assertEquals(1, r.size());
+        assertFalse(r.hasRanges());
+
+        r = new TargetRange("u", "p");
+        assertTrue(r.add("200.1.2.3/0", 22));
+        assertEquals(1L << 32, r.getTotal());
+        assertEquals(-1, r.size());
+        assertEquals("0.0.0.0:22", alvo(r.get(0)));
+        assertEquals("255.255.255.255:22", alvo(r.get((1L << 32) - 1)));
+
+        r = new TargetRange("u", "p");
+        assertTrue(r.add("192.168.0.0/16", 22));
+        assertEquals(65536, r.size());
+        assertEquals("192.168.255.255:22", alvo(r.get(65535)));
+    }
+
+    @Test
+    public void faixaEPorta() {
+        TargetRange r = new TargetRange("u", "p");
+
+        assertTrue(r.add("1.2.3.250-1.2.4.1:2222", 22));
+        assertTrue(r.add("9.9.9.9", 23));
+        assertEquals(9, r.size());
+        assertEquals("1.2.3.250:2222", alvo(r.get(0)));
+        assertEquals("1.2.4.1:2222", alvo(r.get(7)));
+        assertEquals("9.9.9.9:23", alvo(r.get(8)));
+    }
+
+    @Test
+    public void textoInvalido() {
+        TargetRange r = new TargetRange("u", "p");
+
+        assertFalse(r.add("10.0.0.0/33", 22));
+        assertFalse(r.add("10.0.0.0/-1", 22));
+        assertFalse(r.add("10.0.0.0/x", 22));
+        assertFalse(r.add("10.0.0.9-10.0.0.1", 22));
+        assertFalse(r.add("10.0.0.1-x", 22));
+        assertFalse(r.add("10.0.0.1:0", 22));
+        assertFalse(r.add("10.0.0.1:65536", 22));
+        assertFalse(r.add("256.0.0.1", 22));
+        assertFalse(r.add("host.example", 22));
+        assertEquals(0, r.size());
+    }
+
+    @Test
+    public void faixasSeguidasViramUma() {
+        TargetRange r = new TargetRange("u", "p");
+
+        r.add("10.0.0.0/31", 22);
+        r.add("10.0.0.2/31", 22);
+        r.add("10.0.0.4/31", 2222);
+
+        assertEquals(6, r.size());
+        assertEquals("10.0.0.3:22", alvo(r.get(3)));
+        assertEquals("10.0.0.4:2222", alvo(r.get(4)));
+    }
+
+    @Test
+    public void embaralhadoVisitaTodosUmaVez() {
+        TargetRange r = new TargetRange("u", "p");
+
+        r.add("10.0.0.0/22", 22);
+        r.add("172.16.0.1-172.16.0.100", 22);
+        r.shuffle(7);
+
+        Set<String> vistos = new HashSet<String>();
+        SSH ssh;
+
+        while ((ssh = r.next()) != null)
+            assertTrue(vistos.add(alvo(ssh)));
+
+        assertEquals(1024 + 100, vistos.size());
+        assertTrue(vistos.contains("10.0.3.255:22"));
+        assertTrue(vistos.contains("172.16.0.100:22"));
+    }
+
+    @Test
+    public void exclusaoPulaSemMudarOTotal() {
+        TargetRange r = new TargetRange("u", "p");
+        ExclusionList ex = new ExclusionList();
+
+        ex.add("10.0.0.0/31");
+        r.add("10.0.0.0/30", 22);
+        r.setExclusion(ex);
+
+        assertEquals("10.0.0.2:22", alvo(r.next()));
+        assertEquals("10.0.0.3:22", alvo(r.next()));
+        assertNull(r.next());
+        assertEquals(4, r.size());
+        assertEquals(2, ex.getQtdExcluded());
+    }
+
+    @Test
+    public void ipsSeguidosNaoSaoFaixa() {
+        TargetRange r = new TargetRange("u", "p");
+
+        r.add("10.0.0.1", 22);
+        r.add("10.0.0.2", 22);
+        assertEquals(2, r.size());
+        assertFalse(r.hasRanges());
+
+        assertFalse(r.addFaixa("10.0.0.3", 22));
+        assertTrue(r.addFaixa("10.0.0.3-10.0.0.4", 22));
+        assertTrue(r.hasRanges());
+        assertEquals(4, r.size());
+    }
+
+    @Test
+    public void loadRangesAchaIpsNoTextoComDedup() throws java.io.IOException {
+        SSHloader loader = new SSHloader("10.0.0.1\n10.0.0.2\n<td>192.168.5.9</td>\n172.16.0.1|root|x\n10.0.0.1\n");
+        loader.setDedup(new TargetDedup(TargetDedup.HOST));
+
+        TargetRange r = loader.loadRanges("u", "p", 22);
+
+        assertFalse(r.hasRanges());
+        assertEquals(4, r.size());
+        assertEquals(1, loader.getDedup().getQtdDuplicates());
+
+        Set<String> vistos = new HashSet<String>();
+        SSH ssh;
+        while ((ssh = r.next()) != null)
+            vistos.add(alvo(ssh));
+
+        assertTrue(vistos.contains("192.168.5.9:22"));
+        assertTrue(vistos.contains("172.16.0.1:22"));
+
+        loader = new SSHloader("10.1.0.0/30, 10.0.0.9:2222 x=10.0.0.7");
+        r = loader.loadRanges("u", "p", 22);
+
+        assertTrue(r.hasRanges());
+        assertEquals(6, r.size());
+    }
+}
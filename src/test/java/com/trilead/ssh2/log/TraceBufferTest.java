@@ -0,0 +1,71 @@
+package com.trilead.ssh2.log;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TraceBufferTest {
+    @Test
+    public void threadsBeyondMaxRingsShareWithoutLosingEvents() throws Exception {
+        final int threads = 200;
+        final int id = TraceBuffer.newConnectionId();
+
+        TraceBuffer.setMaxRings(4);
+        TraceBuffer.clear();
+        TraceBuffer.setEnabled(true);
+
+        try {
+            for (int round = 0; round < 2; round++) {
+                Thread[] t = new Thread[threads];
+
+                /* Alive at the same time, so only 4 of them get a ring of their own */
+                for (int i = 0; i < threads; i++) {
+                    final int size = round * threads + i;
+                    t[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            TraceBuffer.record(id, TraceBuffer.SEND, 20, size);
+                        }
+                    };
+                }
+                for (Thread x : t)
+                    x.start();
+                for (Thread x : t)
+                    x.join();
+            }
+        } finally {
+            TraceBuffer.setEnabled(false);
+            TraceBuffer.setMaxRings(TraceBuffer.DEFAULT_MAX_RINGS);
+        }
+
+        Set<String> sizes = new HashSet<String>();
+
+        for (String line : dump().split("\n")) {
+            if (line.contains(" #" + id + " send "))
+                assertTrue(line, sizes.add(line.substring(line.lastIndexOf(' ') + 1)));
+        }
+
+        assertEquals(2 * threads, sizes.size());
+    }
+
+    @Test
+    public void offRecordsNothing() throws IOException {
+        int id = TraceBuffer.newConnectionId();
+
+        TraceBuffer.setEnabled(false);
+        TraceBuffer.record(id, TraceBuffer.CONNECT, 0, 0);
+
+        assertFalse(dump().contains(" #" + id + " "));
+    }
+
+    private static String dump() throws IOException {
+        StringWriter out = new StringWriter();
+        TraceBuffer.dump(out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package com.trilead.ssh2.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TimeoutServiceTest {
+    private static final long REVOLUTION_MS = (long) TimeoutService.WHEEL_SIZE * TimeoutService.TICK_MS;
+
+    private static class Handler implements Runnable {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicLong at = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void run() {
+            at.set(System.currentTimeMillis());
+            count.incrementAndGet();
+            ran.countDown();
+        }
+
+        boolean await(long ms) throws InterruptedException {
+            return ran.await(ms, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void neverRunsBeforeRunTime() throws InterruptedException {
+        Handler[] h = new Handler[20];
+        long[] runTime = new long[h.length];
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < h.length; i++) {
+            h[i] = new Handler();
+            runTime[i] = now + 5 + i * 7;
+            TimeoutService.addTimeoutHandler(runTime[i], h[i]);
+        }
+
+        for (int i = 0; i < h.length; i++) {
+            assertTrue(h[i].await(2000));
+            assertTrue(h[i].at.get() >= runTime[i]);
+            assertEquals(1, h[i].count.get());
+        }
+    }
+
+    @Test
+    public void lateHandlerRunsPromptly() throws InterruptedException {
+        Handler h = new Handler();
+        long now = System.currentTimeMillis();
+
+        TimeoutService.addTimeoutHandler(now - 10000, h);
+
+        assertTrue(h.await(500));
+        assertTrue(h.at.get() - now < 500);
+    }
+
+    @Test
+    public void earlierTimeoutWakesTheSleepingThread() throws InterruptedException {
+        Handler far = new Handler();
+        Handler near = new Handler();
+        long now = System.currentTimeMillis();
+
+        /* The thread goes to sleep until the far one... */
+        TimeoutService.TimeoutToken token = TimeoutService.addTimeoutHandler(now + 3000, far);
+        Thread.sleep(50);
+
+        /* ...and must not oversleep the one added afterwards */
+        long nearTime = System.currentTimeMillis() + 50;
+        TimeoutService.addTimeoutHandler(nearTime, near);
+
+        assertTrue(near.await(1000));
+        assertTrue(near.at.get() >= nearTime);
+        assertTrue(near.at.get() - nearTime < 500);
+        assertEquals(0, far.count.get());
+
+        TimeoutService.cancelTimeoutHandler(token);
+    }
+
+    @Test
+    public void cancelledHandlerNeverRuns() throws InterruptedException {
+        Handler cancelled = new Handler();
+        Handler kept = new Handler();
+        long runTime = System.currentTimeMillis() + 100;
+
+        TimeoutService.TimeoutToken token = TimeoutService.addTimeoutHandler(runTime, cancelled);
+        TimeoutService.addTimeoutHandler(runTime, kept);
+        TimeoutService.cancelTimeoutHandler(token);
+
+        assertTrue(kept.await(2000));
+        Thread.sleep(100);
+        assertEquals(0, cancelled.count.get());
+
+        /* Cancelling twice, or after expiry, is harmless */
+        TimeoutService.cancelTimeoutHandler(token);
+        TimeoutService.cancelTimeoutHandler(TimeoutService.addTimeoutHandler(0, new Handler()));
+    }
+
+    @Test
+    public void laterRevolutionsStayInTheirBucket() throws InterruptedException {
+        Handler near = new Handler();
+        Handler far = new Handler();
+        Handler cancelled = new Handler();
+        long now = System.currentTimeMillis();
+        long nearTime = now + 200;
+        long farTime = nearTime + REVOLUTION_MS;
+
+        /* Same bucket, one and two revolutions apart */
+        TimeoutService.addTimeoutHandler(nearTime, near);
+        TimeoutService.addTimeoutHandler(farTime, far);
+        TimeoutService.TimeoutToken token = TimeoutService.addTimeoutHandler(farTime + REVOLUTION_MS, cancelled);
+
+        assertTrue(near.await(2000));
+        assertTrue(near.at.get() >= nearTime);
+        assertEquals(0, far.count.get());
+
+        /* Cancelled from a bucket that has already been visited once */
+        TimeoutService.cancelTimeoutHandler(token);
+
+        assertTrue(far.await(REVOLUTION_MS + 2000));
+        assertTrue(far.at.get() >= farTime);
+        assertEquals(1, far.count.get());
+        assertEquals(0, cancelled.count.get());
+    }
+
+    @Test
+    public void failingHandlerDoesNotStopTheOthers() throws InterruptedException {
+        Handler h = new Handler();
+        long now = System.currentTimeMillis();
+
+        TimeoutService.addTimeoutHandler(now, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        });
+        TimeoutService.addTimeoutHandler(now + 20, h);
+
+        assertTrue(h.await(2000));
+    }
+}